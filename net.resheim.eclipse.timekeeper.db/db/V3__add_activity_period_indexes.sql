@@ -0,0 +1,3 @@
+-- Speeds up finding the activities, and thus the tasks, of a given week
+CREATE INDEX IF NOT EXISTS IX_ACTIVITY_START_TIME ON ACTIVITY (START_TIME ASC);
+CREATE INDEX IF NOT EXISTS IX_ACTIVITY_END_TIME ON ACTIVITY (END_TIME ASC);
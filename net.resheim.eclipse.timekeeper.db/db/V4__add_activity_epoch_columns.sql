@@ -0,0 +1,8 @@
+-- Start and end times as seconds since 1970-01-01T00:00 local time, allowing
+-- period queries to be plain integer range scans. Running activities have an
+-- end of 9223372036854775807. Existing rows are updated in the background by
+-- the application.
+ALTER TABLE ACTIVITY ADD COLUMN IF NOT EXISTS START_EPOCH BIGINT;
+ALTER TABLE ACTIVITY ADD COLUMN IF NOT EXISTS END_EPOCH BIGINT;
+
+CREATE INDEX IF NOT EXISTS IX_ACTIVITY_EPOCH ON ACTIVITY (START_EPOCH ASC, END_EPOCH ASC);
@@ -0,0 +1,13 @@
+-- Seconds spent on each task per day, maintained by the application. The EPOCH_DAY
+-- column is the number of days since 1970-01-01. Rows are created by the
+-- application when the table is empty.
+CREATE TABLE IF NOT EXISTS TASK_DAY_TOTAL (
+	REPOSITORY_URL VARCHAR(255) NOT NULL,
+	TASK_ID VARCHAR(255) NOT NULL,
+	EPOCH_DAY BIGINT NOT NULL,
+	PROJECT VARCHAR(255),
+	SECONDS BIGINT,
+	PRIMARY KEY (REPOSITORY_URL, TASK_ID, EPOCH_DAY)
+);
+
+CREATE INDEX IF NOT EXISTS IX_TASK_DAY_TOTAL_DAY ON TASK_DAY_TOTAL (EPOCH_DAY ASC);
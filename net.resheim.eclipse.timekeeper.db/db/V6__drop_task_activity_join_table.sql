@@ -0,0 +1,27 @@
+-- The relation between a task and its activities is stored in the TASK_ID and
+-- REPOSITORY_URL columns of ACTIVITY, the TASK_ACTIVITY join table created by
+-- EclipseLink is no longer used. The join table is created if missing, so that
+-- the script also applies to a new database.
+CREATE TABLE IF NOT EXISTS TASK_ACTIVITY (
+	TASK_REPOSITORY_URL VARCHAR(255) NOT NULL,
+	TASK_TASK_ID VARCHAR(255) NOT NULL,
+	ACTIVITIES_ID VARCHAR(255) NOT NULL
+);
+
+-- The join table is what the application has been reading, so where the foreign
+-- key of an activity does not agree with it the join table is used.
+UPDATE ACTIVITY A SET (TASK_ID, REPOSITORY_URL) = (
+	SELECT J.TASK_TASK_ID, J.TASK_REPOSITORY_URL FROM TASK_ACTIVITY J WHERE J.ACTIVITIES_ID = A.ID)
+WHERE EXISTS (SELECT 1 FROM TASK_ACTIVITY J WHERE J.ACTIVITIES_ID = A.ID
+	AND (A.TASK_ID IS NULL OR A.REPOSITORY_URL IS NULL
+		OR J.TASK_TASK_ID <> A.TASK_ID OR J.TASK_REPOSITORY_URL <> A.REPOSITORY_URL));
+
+-- Activities that have been removed from their task only lost the join table row,
+-- these are detached so that they do not reappear.
+UPDATE ACTIVITY A SET TASK_ID = NULL, REPOSITORY_URL = NULL
+WHERE A.TASK_ID IS NOT NULL
+	AND EXISTS (SELECT 1 FROM TASK_ACTIVITY)
+	AND NOT EXISTS (SELECT 1 FROM TASK_ACTIVITY J WHERE J.ACTIVITIES_ID = A.ID)
+	AND NOT EXISTS (SELECT 1 FROM TASK T WHERE T.CURRENTACTIVITY_ID = A.ID);
+
+DROP TABLE IF EXISTS TASK_ACTIVITY;
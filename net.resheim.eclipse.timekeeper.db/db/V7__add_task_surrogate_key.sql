@@ -0,0 +1,48 @@
+-- Tasks are referred to using a numeric surrogate key instead of the natural key
+-- made up of the repository URL and the task identifier, which is kept unique.
+-- Existing tasks are numbered when the column is added.
+ALTER TABLE TASK ADD COLUMN IF NOT EXISTS ID BIGINT AUTO_INCREMENT;
+ALTER TABLE TASK ALTER COLUMN ID SET NOT NULL;
+
+-- The relation between projects and tasks is stored in the TASK_PROJECT column
+-- of TASK, the PROJECT_TASK join table created by EclipseLink is no longer used.
+DROP TABLE IF EXISTS PROJECT_TASK;
+
+-- The old foreign key columns are added if missing, so that the script also
+-- applies to a new database.
+ALTER TABLE ACTIVITY ADD COLUMN IF NOT EXISTS ACTIVITY_TASK BIGINT;
+ALTER TABLE ACTIVITY ADD COLUMN IF NOT EXISTS TASK_ID VARCHAR(255);
+ALTER TABLE ACTIVITY ADD COLUMN IF NOT EXISTS REPOSITORY_URL VARCHAR(255);
+
+-- @repeat
+UPDATE ACTIVITY A SET ACTIVITY_TASK = (
+	SELECT T.ID FROM TASK T WHERE T.REPOSITORY_URL = A.REPOSITORY_URL AND T.TASK_ID = A.TASK_ID)
+WHERE A.ACTIVITY_TASK IS NULL AND A.TASK_ID IS NOT NULL
+	AND EXISTS (SELECT 1 FROM TASK T WHERE T.REPOSITORY_URL = A.REPOSITORY_URL AND T.TASK_ID = A.TASK_ID)
+LIMIT 10000;
+
+-- The name of the old foreign key constraint was chosen by EclipseLink
+-- @generate
+SELECT 'ALTER TABLE ACTIVITY DROP CONSTRAINT ' || CONSTRAINT_NAME FROM INFORMATION_SCHEMA.CONSTRAINTS
+WHERE TABLE_NAME = 'ACTIVITY' AND CONSTRAINT_TYPE = 'REFERENTIAL'
+	AND COLUMN_LIST IN ('TASK_ID,REPOSITORY_URL', 'REPOSITORY_URL,TASK_ID');
+
+ALTER TABLE ACTIVITY DROP COLUMN IF EXISTS TASK_ID;
+ALTER TABLE ACTIVITY DROP COLUMN IF EXISTS REPOSITORY_URL;
+
+-- Make the surrogate key the primary key, and the natural key unique
+-- @generate
+SELECT 'ALTER TABLE TASK DROP PRIMARY KEY' FROM INFORMATION_SCHEMA.CONSTRAINTS
+WHERE TABLE_NAME = 'TASK' AND CONSTRAINT_TYPE = 'PRIMARY KEY' AND COLUMN_LIST <> 'ID';
+
+-- @generate
+SELECT 'ALTER TABLE TASK ADD PRIMARY KEY (ID)' FROM DUAL
+WHERE NOT EXISTS (SELECT 1 FROM INFORMATION_SCHEMA.CONSTRAINTS
+	WHERE TABLE_NAME = 'TASK' AND CONSTRAINT_TYPE = 'PRIMARY KEY');
+
+ALTER TABLE TASK ADD CONSTRAINT IF NOT EXISTS UX_TASK_GLOBAL_ID UNIQUE (REPOSITORY_URL, TASK_ID);
+
+-- @generate
+SELECT 'ALTER TABLE ACTIVITY ADD CONSTRAINT FK_ACTIVITY_ACTIVITY_TASK FOREIGN KEY (ACTIVITY_TASK) REFERENCES TASK (ID)'
+FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM INFORMATION_SCHEMA.CONSTRAINTS
+	WHERE TABLE_NAME = 'ACTIVITY' AND CONSTRAINT_TYPE = 'REFERENTIAL' AND COLUMN_LIST = 'ACTIVITY_TASK');
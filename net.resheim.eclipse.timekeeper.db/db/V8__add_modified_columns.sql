@@ -0,0 +1,27 @@
+-- When each row was last written, in milliseconds since the epoch, so that an
+-- incremental export only has to read the rows changed since the previous one.
+-- Rows written before the column was added are only part of full exports.
+ALTER TABLE TASK ADD COLUMN IF NOT EXISTS MODIFIED BIGINT;
+ALTER TABLE ACTIVITY ADD COLUMN IF NOT EXISTS MODIFIED BIGINT;
+ALTER TABLE PROJECT ADD COLUMN IF NOT EXISTS MODIFIED BIGINT;
+ALTER TABLE ACTIVITYLABEL ADD COLUMN IF NOT EXISTS MODIFIED BIGINT;
+
+CREATE INDEX IF NOT EXISTS IX_TASK_MODIFIED ON TASK (MODIFIED ASC);
+CREATE INDEX IF NOT EXISTS IX_ACTIVITY_MODIFIED ON ACTIVITY (MODIFIED ASC);
+
+-- The keys of deleted rows, recorded by a trigger as these are no longer found
+-- when looking for changes.
+CREATE TABLE IF NOT EXISTS DELETED_ROW (
+	TABLE_NAME VARCHAR(255) NOT NULL,
+	ROW_KEY VARCHAR(255) NOT NULL,
+	MODIFIED BIGINT NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS IX_DELETED_ROW_MODIFIED ON DELETED_ROW (MODIFIED ASC);
+
+CREATE TRIGGER IF NOT EXISTS TR_ACTIVITY_DELETED AFTER DELETE ON ACTIVITY FOR EACH ROW
+	CALL "net.resheim.eclipse.timekeeper.db.DeletedRowTrigger";
+CREATE TRIGGER IF NOT EXISTS TR_PROJECT_DELETED AFTER DELETE ON PROJECT FOR EACH ROW
+	CALL "net.resheim.eclipse.timekeeper.db.DeletedRowTrigger";
+CREATE TRIGGER IF NOT EXISTS TR_ACTIVITYLABEL_DELETED AFTER DELETE ON ACTIVITYLABEL FOR EACH ROW
+	CALL "net.resheim.eclipse.timekeeper.db.DeletedRowTrigger";
@@ -0,0 +1,7 @@
+-- Holds a single row once the daily totals have been calculated from all the
+-- activities, written in the same transaction as the totals. The totals of a
+-- database without this row are calculated again, even if the table has rows,
+-- as these may be the result of an interrupted calculation.
+CREATE TABLE IF NOT EXISTS TASK_DAY_TOTAL_BUILT (
+	BUILT BIGINT NOT NULL
+);
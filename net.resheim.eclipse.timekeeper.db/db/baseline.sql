@@ -0,0 +1,96 @@
+-- The schema as created by EclipseLink before the schema version was recorded
+-- in the database, which is what the first migration script applies to. This
+-- is only used for creating a new database, and is not a migration script.
+CREATE TABLE PROJECT_TYPE (
+	ID VARCHAR(255) NOT NULL,
+	PRIMARY KEY (ID)
+);
+
+CREATE TABLE PROJECT (
+	NAME VARCHAR(255) NOT NULL,
+	EXTERNAL_ID VARCHAR(255),
+	PROJECT_URL VARCHAR(255),
+	REPOSITORY_URL VARCHAR(255),
+	TASKS_URL VARCHAR(255),
+	TYPE VARCHAR(255),
+	PRIMARY KEY (NAME)
+);
+
+CREATE TABLE ACTIVITY (
+	ID VARCHAR(255) NOT NULL,
+	ADJUSTED BOOLEAN,
+	END_TIME TIMESTAMP,
+	START_TIME TIMESTAMP,
+	SUMMARY VARCHAR(255),
+	ACTIVITY_PROJECT VARCHAR(255),
+	TASK_ID VARCHAR(255),
+	REPOSITORY_URL VARCHAR(255),
+	PRIMARY KEY (ID)
+);
+
+CREATE TABLE ACTIVITYLABEL (
+	ID VARCHAR(255) NOT NULL,
+	COLOR VARCHAR(255),
+	NAME VARCHAR(255),
+	PRIMARY KEY (ID)
+);
+
+CREATE TABLE TASK (
+	REPOSITORY_URL VARCHAR(255) NOT NULL,
+	TASK_ID VARCHAR(255) NOT NULL,
+	TASK_SUMMARY VARCHAR(255),
+	TICK TIMESTAMP,
+	TASK_URL VARCHAR(255),
+	CURRENTACTIVITY_ID VARCHAR(255),
+	TASK_PROJECT VARCHAR(255),
+	PRIMARY KEY (REPOSITORY_URL, TASK_ID)
+);
+
+CREATE TABLE ACTIVITY_ACTIVITYLABEL (
+	ACTIVITY_ID VARCHAR(255) NOT NULL,
+	LABELS_ID VARCHAR(255) NOT NULL,
+	PRIMARY KEY (ACTIVITY_ID, LABELS_ID)
+);
+
+CREATE TABLE PROJECT_ACTIVITY (
+	PROJECT_NAME VARCHAR(255) NOT NULL,
+	CHILDREN_ID VARCHAR(255) NOT NULL,
+	PRIMARY KEY (PROJECT_NAME, CHILDREN_ID)
+);
+
+CREATE TABLE PROJECT_TASK (
+	PROJECT_NAME VARCHAR(255) NOT NULL,
+	TASKS_REPOSITORY_URL VARCHAR(255) NOT NULL,
+	TASKS_TASK_ID VARCHAR(255) NOT NULL,
+	PRIMARY KEY (PROJECT_NAME, TASKS_REPOSITORY_URL, TASKS_TASK_ID)
+);
+
+CREATE TABLE TASK_ACTIVITY (
+	TASK_REPOSITORY_URL VARCHAR(255) NOT NULL,
+	TASK_TASK_ID VARCHAR(255) NOT NULL,
+	ACTIVITIES_ID VARCHAR(255) NOT NULL,
+	PRIMARY KEY (TASK_REPOSITORY_URL, TASK_TASK_ID, ACTIVITIES_ID)
+);
+
+ALTER TABLE PROJECT ADD CONSTRAINT FK_PROJECT_TYPE FOREIGN KEY (TYPE) REFERENCES PROJECT_TYPE (ID);
+ALTER TABLE ACTIVITY ADD CONSTRAINT FK_ACTIVITY_ACTIVITY_PROJECT FOREIGN KEY (ACTIVITY_PROJECT) REFERENCES PROJECT (NAME);
+ALTER TABLE ACTIVITY ADD CONSTRAINT FK_ACTIVITY_TASK_ID FOREIGN KEY (TASK_ID, REPOSITORY_URL)
+	REFERENCES TASK (TASK_ID, REPOSITORY_URL);
+ALTER TABLE TASK ADD CONSTRAINT FK_TASK_CURRENTACTIVITY_ID FOREIGN KEY (CURRENTACTIVITY_ID) REFERENCES ACTIVITY (ID);
+ALTER TABLE TASK ADD CONSTRAINT FK_TASK_TASK_PROJECT FOREIGN KEY (TASK_PROJECT) REFERENCES PROJECT (NAME);
+ALTER TABLE ACTIVITY_ACTIVITYLABEL ADD CONSTRAINT FK_ACTIVITY_ACTIVITYLABEL_ACTIVITY_ID FOREIGN KEY (ACTIVITY_ID)
+	REFERENCES ACTIVITY (ID);
+ALTER TABLE ACTIVITY_ACTIVITYLABEL ADD CONSTRAINT FK_ACTIVITY_ACTIVITYLABEL_LABELS_ID FOREIGN KEY (LABELS_ID)
+	REFERENCES ACTIVITYLABEL (ID);
+ALTER TABLE PROJECT_ACTIVITY ADD CONSTRAINT FK_PROJECT_ACTIVITY_PROJECT_NAME FOREIGN KEY (PROJECT_NAME)
+	REFERENCES PROJECT (NAME);
+ALTER TABLE PROJECT_ACTIVITY ADD CONSTRAINT FK_PROJECT_ACTIVITY_CHILDREN_ID FOREIGN KEY (CHILDREN_ID)
+	REFERENCES ACTIVITY (ID);
+ALTER TABLE PROJECT_TASK ADD CONSTRAINT FK_PROJECT_TASK_PROJECT_NAME FOREIGN KEY (PROJECT_NAME)
+	REFERENCES PROJECT (NAME);
+ALTER TABLE PROJECT_TASK ADD CONSTRAINT FK_PROJECT_TASK_TASKS_REPOSITORY_URL FOREIGN KEY (TASKS_REPOSITORY_URL, TASKS_TASK_ID)
+	REFERENCES TASK (REPOSITORY_URL, TASK_ID);
+ALTER TABLE TASK_ACTIVITY ADD CONSTRAINT FK_TASK_ACTIVITY_TASK_REPOSITORY_URL FOREIGN KEY (TASK_REPOSITORY_URL, TASK_TASK_ID)
+	REFERENCES TASK (REPOSITORY_URL, TASK_ID);
+ALTER TABLE TASK_ACTIVITY ADD CONSTRAINT FK_TASK_ACTIVITY_ACTIVITIES_ID FOREIGN KEY (ACTIVITIES_ID)
+	REFERENCES ACTIVITY (ID);
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * Determines when an activity that was never ended most likely ended, using
+ * the time a task has been recorded as active by some other source such as
+ * Mylyn.
+ *
+ * @author Torkild U. Resheim
+ */
+public final class ActivityRecovery {
+
+	/** The resolution of the recovered end time */
+	public static final Duration WINDOW = Duration.ofMinutes(30);
+
+	/**
+	 * Returns the number of milliseconds a task has been active within a period.
+	 */
+	@FunctionalInterface
+	public interface ElapsedTime {
+		long get(LocalDateTime from, LocalDateTime to);
+	}
+
+	private ActivityRecovery() {
+	}
+
+	/**
+	 * Returns the end of the last window in which the task was active, starting
+	 * at the given time. As the time the task has been active from any point in
+	 * time until now can only decrease as that point moves forward, the last
+	 * active window is located by doubling the distance from the start until an
+	 * inactive point is found, followed by a binary search. Hence only a
+	 * logarithmic number of lookups are required, no matter how long ago the
+	 * activity was started.
+	 *
+	 * @param start   when the activity was started
+	 * @param now     the current time, the result will not be later than this
+	 * @param elapsed lookup of the time the task has been active
+	 * @return the most likely end time of the activity
+	 */
+	public static LocalDateTime findLastActive(LocalDateTime start, LocalDateTime now, ElapsedTime elapsed) {
+		if (!now.isAfter(start)) {
+			return start;
+		}
+		long windows = (Duration.between(start, now).toMillis() + WINDOW.toMillis() - 1) / WINDOW.toMillis();
+		if (elapsed.get(start, now) == 0) {
+			return min(start.plus(WINDOW), now);
+		}
+		// the task is active at or after window "lo", but not at or after window "hi"
+		long lo = 0;
+		long hi = 1;
+		while (hi < windows && elapsed.get(window(start, hi), now) > 0) {
+			lo = hi;
+			hi *= 2;
+		}
+		hi = Math.min(hi, windows);
+		while (hi - lo > 1) {
+			long mid = (lo + hi) >>> 1;
+			if (elapsed.get(window(start, mid), now) > 0) {
+				lo = mid;
+			} else {
+				hi = mid;
+			}
+		}
+		return min(window(start, lo + 1), now);
+	}
+
+	private static LocalDateTime window(LocalDateTime start, long n) {
+		return start.plus(WINDOW.multipliedBy(n));
+	}
+
+	private static LocalDateTime min(LocalDateTime a, LocalDateTime b) {
+		return a.isBefore(b) ? a : b;
+	}
+
+}
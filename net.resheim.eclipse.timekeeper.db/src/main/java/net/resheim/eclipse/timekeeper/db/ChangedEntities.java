@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.ActivityLabel;
+import net.resheim.eclipse.timekeeper.db.model.Project;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Keeps track of the {@link Task}, {@link Activity}, {@link ActivityLabel} and
+ * {@link Project} instances that have been modified since they were last
+ * written, so that a save can report how many entities it wrote without
+ * visiting the entire object graph.
+ *
+ * @author Torkild U. Resheim
+ */
+public final class ChangedEntities {
+
+	/** Entities that have changed since the last flush */
+	private static final Set<Object> pending = Collections
+			.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+	private ChangedEntities() {
+	}
+
+	/**
+	 * Marks the entity as changed, so that it is written on the next
+	 * {@link #flush(EntityManager)}.
+	 *
+	 * @param entity the changed entity
+	 */
+	public static void markDirty(Object entity) {
+		pending.add(entity);
+	}
+
+	/**
+	 * @return the number of entities changed since the last flush
+	 */
+	public static int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Forgets the changed entities. This must be done when the entity manager
+	 * they belong to is cleared or closed, after having been flushed, so that
+	 * these are not kept after their persistence context.
+	 */
+	static void clear() {
+		pending.clear();
+	}
+
+	/**
+	 * Writes the changes made to the entities managed by the given entity
+	 * manager. EclipseLink only writes the rows of entities that have actually
+	 * changed, and new entities referenced by these, such as an activity added
+	 * to a task, are persisted by cascade. The entities are not persisted
+	 * explicitly, as that would cascade through all the activities of a task.
+	 * Entities not managed by the entity manager, for instance those of an
+	 * import, are not counted. This must be called within a transaction.
+	 *
+	 * @param em the entity manager to use
+	 * @return the number of changed entities written
+	 */
+	public static int flush(EntityManager em) {
+		List<Object> entities;
+		synchronized (pending) {
+			entities = new ArrayList<>(pending);
+			pending.clear();
+		}
+		int count = 0;
+		for (Object entity : entities) {
+			if (em.contains(entity)) {
+				count++;
+			}
+		}
+		em.flush();
+		return count;
+	}
+
+}
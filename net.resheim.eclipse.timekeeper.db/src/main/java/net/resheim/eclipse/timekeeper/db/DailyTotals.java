@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+import net.resheim.eclipse.timekeeper.db.model.TaskDayTotal;
+import net.resheim.eclipse.timekeeper.db.model.TaskDayTotalId;
+
+/**
+ * Maintains the {@link TaskDayTotal} table. Whenever the period of an activity
+ * changes, the activity is marked as dirty. When flushed, the period previously
+ * added to the totals is subtracted and the current period is added, so that
+ * only the days actually touched are updated.
+ * <p>
+ * Only ended activities are included in the totals. The contribution of an
+ * activity that is still running must be added by the reader, see
+ * {@link #getSeconds(Map, Task, LocalDate, int)}.
+ * </p>
+ *
+ * @author Torkild U. Resheim
+ */
+public final class DailyTotals {
+
+	private static final Logger log = LoggerFactory.getLogger(DailyTotals.class);
+
+	private static final long SECONDS_PER_DAY = 86_400;
+
+	/** Hint used for reading the current state of a row */
+	private static final Map<String, Object> REFRESH = Collections.singletonMap(QueryHints.REFRESH,
+			HintValues.TRUE);
+
+	/** Activities that have changed since the totals were last updated */
+	private static final Set<Activity> pending = Collections
+			.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+	/** Whether or not the totals table has been populated */
+	private static volatile boolean ready = false;
+
+	private DailyTotals() {
+	}
+
+	/**
+	 * Marks the activity as changed, so that the totals are updated on the next
+	 * {@link #flush(EntityManager)}.
+	 *
+	 * @param activity the changed activity
+	 */
+	public static void markDirty(Activity activity) {
+		pending.add(activity);
+	}
+
+	/**
+	 * Returns whether or not the totals table has been populated and can be used
+	 * instead of the activities.
+	 *
+	 * @return <code>true</code> if the totals can be used
+	 */
+	public static boolean isReady() {
+		return ready;
+	}
+
+	static void setReady(boolean ready) {
+		DailyTotals.ready = ready;
+	}
+
+	/**
+	 * Returns whether or not the totals have been completely calculated by a
+	 * {@link #rebuild(EntityManager)}, and since then only have been updated
+	 * incrementally. Rows in the table do not imply this, as the calculation may
+	 * have been interrupted.
+	 *
+	 * @param em the entity manager to use
+	 * @return <code>true</code> if the totals are complete
+	 */
+	static boolean isBuilt(EntityManager em) {
+		Number rows = (Number) em.createNativeQuery("SELECT COUNT(*) FROM TASK_DAY_TOTAL_BUILT")
+				.getSingleResult();
+		return rows.longValue() > 0;
+	}
+
+	/**
+	 * Records that the totals must be calculated again, for instance because
+	 * activities have been imported. The totals are no longer used once the
+	 * transaction has been committed. This must be called within a transaction.
+	 *
+	 * @param em the entity manager to use
+	 */
+	static void invalidate(EntityManager em) {
+		em.createNativeQuery("DELETE FROM TASK_DAY_TOTAL_BUILT").executeUpdate();
+	}
+
+	/**
+	 * Forgets the activities that have changed. This must be done when the
+	 * entity manager they belong to is cleared or closed, after having been
+	 * flushed, so that these are not kept after their persistence context.
+	 */
+	static void clear() {
+		pending.clear();
+	}
+
+	/**
+	 * Updates the totals with all activities that have changed since last time.
+	 * This must be called within a transaction.
+	 *
+	 * @param em the entity manager to use
+	 * @return the number of activities processed
+	 */
+	public static int flush(EntityManager em) {
+		List<Activity> activities;
+		synchronized (pending) {
+			activities = new ArrayList<>(pending);
+			pending.clear();
+		}
+		Map<TaskDayTotalId, TaskDayTotal> rows = new HashMap<>();
+		// the activities of each task, so that removed activities are found without a scan
+		Map<Task, Set<Activity>> owned = new IdentityHashMap<>();
+		for (Activity activity : activities) {
+			Task task = activity.getTrackedTask();
+			if (task == null) {
+				continue;
+			}
+			long[] accounted = activity.getAccounted();
+			if (accounted != null) {
+				add(em, task, accounted[0], accounted[1], -1, rows);
+			}
+			boolean include = activity.getEnd() != null
+					&& owned.computeIfAbsent(task, DailyTotals::getActivities).contains(activity);
+			if (include) {
+				add(em, task, activity.getStartEpoch(), activity.getEndEpoch(), 1, rows);
+			}
+			activity.setAccounted(include);
+		}
+		// rows are not removed until all changes are applied, as they may be
+		// needed again when an activity is moved
+		rows.values().stream().filter(row -> row.getSeconds() <= 0).forEach(em::remove);
+		return activities.size();
+	}
+
+	/**
+	 * Recalculates all totals from the activities of every task. Rows that are
+	 * already correct are left untouched. As every task and activity is loaded,
+	 * this should be done using a separate entity manager. Changes that have not
+	 * yet been committed by others are left pending, these are applied on top of
+	 * the rebuilt totals by the next {@link #flush(EntityManager)}. That the
+	 * totals are complete is recorded in the same transaction, which must have
+	 * been started.
+	 *
+	 * @param em the entity manager to use
+	 * @return the number of rows in the table
+	 */
+	public static int rebuild(EntityManager em) {
+		Map<TaskDayTotalId, long[]> totals = new HashMap<>();
+		Map<TaskDayTotalId, String> projects = new HashMap<>();
+		List<Task> tasks = em.createNamedQuery("Task.findAll", Task.class).getResultList();
+		for (Task task : tasks) {
+			GlobalTaskId id = task.getId();
+			String project = task.getProject() == null ? null : task.getProject().getName();
+			for (Activity activity : task.getActivities()) {
+				boolean include = activity.getEnd() != null;
+				if (include) {
+					forEachDay(activity.getStartEpoch(), activity.getEndEpoch(), (day, seconds) -> {
+						TaskDayTotalId key = new TaskDayTotalId(id.getRepositoryUrl(), id.getTaskId(), day);
+						totals.computeIfAbsent(key, k -> new long[1])[0] += seconds;
+						projects.put(key, project);
+					});
+				}
+				activity.setAccounted(include);
+			}
+		}
+		// update or remove the existing rows
+		for (TaskDayTotal row : em.createQuery("SELECT d FROM TaskDayTotal d", TaskDayTotal.class)
+				.getResultList()) {
+			TaskDayTotalId key = row.getId();
+			long[] seconds = totals.remove(key);
+			if (seconds == null) {
+				em.remove(row);
+			} else {
+				row.setSeconds(seconds[0]);
+				row.setProject(projects.get(key));
+			}
+		}
+		// and add the missing ones
+		for (Map.Entry<TaskDayTotalId, long[]> entry : totals.entrySet()) {
+			TaskDayTotalId key = entry.getKey();
+			em.persist(createRow(key, projects.get(key), entry.getValue()[0]));
+		}
+		invalidate(em);
+		em.createNativeQuery("INSERT INTO TASK_DAY_TOTAL_BUILT (BUILT) VALUES (?)")
+				.setParameter(1, System.currentTimeMillis())
+				.executeUpdate();
+		ready = true;
+		long count = em.createNamedQuery("TaskDayTotal.count", Long.class).getSingleResult();
+		log.info("Daily totals rebuilt from {} tasks, {} rows", tasks.size(), count);
+		return (int) count;
+	}
+
+	/**
+	 * Loads the totals for the given period.
+	 *
+	 * @param em    the entity manager to use
+	 * @param first the first date of the period
+	 * @param days  the number of days in the period
+	 * @return seconds spent per day, for each task that has any
+	 */
+	public static Map<GlobalTaskId, long[]> load(EntityManager em, LocalDate first, int days) {
+		long start = first.toEpochDay();
+		Map<GlobalTaskId, long[]> result = new HashMap<>();
+		em.createNamedQuery("TaskDayTotal.findByPeriod", TaskDayTotal.class)
+				.setParameter("start", start)
+				.setParameter("end", start + days)
+				.getResultStream()
+				.forEach(d -> result.computeIfAbsent(d.getTaskId(), k -> new long[days])[(int) (d.getDay()
+						- start)] += d.getSeconds());
+		return result;
+	}
+
+	/**
+	 * Returns the seconds spent on the task each day of the period, using the
+	 * loaded totals and adding the time of the current activity if the task is
+	 * active.
+	 *
+	 * @param totals totals as returned by {@link #load(EntityManager, LocalDate, int)}
+	 * @param task   the task to get the seconds for
+	 * @param first  the first date of the period
+	 * @param days   the number of days in the period
+	 * @return seconds spent per day
+	 */
+	public static long[] getSeconds(Map<GlobalTaskId, long[]> totals, Task task, LocalDate first, int days) {
+		long[] loaded = totals.get(task.getId());
+		long[] seconds = loaded == null ? new long[days] : loaded.clone();
+		task.getCurrentActivity().ifPresent(a -> {
+			long now = Activity.currentEpochSecond();
+			long from = Activity.toEpochSecond(first);
+			for (int i = 0; i < days; i++, from += SECONDS_PER_DAY) {
+				seconds[i] += a.getSeconds(from, from + SECONDS_PER_DAY, now);
+			}
+		});
+		return seconds;
+	}
+
+	/**
+	 * Adds or subtracts the period to the rows of the task. Each row is read
+	 * from the database the first time it is used in a flush, as it may have
+	 * been rewritten by a rebuild since it was loaded.
+	 */
+	private static void add(EntityManager em, Task task, long start, long end, int sign,
+			Map<TaskDayTotalId, TaskDayTotal> rows) {
+		GlobalTaskId id = task.getId();
+		String project = task.getProject() == null ? null : task.getProject().getName();
+		forEachDay(start, end, (day, seconds) -> {
+			TaskDayTotalId key = new TaskDayTotalId(id.getRepositoryUrl(), id.getTaskId(), day);
+			TaskDayTotal row = rows.get(key);
+			if (row == null) {
+				row = em.find(TaskDayTotal.class, key, REFRESH);
+			}
+			if (row == null) {
+				if (sign > 0) {
+					row = createRow(key, project, seconds);
+					em.persist(row);
+					rows.put(key, row);
+				}
+				return;
+			}
+			row.setSeconds(row.getSeconds() + sign * seconds);
+			row.setProject(project);
+			rows.put(key, row);
+		});
+	}
+
+	private static Set<Activity> getActivities(Task task) {
+		Set<Activity> activities = Collections.newSetFromMap(new IdentityHashMap<>());
+		activities.addAll(task.getActivities());
+		return activities;
+	}
+
+	private static TaskDayTotal createRow(TaskDayTotalId key, String project, long seconds) {
+		TaskDayTotal row = new TaskDayTotal(key);
+		row.setProject(project);
+		row.setSeconds(seconds);
+		return row;
+	}
+
+	/**
+	 * Splits the period at midnight and passes the number of seconds on each
+	 * day to the consumer. Empty periods are ignored.
+	 */
+	private static void forEachDay(long start, long end, DayConsumer consumer) {
+		if (end <= start) {
+			return;
+		}
+		for (long day = Math.floorDiv(start, SECONDS_PER_DAY); day * SECONDS_PER_DAY < end; day++) {
+			long s = Math.max(start, day * SECONDS_PER_DAY);
+			long e = Math.min(end, (day + 1) * SECONDS_PER_DAY);
+			consumer.accept(day, e - s);
+		}
+	}
+
+	@FunctionalInterface
+	private interface DayConsumer {
+		void accept(long day, long seconds);
+	}
+
+}
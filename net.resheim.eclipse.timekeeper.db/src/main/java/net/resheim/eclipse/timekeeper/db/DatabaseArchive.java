@@ -0,0 +1,758 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.h2.tools.Csv;
+
+/**
+ * Reads and writes the Timekeeper database as a single zip archive. The archive
+ * holds one CSV file per table, in the same format as written by the H2
+ * <code>CSVWRITE</code> function, followed by a manifest with the number of
+ * rows and the CRC-32 checksum of each file. Rows are streamed between the
+ * database and the archive, so that no table is held in memory as a whole.
+ * <p>
+ * Tasks are written with their natural key only, and activities with the
+ * natural key of their task. Surrogate keys are assigned by the database the
+ * archive is imported into.
+ * </p>
+ * <p>
+ * An archive is either a full export, or an incremental export holding only
+ * the rows written since a given time along with the keys of the rows deleted
+ * since then. The manifest records the time up to which changes are included,
+ * the <i>until</i> watermark, and for incremental exports also the time the
+ * changes are included from. A full export followed by the incremental exports
+ * made after it form a chain that is imported in order.
+ * </p>
+ *
+ * @author Torkild U. Resheim
+ */
+final class DatabaseArchive {
+
+	/** Name of the manifest entry */
+	static final String MANIFEST = "manifest.properties";
+
+	/** Name of the entry holding the activity labels */
+	static final String LABELS = "activitylabel.csv";
+
+	/** Name of the entry holding the project types */
+	static final String PROJECT_TYPES = "project_type.csv";
+
+	/** Name of the entry holding the projects */
+	static final String PROJECTS = "project.csv";
+
+	/** Name of the entry holding the tasks */
+	static final String TASKS = "trackedtask.csv";
+
+	/** Name of the entry holding the activities */
+	static final String ACTIVITIES = "activity.csv";
+
+	/** Name of the entry holding the labels assigned to activities */
+	static final String ACTIVITY_LABELS = "activity_activitylabel.csv";
+
+	/** Name of the entry holding the keys of deleted rows in incremental exports */
+	static final String DELETED = "deleted_row.csv";
+
+	/** Name of the entry holding task and activity relations in older exports */
+	static final String RELATIONS = "trackedtask_activity.csv";
+
+	/** Manifest property holding the time changes are included from */
+	static final String SINCE = "since";
+
+	/** Manifest property holding the time changes are included until */
+	static final String UNTIL = "until";
+
+	/**
+	 * An incremental export starts this many milliseconds before the previous
+	 * export ended, so that rows written by transactions that were not yet
+	 * committed at the time are included. Merging these again is harmless.
+	 */
+	static final long OVERLAP = 60_000;
+
+	/** Version of the archive format, the first version had no watermark */
+	private static final String FORMAT = "2";
+
+	/** Number of rows written or merged between progress updates */
+	private static final int BATCH_SIZE = 500;
+
+	/** Join table holding the labels assigned to activities */
+	private static final String ACTIVITY_LABEL_TABLE = "ACTIVITY_ACTIVITYLABEL";
+
+	/**
+	 * Describes how a table is exported and imported.
+	 */
+	private static final class Table {
+
+		/** Name of the archive entry */
+		final String entry;
+
+		/** Name of the table */
+		final String name;
+
+		/** Columns identifying a row when merging */
+		final String key;
+
+		/** Query selecting the rows to export */
+		final String query;
+
+		/** Column holding the modification time, <code>null</code> if always exported */
+		final String modified;
+
+		/** Whether deletions are recorded, see {@link DeletedRowTrigger} */
+		final boolean deletable;
+
+		/** Columns of the table that are not imported */
+		final String[] ignored;
+
+		Table(String entry, String name, String key, String query, String modified, boolean deletable,
+				String... ignored) {
+			this.entry = entry;
+			this.name = name;
+			this.key = key;
+			this.query = query;
+			this.modified = modified;
+			this.deletable = deletable;
+			this.ignored = ignored;
+		}
+
+		boolean isFiltered(Long since) {
+			return since != null && modified != null;
+		}
+
+		String getQuery(Long since) {
+			return isFiltered(since) ? query + " WHERE " + modified + " >= " + since : query;
+		}
+
+		/**
+		 * Unless only changes are exported, the rows of the table are counted
+		 * rather than those of the query, which is cheaper.
+		 */
+		String getCountQuery(Long since) {
+			return isFiltered(since) ? "SELECT COUNT(*) FROM (" + getQuery(since) + ")"
+					: "SELECT COUNT(*) FROM " + name;
+		}
+	}
+
+	/** The exported tables, in the order these are written and imported */
+	private static final List<Table> TABLES = Arrays.asList(
+			new Table(LABELS, "ACTIVITYLABEL", "ID", "SELECT * FROM ACTIVITYLABEL", "MODIFIED", true),
+			new Table(PROJECT_TYPES, "PROJECT_TYPE", "ID", "SELECT * FROM PROJECT_TYPE", null, false),
+			new Table(PROJECTS, "PROJECT", "NAME", "SELECT * FROM PROJECT", "MODIFIED", true),
+			new Table(TASKS, "TASK", "REPOSITORY_URL, TASK_ID", "SELECT * FROM TASK", "MODIFIED", false, "ID"),
+			new Table(ACTIVITIES, "ACTIVITY", "ID", "SELECT A.*, T.TASK_ID, T.REPOSITORY_URL "
+					+ "FROM ACTIVITY A LEFT JOIN TASK T ON T.ID = A.ACTIVITY_TASK", "A.MODIFIED", true,
+					"ACTIVITY_TASK"),
+			new Table(ACTIVITY_LABELS, ACTIVITY_LABEL_TABLE, "ACTIVITY_ID, LABELS_ID",
+					"SELECT L.* FROM " + ACTIVITY_LABEL_TABLE + " L JOIN ACTIVITY A ON A.ID = L.ACTIVITY_ID",
+					"A.MODIFIED", false));
+
+	private DatabaseArchive() {
+	}
+
+	/**
+	 * Returns the key column of a table where deleted rows are recorded.
+	 *
+	 * @param table name of the table
+	 * @return the key column, or <code>null</code> if deletions from the table
+	 *         are not recorded
+	 */
+	static String getKey(String table) {
+		return TABLES.stream().filter(t -> t.deletable && t.name.equals(table)).map(t -> t.key).findFirst()
+				.orElse(null);
+	}
+
+	/**
+	 * Writes all rows to an archive.
+	 *
+	 * @see #write(Connection, Path, Long, IProgressMonitor)
+	 */
+	static int write(Connection connection, Path archive, IProgressMonitor monitor) throws IOException, SQLException {
+		return write(connection, archive, null, monitor);
+	}
+
+	/**
+	 * Writes the rows written since the given time to an archive, or all rows if
+	 * no time is given. The archive is first written to a temporary file which
+	 * replaces the target when complete, so that a cancelled or failed export
+	 * does not leave a partial archive.
+	 *
+	 * @param connection connection to the database
+	 * @param archive    the archive file to write
+	 * @param since      the time in milliseconds since the epoch to include
+	 *                   changes from, or <code>null</code> for a full export
+	 * @param monitor    progress monitor, checked for cancellation
+	 * @return the number of rows written
+	 * @throws OperationCanceledException if the export was cancelled
+	 */
+	static int write(Connection connection, Path archive, Long since, IProgressMonitor monitor)
+			throws IOException, SQLException {
+		// rows written from now on are part of the next export
+		long until = System.currentTimeMillis();
+		List<Table> tables = new ArrayList<>();
+		int total = 0;
+		for (Table table : TABLES) {
+			// the label assignments are not required
+			if (!getColumns(connection, table.name).isEmpty()) {
+				tables.add(table);
+				total += count(connection, table.getCountQuery(since));
+			}
+		}
+		String deleted = since == null ? null
+				: "SELECT TABLE_NAME, ROW_KEY FROM DELETED_ROW WHERE MODIFIED >= " + since;
+		if (deleted != null) {
+			total += count(connection, "SELECT COUNT(*) FROM (" + deleted + ")");
+		}
+		monitor.beginTask("Exporting Timekeeper database", total);
+		Path temp = Files.createTempFile(archive.toAbsolutePath().getParent(), "export", ".tmp");
+		try {
+			Properties manifest = new Properties();
+			manifest.setProperty("format", FORMAT);
+			manifest.setProperty(UNTIL, Long.toString(until));
+			if (since != null) {
+				manifest.setProperty(SINCE, since.toString());
+			}
+			int rows = 0;
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+					ZipOutputStream zip = new ZipOutputStream(
+							new BufferedOutputStream(Channels.newOutputStream(channel), 65_536))) {
+				for (Table table : tables) {
+					rows += writeEntry(connection, zip, table.entry, table.getQuery(since), manifest, monitor);
+				}
+				if (deleted != null) {
+					rows += writeEntry(connection, zip, DELETED, deleted, manifest, monitor);
+				}
+				zip.putNextEntry(new ZipEntry(MANIFEST));
+				manifest.store(zip, "Timekeeper database export");
+				zip.closeEntry();
+			}
+			Files.move(temp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return rows;
+		} finally {
+			Files.deleteIfExists(temp);
+			monitor.done();
+		}
+	}
+
+	private static int writeEntry(Connection connection, ZipOutputStream zip, String name, String query,
+			Properties manifest, IProgressMonitor monitor) throws IOException, SQLException {
+		monitor.subTask(name);
+		zip.putNextEntry(new ZipEntry(name));
+		CRC32 crc = new CRC32();
+		// the writer is flushed, not closed, as that would close the archive
+		Writer writer = new OutputStreamWriter(new CheckedOutputStream(zip, crc), StandardCharsets.UTF_8);
+		int rows = 0;
+		try (PreparedStatement ps = connection.prepareStatement(query); ResultSet rs = ps.executeQuery()) {
+			ResultSetMetaData meta = rs.getMetaData();
+			int columns = meta.getColumnCount();
+			for (int i = 1; i <= columns; i++) {
+				writer.write(i > 1 ? "," : "");
+				writeValue(writer, meta.getColumnLabel(i));
+			}
+			writer.write('\n');
+			while (rs.next()) {
+				for (int i = 1; i <= columns; i++) {
+					writer.write(i > 1 ? "," : "");
+					writeValue(writer, rs.getString(i));
+				}
+				writer.write('\n');
+				if (++rows % BATCH_SIZE == 0) {
+					checkCanceled(monitor);
+					monitor.worked(BATCH_SIZE);
+				}
+			}
+		}
+		writer.flush();
+		zip.closeEntry();
+		checkCanceled(monitor);
+		monitor.worked(rows % BATCH_SIZE);
+		manifest.setProperty(name + ".rows", Integer.toString(rows));
+		manifest.setProperty(name + ".crc", Long.toHexString(crc.getValue()));
+		return rows;
+	}
+
+	/**
+	 * Writes a quoted value, or nothing if the value is <code>null</code>.
+	 */
+	private static void writeValue(Writer writer, String value) throws IOException {
+		if (value != null) {
+			writer.write('"');
+			writer.write(value.replace("\"", "\"\""));
+			writer.write('"');
+		}
+	}
+
+	/**
+	 * Merges the rows of an archive into the database, and deletes the rows
+	 * listed as deleted in an incremental export. If the archive has a manifest,
+	 * the number of rows and the checksum of each entry is verified. This should
+	 * be done within a transaction so that nothing is changed if the archive
+	 * turns out to be invalid or the import is cancelled.
+	 *
+	 * @param connection connection to the database
+	 * @param archive    the archive file to read
+	 * @param monitor    progress monitor, checked for cancellation
+	 * @return the number of rows merged or deleted
+	 * @throws IOException                if the archive is invalid
+	 * @throws OperationCanceledException if the import was cancelled
+	 */
+	static int read(Connection connection, Path archive, IProgressMonitor monitor) throws IOException, SQLException {
+		long size = Files.size(archive);
+		monitor.beginTask("Importing Timekeeper database", (int) (size / 1024) + 1);
+		Map<String, long[]> found = new HashMap<>();
+		Properties manifest = null;
+		int merged = 0;
+		try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ);
+				ZipInputStream zip = new ZipInputStream(new BufferedInputStream(
+						new ProgressInputStream(Channels.newInputStream(channel), monitor), 65_536))) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				String name = entry.getName();
+				monitor.subTask(name);
+				CRC32 crc = new CRC32();
+				InputStream in = new CheckedInputStream(new FilterInputStream(zip) {
+					@Override
+					public void close() {
+						// the archive is closed when done
+					}
+				}, crc);
+				int rows = 0;
+				Table table = getTable(name);
+				if (table != null) {
+					// archives holding the labels also hold the labels of every activity
+					rows = mergeEntry(connection, in, table, found.containsKey(LABELS), monitor);
+					merged += rows;
+				} else if (name.equals(DELETED)) {
+					rows = deleteRows(connection, in, monitor);
+					merged += rows;
+				} else if (name.equals(RELATIONS)) {
+					rows = updateRelations(connection, in, monitor);
+				} else if (name.equals(MANIFEST)) {
+					manifest = new Properties();
+					manifest.load(in);
+				}
+				in.transferTo(OutputStream.nullOutputStream());
+				found.put(name, new long[] { rows, crc.getValue() });
+			}
+		} finally {
+			monitor.done();
+		}
+		if (!found.containsKey(TASKS) || !found.containsKey(ACTIVITIES)) {
+			throw new IOException("'" + archive.getFileName() + "' is not a Timekeeper database export.");
+		}
+		if (manifest != null) {
+			verify(manifest, found);
+		}
+		return merged;
+	}
+
+	private static void verify(Properties manifest, Map<String, long[]> found) throws IOException {
+		String format = manifest.getProperty("format");
+		if (!"1".equals(format) && !FORMAT.equals(format)) {
+			throw new IOException("Unsupported export format '" + format + "'.");
+		}
+		for (String property : manifest.stringPropertyNames()) {
+			if (!property.endsWith(".rows")) {
+				continue;
+			}
+			String name = property.substring(0, property.length() - ".rows".length());
+			long[] actual = found.get(name);
+			String crc = manifest.getProperty(name + ".crc");
+			if (actual == null || crc == null || Long.parseLong(manifest.getProperty(property)) != actual[0]
+					|| Long.parseLong(crc, 16) != actual[1]) {
+				throw new IOException("'" + name + "' does not match the manifest, the export may be damaged.");
+			}
+		}
+	}
+
+	/**
+	 * Merges the rows of a CSV entry into the table. Only the columns present in
+	 * both the entry and the table are used, so that entries exported with an
+	 * older version of the schema can be imported. Activities are associated
+	 * with the task having the repository URL and task identifier of the row, if
+	 * present. Entries for tables that do not exist are skipped.
+	 *
+	 * @param replaceLabels whether the labels of merged activities are removed,
+	 *                      as the archive holds the labels to assign
+	 */
+	private static int mergeEntry(Connection connection, InputStream in, Table table, boolean replaceLabels,
+			IProgressMonitor monitor) throws IOException, SQLException {
+		List<String> existing = getColumns(connection, table.name);
+		if (existing.isEmpty()) {
+			return 0;
+		}
+		boolean clearLabels = replaceLabels && table.entry.equals(ACTIVITIES)
+				&& !getColumns(connection, ACTIVITY_LABEL_TABLE).isEmpty();
+		try (ResultSet csv = new Csv().read(new InputStreamReader(in, StandardCharsets.UTF_8), null)) {
+			ResultSetMetaData meta = csv.getMetaData();
+			List<Integer> indexes = new ArrayList<>();
+			List<String> columns = new ArrayList<>();
+			Map<String, Integer> header = new HashMap<>();
+			for (int i = 1; i <= meta.getColumnCount(); i++) {
+				String column = meta.getColumnLabel(i).toUpperCase(Locale.ROOT);
+				header.put(column, i);
+				if (existing.contains(column) && !Arrays.asList(table.ignored).contains(column)) {
+					indexes.add(i);
+					columns.add('"' + column + '"');
+				}
+			}
+			boolean relate = table.entry.equals(ACTIVITIES) && header.containsKey("TASK_ID")
+					&& header.containsKey("REPOSITORY_URL");
+			String sql = "MERGE INTO " + table.name + " (" + String.join(", ", columns)
+					+ (relate ? ", ACTIVITY_TASK" : "") + ") KEY (" + table.key + ") VALUES ("
+					+ columns.stream().map(c -> "?").collect(Collectors.joining(", "))
+					+ (relate ? ", (SELECT ID FROM TASK WHERE REPOSITORY_URL = ? AND TASK_ID = ?)" : "") + ")";
+			int rows = 0;
+			try (PreparedStatement ps = connection.prepareStatement(sql);
+					PreparedStatement clear = clearLabels ? connection.prepareStatement(
+							"DELETE FROM " + ACTIVITY_LABEL_TABLE + " WHERE ACTIVITY_ID = ?") : null) {
+				while (csv.next()) {
+					int p = 1;
+					for (int i : indexes) {
+						ps.setString(p++, csv.getString(i));
+					}
+					if (relate) {
+						ps.setString(p++, csv.getString(header.get("REPOSITORY_URL")));
+						ps.setString(p, csv.getString(header.get("TASK_ID")));
+					}
+					ps.addBatch();
+					if (clear != null) {
+						clear.setString(1, csv.getString(header.get("ID")));
+						clear.addBatch();
+					}
+					if (++rows % BATCH_SIZE == 0) {
+						executeBatch(ps, clear);
+						checkCanceled(monitor);
+					}
+				}
+				executeBatch(ps, clear);
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * Deletes the rows listed in the <i>deleted_row.csv</i> entry of an
+	 * incremental export. The labels assigned to deleted activities are removed
+	 * as well.
+	 */
+	private static int deleteRows(Connection connection, InputStream in, IProgressMonitor monitor)
+			throws IOException, SQLException {
+		boolean labels = !getColumns(connection, ACTIVITY_LABEL_TABLE).isEmpty();
+		Map<String, PreparedStatement> statements = new HashMap<>();
+		try (ResultSet csv = new Csv().read(new InputStreamReader(in, StandardCharsets.UTF_8), null)) {
+			int rows = 0;
+			while (csv.next()) {
+				String table = csv.getString("TABLE_NAME");
+				String key = getKey(table);
+				if (key == null) {
+					throw new IOException("Deletions from '" + table + "' cannot be imported.");
+				}
+				addBatch(connection, statements, "DELETE FROM " + table + " WHERE " + key + " = ?",
+						csv.getString("ROW_KEY"));
+				if (labels && table.equals("ACTIVITY")) {
+					addBatch(connection, statements, "DELETE FROM " + ACTIVITY_LABEL_TABLE + " WHERE ACTIVITY_ID = ?",
+							csv.getString("ROW_KEY"));
+				}
+				if (++rows % BATCH_SIZE == 0) {
+					executeBatch(statements.values().toArray(new PreparedStatement[0]));
+					checkCanceled(monitor);
+				}
+			}
+			executeBatch(statements.values().toArray(new PreparedStatement[0]));
+			return rows;
+		} finally {
+			for (PreparedStatement ps : statements.values()) {
+				ps.close();
+			}
+		}
+	}
+
+	private static void addBatch(Connection connection, Map<String, PreparedStatement> statements, String sql,
+			String key) throws SQLException {
+		PreparedStatement ps = statements.get(sql);
+		if (ps == null) {
+			ps = connection.prepareStatement(sql);
+			statements.put(sql, ps);
+		}
+		ps.setString(1, key);
+		ps.addBatch();
+	}
+
+	private static void executeBatch(PreparedStatement... statements) throws SQLException {
+		for (PreparedStatement ps : statements) {
+			if (ps != null) {
+				ps.executeBatch();
+			}
+		}
+	}
+
+	/**
+	 * Applies the relations of a <i>trackedtask_activity.csv</i> entry, as found
+	 * in exports made before the relation was stored with the activity.
+	 */
+	private static int updateRelations(Connection connection, InputStream in, IProgressMonitor monitor)
+			throws IOException, SQLException {
+		try (ResultSet csv = new Csv().read(new InputStreamReader(in, StandardCharsets.UTF_8), null);
+				PreparedStatement ps = connection.prepareStatement("UPDATE ACTIVITY SET ACTIVITY_TASK = "
+						+ "(SELECT ID FROM TASK WHERE REPOSITORY_URL = ? AND TASK_ID = ?) WHERE ID = ?")) {
+			int rows = 0;
+			while (csv.next()) {
+				ps.setString(1, csv.getString("REPOSITORY_URL"));
+				ps.setString(2, csv.getString("TASK_ID"));
+				ps.setString(3, csv.getString("ACTIVITIES_ID"));
+				ps.addBatch();
+				if (++rows % BATCH_SIZE == 0) {
+					ps.executeBatch();
+					checkCanceled(monitor);
+				}
+			}
+			ps.executeBatch();
+			return rows;
+		}
+	}
+
+	/**
+	 * Reads the manifest of an archive without reading the other entries.
+	 *
+	 * @param archive the archive file
+	 * @return the manifest, or <code>null</code> if the archive has none
+	 * @throws IOException if the file is not a zip archive
+	 */
+	static Properties readManifest(Path archive) throws IOException {
+		try (ZipFile zip = new ZipFile(archive.toFile())) {
+			ZipEntry entry = zip.getEntry(MANIFEST);
+			if (entry == null) {
+				return null;
+			}
+			Properties manifest = new Properties();
+			try (InputStream in = zip.getInputStream(entry)) {
+				manifest.load(in);
+			}
+			return manifest;
+		}
+	}
+
+	/**
+	 * Returns the watermark of the most recent export found in a folder, which
+	 * is where the next incremental export to the folder continues from.
+	 *
+	 * @param folder the folder holding exports
+	 * @return the watermark in milliseconds since the epoch, or <code>null</code>
+	 *         if the folder holds no exports with a watermark
+	 * @throws IOException if the folder cannot be read
+	 */
+	static Long getWatermark(Path folder) throws IOException {
+		List<Export> exports = findExports(folder);
+		return exports.isEmpty() ? null : exports.get(exports.size() - 1).until;
+	}
+
+	/**
+	 * Returns the exports that must be imported in order to have all changes up
+	 * to and including the given archive. This is the most recent full export
+	 * found in the same folder, followed by every incremental export made after
+	 * it. If no full export is found, the chain starts with the earliest
+	 * incremental export, so that the changes are merged with the database as
+	 * is.
+	 *
+	 * @param folder the folder holding exports
+	 * @param last   the last archive to import, or <code>null</code> to import
+	 *               all exports in the folder
+	 * @return the archives to import, in order
+	 * @throws IOException if an incremental export is missing from the chain
+	 */
+	static List<Path> getChain(Path folder, Path last) throws IOException {
+		List<Export> exports = findExports(folder);
+		if (last != null) {
+			Export end = exports.stream().filter(e -> e.path.getFileName().equals(last.getFileName()))
+					.findFirst()
+					.orElseThrow(() -> new IOException("'" + last.getFileName() + "' has no watermark."));
+			exports = exports.subList(0, exports.indexOf(end) + 1);
+		}
+		int start = 0;
+		for (int i = exports.size() - 1; i >= 0; i--) {
+			if (exports.get(i).since == null) {
+				start = i;
+				break;
+			}
+		}
+		List<Path> chain = new ArrayList<>();
+		for (int i = start; i < exports.size(); i++) {
+			Export export = exports.get(i);
+			if (i > start && export.since != null && export.since > exports.get(i - 1).until) {
+				throw new IOException("The changes made before '" + export.path.getFileName()
+						+ "' are missing, the export preceding it is '" + exports.get(i - 1).path.getFileName()
+						+ "'.");
+			}
+			chain.add(export.path);
+		}
+		return chain;
+	}
+
+	/**
+	 * An archive found in a folder, with the watermarks of its manifest.
+	 */
+	private static final class Export {
+
+		final Path path;
+
+		/** Changes are included from, <code>null</code> for a full export */
+		final Long since;
+
+		/** Changes are included until */
+		final long until;
+
+		Export(Path path, Long since, long until) {
+			this.path = path;
+			this.since = since;
+			this.until = until;
+		}
+	}
+
+	/**
+	 * Returns the archives with a watermark found in a folder, oldest first.
+	 */
+	private static List<Export> findExports(Path folder) throws IOException {
+		List<Export> exports = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*.zip")) {
+			for (Path path : stream) {
+				Properties manifest;
+				try {
+					manifest = readManifest(path);
+				} catch (IOException e) {
+					// not an archive
+					continue;
+				}
+				if (manifest != null && manifest.getProperty(UNTIL) != null) {
+					String since = manifest.getProperty(SINCE);
+					exports.add(new Export(path, since == null ? null : Long.valueOf(since),
+							Long.parseLong(manifest.getProperty(UNTIL))));
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid watermark, " + e.getMessage(), e);
+		}
+		exports.sort(Comparator.comparingLong(e -> e.until));
+		return exports;
+	}
+
+	private static Table getTable(String entry) {
+		return TABLES.stream().filter(t -> t.entry.equals(entry)).findFirst().orElse(null);
+	}
+
+	private static List<String> getColumns(Connection connection, String table) throws SQLException {
+		List<String> columns = new ArrayList<>();
+		try (PreparedStatement ps = connection
+				.prepareStatement("SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = ?")) {
+			ps.setString(1, table);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					columns.add(rs.getString(1));
+				}
+			}
+		}
+		return columns;
+	}
+
+	private static int count(Connection connection, String query) throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(query); ResultSet rs = ps.executeQuery()) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	private static void checkCanceled(IProgressMonitor monitor) {
+		if (monitor.isCanceled()) {
+			throw new OperationCanceledException();
+		}
+	}
+
+	/**
+	 * Reports the number of bytes read from the archive file as progress, in
+	 * kilobytes.
+	 */
+	private static class ProgressInputStream extends FilterInputStream {
+
+		private final IProgressMonitor monitor;
+
+		private long read;
+
+		ProgressInputStream(InputStream in, IProgressMonitor monitor) {
+			super(in);
+			this.monitor = monitor;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				advance(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				advance(n);
+			}
+			return n;
+		}
+
+		private void advance(int n) {
+			int before = (int) (read / 1024);
+			read += n;
+			monitor.worked((int) (read / 1024) - before);
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.h2.api.Trigger;
+
+/**
+ * Records the key of every row deleted from the table it is created for in the
+ * <i>DELETED_ROW</i> table, so that the deletion can be included in incremental
+ * exports. The trigger is created by the schema migration for each table that
+ * is exported incrementally and has rows that can be deleted. It must be public
+ * as it is instantiated by the database.
+ *
+ * @author Torkild U. Resheim
+ * @see DatabaseArchive
+ */
+public class DeletedRowTrigger implements Trigger {
+
+	private String table;
+
+	/** Index of the key column in the deleted row */
+	private int key;
+
+	@Override
+	public void init(Connection connection, String schemaName, String triggerName, String tableName,
+			boolean before, int type) throws SQLException {
+		table = tableName;
+		String column = DatabaseArchive.getKey(tableName);
+		if (column == null) {
+			throw new SQLException("Deletions from " + tableName + " are not recorded.");
+		}
+		try (PreparedStatement ps = connection.prepareStatement("SELECT ORDINAL_POSITION FROM "
+				+ "INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND COLUMN_NAME = ?")) {
+			ps.setString(1, schemaName);
+			ps.setString(2, tableName);
+			ps.setString(3, column);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					throw new SQLException(tableName + " has no " + column + " column.");
+				}
+				key = rs.getInt(1) - 1;
+			}
+		}
+	}
+
+	@Override
+	public void fire(Connection connection, Object[] oldRow, Object[] newRow) throws SQLException {
+		try (PreparedStatement ps = connection
+				.prepareStatement("INSERT INTO DELETED_ROW (TABLE_NAME, ROW_KEY, MODIFIED) VALUES (?, ?, ?)")) {
+			ps.setString(1, table);
+			ps.setString(2, String.valueOf(oldRow[key]));
+			ps.setLong(3, System.currentTimeMillis());
+			ps.executeUpdate();
+		}
+	}
+
+	@Override
+	public void close() {
+		// nothing to release
+	}
+
+	@Override
+	public void remove() {
+		// nothing to release
+	}
+
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.mylyn.tasks.core.IRepositoryListener;
+import org.eclipse.mylyn.tasks.core.IRepositoryManager;
+import org.eclipse.mylyn.tasks.core.TaskRepository;
+import org.eclipse.mylyn.tasks.ui.TasksUi;
+
+/**
+ * Maps repository URLs to Mylyn task repositories. The index is populated the
+ * first time it is used and kept up to date by listening to the repository
+ * manager, so that finding the repository of a task is a single lookup.
+ *
+ * @author Torkild U. Resheim
+ */
+final class RepositoryIndex implements IRepositoryListener {
+
+	private final Map<String, TaskRepository> repositories = new ConcurrentHashMap<>();
+
+	private IRepositoryManager manager;
+
+	private volatile boolean installed;
+
+	/**
+	 * Returns the repository with the given URL.
+	 *
+	 * @param url the repository URL
+	 * @return the repository or <code>null</code>
+	 */
+	TaskRepository get(String url) {
+		if (!installed) {
+			install();
+		}
+		return url == null ? null : repositories.get(url);
+	}
+
+	private synchronized void install() {
+		if (installed) {
+			return;
+		}
+		manager = TasksUi.getRepositoryManager();
+		if (manager == null) { // may happen during testing
+			return;
+		}
+		// listen first so that no repositories are missed
+		manager.addListener(this);
+		for (TaskRepository repository : manager.getAllRepositories()) {
+			repositories.put(repository.getRepositoryUrl(), repository);
+		}
+		installed = true;
+	}
+
+	/**
+	 * Stops listening to the repository manager and clears the index.
+	 */
+	synchronized void uninstall() {
+		if (manager != null) {
+			manager.removeListener(this);
+			manager = null;
+		}
+		repositories.clear();
+		installed = false;
+	}
+
+	@Override
+	public void repositoryAdded(TaskRepository repository) {
+		repositories.put(repository.getRepositoryUrl(), repository);
+	}
+
+	@Override
+	public void repositoryRemoved(TaskRepository repository) {
+		repositories.remove(repository.getRepositoryUrl(), repository);
+	}
+
+	@Override
+	public void repositorySettingsChanged(TaskRepository repository) {
+		// the URL is not changed by this
+	}
+
+	@Override
+	public void repositoryUrlChanged(TaskRepository repository, String oldUrl) {
+		repositories.remove(oldUrl, repository);
+		repositories.put(repository.getRepositoryUrl(), repository);
+	}
+
+}
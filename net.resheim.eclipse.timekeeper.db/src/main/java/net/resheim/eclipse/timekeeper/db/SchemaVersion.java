@@ -0,0 +1,404 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of which version of the database schema is installed, so that
+ * the schema only has to be checked and updated when the application has
+ * changed it. A checksum of all the <code>db/V*.sql</code> migration scripts
+ * is recorded in the database along with the version of the last script
+ * applied. When the checksum matches, EclipseLink DDL generation is turned off.
+ * Hence any change to the entity mapping must come with a new migration script.
+ * <p>
+ * The scripts are applied before EclipseLink is started, see
+ * {@link #prepare(Connection, Map)}, so each script applies to the schema as
+ * left by the previous one. EclipseLink then only extends the schema with
+ * what the scripts have left out. A new database is first given the schema
+ * EclipseLink created before the schema version was recorded, which is found
+ * in <code>db/baseline.sql</code>, so that new and existing databases are
+ * migrated the same way. Scripts up to and including {@link #BASELINE}
+ * describe the schema used before EclipseLink was introduced and are never
+ * applied.
+ * </p>
+ * <p>
+ * A statement may be preceded by one of these directives on a line of its own:
+ * </p>
+ * <ul>
+ * <li><code>-- @repeat</code> &ndash; the statement is executed repeatedly,
+ * committing after each, until it no longer updates any rows. This is used for
+ * rewriting large amounts of data in batches, the statement must limit the
+ * number of rows it updates.</li>
+ * <li><code>-- @generate</code> &ndash; the statement is a query, each row
+ * returned is a statement which is then executed. This is used where the name
+ * of a constraint or the shape of the schema is not known in advance.</li>
+ * </ul>
+ * <p>
+ * Applying the scripts is not atomic. H2 commits each DDL statement, and a
+ * repeated statement commits after each batch. The version of each script is
+ * recorded as soon as it has been applied, and the checksum when all have been
+ * applied. If a script fails part way, only that script is applied again on the
+ * next start, from its first statement, as later scripts may depend on what
+ * earlier ones have removed. Each script must therefore be re-runnable on top
+ * of its own partial result, using <code>IF [NOT] EXISTS</code> and conditions
+ * that skip rows which have already been rewritten.
+ * </p>
+ *
+ * @author Torkild U. Resheim
+ */
+final class SchemaVersion {
+
+	private static final Logger log = LoggerFactory.getLogger(SchemaVersion.class);
+
+	/** The last migration describing the schema prior to using EclipseLink */
+	static final int BASELINE = 2;
+
+	private static final String TABLE = "SCHEMA_VERSION";
+
+	/** Recorded until all scripts have been applied, never a CRC-32 value */
+	private static final long NO_CHECKSUM = -1;
+
+	/** A table of the baseline, the baseline is only created if missing */
+	private static final String BASELINE_TABLE = "TASK";
+
+	private static final String BASELINE_SCRIPT = "baseline.sql";
+
+	private static final Pattern NAME = Pattern.compile("V(\\d+)__(.*)\\.sql");
+
+	private static final String REPEAT = "-- @repeat";
+
+	private static final String GENERATE = "-- @generate";
+
+	/**
+	 * A single statement of a migration script.
+	 */
+	static final class Step {
+
+		final String sql;
+
+		/** The directive preceding the statement, if any */
+		final String directive;
+
+		Step(String sql, String directive) {
+			this.sql = sql;
+			this.directive = directive;
+		}
+
+		@Override
+		public String toString() {
+			return sql;
+		}
+	}
+
+	/**
+	 * A single migration script.
+	 */
+	static final class Migration {
+
+		final int version;
+
+		final String name;
+
+		final String script;
+
+		Migration(String name, String script) {
+			Matcher m = NAME.matcher(name);
+			if (!m.matches()) {
+				throw new IllegalArgumentException("Not a migration script: " + name);
+			}
+			this.version = Integer.parseInt(m.group(1));
+			this.name = name;
+			this.script = script;
+		}
+
+		/**
+		 * @return the individual statements of the script
+		 */
+		List<Step> getStatements() {
+			return parse(script);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final List<Migration> migrations;
+
+	/** The schema a new database is given before migrating, if any */
+	private final String baseline;
+
+	private final long checksum;
+
+	SchemaVersion(List<Migration> migrations) {
+		this(migrations, null);
+	}
+
+	SchemaVersion(List<Migration> migrations, String baseline) {
+		List<Migration> sorted = new ArrayList<>(migrations);
+		sorted.sort(Comparator.comparingInt(m -> m.version));
+		this.migrations = Collections.unmodifiableList(sorted);
+		this.baseline = baseline;
+		CRC32 crc = new CRC32();
+		for (Migration migration : this.migrations) {
+			crc.update(migration.name.getBytes(StandardCharsets.UTF_8));
+			crc.update(migration.script.getBytes(StandardCharsets.UTF_8));
+		}
+		this.checksum = crc.getValue();
+	}
+
+	/**
+	 * Splits the script into statements.
+	 */
+	private static List<Step> parse(String script) {
+		List<Step> statements = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		String directive = null;
+		for (String line : script.split("\\R")) {
+			if (line.trim().equals(REPEAT) || line.trim().equals(GENERATE)) {
+				directive = line.trim();
+				continue;
+			}
+			if (line.trim().startsWith("--")) {
+				continue;
+			}
+			sb.append(line).append('\n');
+			if (line.trim().endsWith(";")) {
+				statements.add(new Step(sb.toString().trim().replaceAll(";$", ""), directive));
+				sb.setLength(0);
+				directive = null;
+			}
+		}
+		if (sb.toString().trim().length() > 0) {
+			statements.add(new Step(sb.toString().trim(), directive));
+		}
+		return statements;
+	}
+
+	/**
+	 * Loads the migration scripts and the baseline found in the <code>db</code>
+	 * folder of the bundle.
+	 */
+	static SchemaVersion load(Bundle bundle) throws IOException {
+		List<Migration> migrations = new ArrayList<>();
+		Enumeration<URL> entries = bundle.findEntries("db", "V*.sql", false);
+		while (entries != null && entries.hasMoreElements()) {
+			URL url = entries.nextElement();
+			String path = url.getPath();
+			try (InputStream in = url.openStream()) {
+				migrations.add(new Migration(path.substring(path.lastIndexOf('/') + 1),
+						new String(in.readAllBytes(), StandardCharsets.UTF_8)));
+			}
+		}
+		URL url = bundle.getEntry("db/" + BASELINE_SCRIPT);
+		if (url == null) {
+			return new SchemaVersion(migrations);
+		}
+		try (InputStream in = url.openStream()) {
+			return new SchemaVersion(migrations, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Loads the migration scripts and the baseline found in the given folder.
+	 */
+	static SchemaVersion load(Path folder) throws IOException {
+		List<Migration> migrations = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "V*.sql")) {
+			for (Path path : stream) {
+				migrations.add(new Migration(path.getFileName().toString(),
+						new String(Files.readAllBytes(path), StandardCharsets.UTF_8)));
+			}
+		}
+		Path path = folder.resolve(BASELINE_SCRIPT);
+		return new SchemaVersion(migrations,
+				Files.exists(path) ? new String(Files.readAllBytes(path), StandardCharsets.UTF_8) : null);
+	}
+
+	long getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * @return the version of the last migration script
+	 */
+	int getVersion() {
+		return migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).version;
+	}
+
+	/**
+	 * Tests whether the schema of the database has been updated with the current
+	 * set of migration scripts.
+	 *
+	 * @param connection connection to the database
+	 * @return <code>true</code> if the schema is current
+	 */
+	boolean isCurrent(Connection connection) {
+		try (Statement s = connection.createStatement();
+				ResultSet rs = s.executeQuery("SELECT CHECKSUM FROM " + TABLE)) {
+			return rs.next() && rs.getLong(1) == checksum;
+		} catch (SQLException e) {
+			// the table does not exist yet
+			return false;
+		}
+	}
+
+	/**
+	 * Brings the schema of the database up to date before EclipseLink is
+	 * started with the given properties. If the schema is current, EclipseLink
+	 * DDL generation is turned off, otherwise the migration scripts are
+	 * applied.
+	 *
+	 * @param connection connection to the database, which should be kept open
+	 *                   until EclipseLink has connected
+	 * @param props      the properties used for creating the entity manager
+	 *                   factory
+	 * @return <code>true</code> if the schema was already current
+	 */
+	boolean prepare(Connection connection, Map<String, Object> props) throws SQLException {
+		if (isCurrent(connection)) {
+			// no need to have EclipseLink inspect the schema
+			props.put(PersistenceUnitProperties.DDL_GENERATION, PersistenceUnitProperties.NONE);
+			return true;
+		}
+		int applied = migrate(connection);
+		log.info("Database schema updated to version {}, {} migrations applied", getVersion(), applied);
+		return false;
+	}
+
+	/**
+	 * Applies the migration scripts that have not already been applied to the
+	 * database, recording the version of each, and finally the checksum. A new
+	 * database is first given the baseline schema. This must be called before
+	 * EclipseLink is started. A failure only rolls back the changes that have
+	 * not yet been committed, see the class description.
+	 *
+	 * @param connection connection to the database
+	 * @return the number of scripts applied
+	 */
+	int migrate(Connection connection) throws SQLException {
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try (Statement s = connection.createStatement()) {
+			s.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (VERSION INT NOT NULL, CHECKSUM BIGINT NOT NULL)");
+			int installed = BASELINE;
+			boolean versioned = false;
+			try (ResultSet rs = s.executeQuery("SELECT VERSION FROM " + TABLE)) {
+				if (rs.next()) {
+					installed = Math.max(installed, rs.getInt(1));
+					versioned = true;
+				}
+			}
+			if (!versioned && baseline != null && !hasTable(s, BASELINE_TABLE)) {
+				log.info("Creating the baseline schema");
+				for (Step step : parse(baseline)) {
+					execute(connection, s, step);
+				}
+			}
+			int applied = 0;
+			for (Migration migration : migrations) {
+				if (migration.version > installed) {
+					log.info("Applying database migration '{}'", migration);
+					for (Step step : migration.getStatements()) {
+						execute(connection, s, step);
+					}
+					// so that the script is not applied again should a later one fail
+					record(connection, s, migration.version, NO_CHECKSUM);
+					installed = migration.version;
+					applied++;
+				}
+			}
+			record(connection, s, installed, checksum);
+			return applied;
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Records the version of the last script applied and the checksum of the
+	 * scripts, and commits.
+	 */
+	private static void record(Connection connection, Statement s, int version, long checksum)
+			throws SQLException {
+		s.execute("DELETE FROM " + TABLE);
+		try (PreparedStatement ps = connection
+				.prepareStatement("INSERT INTO " + TABLE + " (VERSION, CHECKSUM) VALUES (?, ?)")) {
+			ps.setInt(1, version);
+			ps.setLong(2, checksum);
+			ps.executeUpdate();
+		}
+		connection.commit();
+	}
+
+	private static boolean hasTable(Statement s, String table) throws SQLException {
+		try (ResultSet rs = s.executeQuery(
+				"SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = '" + table + "'")) {
+			return rs.next() && rs.getInt(1) > 0;
+		}
+	}
+
+	private static void execute(Connection connection, Statement s, Step step) throws SQLException {
+		if (REPEAT.equals(step.directive)) {
+			int total = 0;
+			int updated;
+			while ((updated = s.executeUpdate(step.sql)) > 0) {
+				connection.commit();
+				total += updated;
+			}
+			log.info("Updated {} rows", total);
+		} else if (GENERATE.equals(step.directive)) {
+			List<String> generated = new ArrayList<>();
+			try (ResultSet rs = s.executeQuery(step.sql)) {
+				while (rs.next()) {
+					generated.add(rs.getString(1));
+				}
+			}
+			for (String sql : generated) {
+				log.info("Executing '{}'", sql);
+				s.execute(sql);
+			}
+		} else {
+			s.execute(step.sql);
+		}
+	}
+
+}
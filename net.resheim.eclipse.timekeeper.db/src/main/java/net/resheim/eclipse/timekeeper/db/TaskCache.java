@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * A bounded cache of {@link Task} instances keyed by their identifier. Lookups
+ * do not take any locks; only eviction is serialized. Entries that have not been
+ * accessed for a while are evicted, and if the cache grows beyond its maximum
+ * size the least recently used entries are evicted.
+ *
+ * @author Torkild U. Resheim
+ */
+public final class TaskCache {
+
+	private static final class Entry {
+
+		final Task task;
+
+		volatile long lastAccess;
+
+		Entry(Task task, long lastAccess) {
+			this.task = task;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final ConcurrentHashMap<GlobalTaskId, Entry> entries = new ConcurrentHashMap<>();
+
+	private final int maxSize;
+
+	private final long maxIdle;
+
+	private final LongSupplier clock;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxSize the maximum number of tasks in the cache
+	 * @param maxIdle the number of milliseconds a task can stay in the cache
+	 *                without being accessed
+	 */
+	public TaskCache(int maxSize, long maxIdle) {
+		this(maxSize, maxIdle, System::currentTimeMillis);
+	}
+
+	/**
+	 * Creates a new cache using the given clock.
+	 *
+	 * @param maxSize the maximum number of tasks in the cache
+	 * @param maxIdle the number of milliseconds a task can stay in the cache
+	 *                without being accessed
+	 * @param clock   supplier of the current time in milliseconds
+	 */
+	TaskCache(int maxSize, long maxIdle, LongSupplier clock) {
+		this.maxSize = maxSize;
+		this.maxIdle = maxIdle;
+		this.clock = clock;
+	}
+
+	/**
+	 * Returns the cached task with the given identifier.
+	 *
+	 * @param id the task identifier
+	 * @return the task or <code>null</code>
+	 */
+	public Task get(GlobalTaskId id) {
+		Entry entry = entries.get(id);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		entry.lastAccess = clock.getAsLong();
+		hits.increment();
+		return entry.task;
+	}
+
+	/**
+	 * Adds the task to the cache, evicting other tasks if the cache has grown
+	 * too large.
+	 *
+	 * @param id   the task identifier
+	 * @param task the task
+	 */
+	public void put(GlobalTaskId id, Task task) {
+		entries.put(id, new Entry(task, clock.getAsLong()));
+		if (entries.size() > maxSize) {
+			cleanUp();
+		}
+	}
+
+	/**
+	 * Removes the task with the given identifier, typically because it has been
+	 * deleted.
+	 *
+	 * @param id the task identifier
+	 */
+	public void invalidate(GlobalTaskId id) {
+		entries.remove(id);
+	}
+
+	/**
+	 * Removes all tasks, typically because the database content has been
+	 * replaced.
+	 */
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	/**
+	 * Evicts all tasks that have been idle for too long, then the least recently
+	 * used tasks until the cache is within its maximum size.
+	 */
+	public synchronized void cleanUp() {
+		long now = clock.getAsLong();
+		List<long[]> remaining = new ArrayList<>(entries.size());
+		List<Map.Entry<GlobalTaskId, Entry>> candidates = new ArrayList<>(entries.size());
+		for (Map.Entry<GlobalTaskId, Entry> e : entries.entrySet()) {
+			// take a snapshot, the access time may change while sorting
+			long lastAccess = e.getValue().lastAccess;
+			if (now - lastAccess > maxIdle) {
+				evict(e.getKey(), e.getValue());
+			} else {
+				remaining.add(new long[] { lastAccess, candidates.size() });
+				candidates.add(e);
+			}
+		}
+		int excess = remaining.size() - maxSize;
+		if (excess > 0) {
+			remaining.sort(Comparator.comparingLong(r -> r[0]));
+			for (int i = 0; i < excess; i++) {
+				Map.Entry<GlobalTaskId, Entry> e = candidates.get((int) remaining.get(i)[1]);
+				evict(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private void evict(GlobalTaskId id, Entry entry) {
+		// the entry may have been replaced in the meantime
+		if (entries.remove(id, entry)) {
+			evictions.increment();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "TaskCache [size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+				+ ", evictions=" + getEvictionCount() + "]";
+	}
+
+}
@@ -12,30 +12,50 @@ package net.resheim.eclipse.timekeeper.db;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.sql.Date;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.ZoneId;
-import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.PersistenceException;
-import javax.persistence.TypedQuery;
+import javax.persistence.PersistenceUnitUtil;
 
 import org.eclipse.core.resources.ISaveContext;
 import org.eclipse.core.resources.ISaveParticipant;
@@ -45,27 +65,38 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.ISafeRunnable;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.ListenerList;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Plugin;
 import org.eclipse.core.runtime.SafeRunner;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.core.runtime.preferences.IScopeContext;
 import org.eclipse.core.runtime.preferences.InstanceScope;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.mylyn.internal.tasks.core.AbstractTask;
 import org.eclipse.mylyn.internal.tasks.core.AbstractTaskContainer;
+import org.eclipse.mylyn.internal.tasks.core.ITaskListChangeListener;
+import org.eclipse.mylyn.internal.tasks.core.TaskContainerDelta;
 import org.eclipse.mylyn.internal.tasks.core.TaskRepositoryManager;
 import org.eclipse.mylyn.tasks.core.IRepositoryManager;
+import org.eclipse.mylyn.internal.tasks.ui.TasksUiPlugin;
 import org.eclipse.mylyn.tasks.core.ITask;
 import org.eclipse.mylyn.tasks.core.TaskRepository;
 import org.eclipse.mylyn.tasks.core.data.TaskAttribute;
 import org.eclipse.mylyn.tasks.core.data.TaskData;
 import org.eclipse.mylyn.tasks.ui.TasksUi;
 import org.eclipse.osgi.service.datalocation.Location;
+import org.eclipse.persistence.config.CacheUsage;
 import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.internal.weaving.PersistenceWeaved;
+import org.eclipse.persistence.internal.weaving.PersistenceWeavedLazy;
 import org.eclipse.persistence.jpa.PersistenceProvider;
 import org.eclipse.ui.preferences.ScopedPreferenceStore;
+import org.h2.Driver;
 import org.osgi.framework.BundleContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -90,7 +121,8 @@ public class TimekeeperPlugin extends Plugin {
 	
 	private static final Logger log = LoggerFactory.getLogger(TimekeeperPlugin.class);
 	
-	private static final CountDownLatch latch = new CountDownLatch(1);
+	/** Completed when the database is connected and ready for use */
+	private static final CompletableFuture<TimekeeperPlugin> ready = new CompletableFuture<>();
 
 	public static final String BUNDLE_ID = "net.resheim.eclipse.timekeeper.db"; //$NON-NLS-1$
 
@@ -108,10 +140,66 @@ public class TimekeeperPlugin extends Plugin {
 
 	private static TimekeeperPlugin instance;
 
+	private static EntityManagerFactory entityManagerFactory = null;
+
 	private static EntityManager entityManager = null;
 
+	/**
+	 * Serializes access to the shared {@link #entityManager}, which is not thread
+	 * safe. Work done outside of the UI should rather use its own entity manager,
+	 * see {@link #openEntityManager()}. The persistence context is cleared each
+	 * time the database is saved, so that it does not keep growing, see
+	 * {@link #getManaged(Object)}.
+	 */
+	private static final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Stores activity changes and ticks without blocking the caller. The
+	 * entities written by a commit are no longer pending, so they are not
+	 * counted again by the next save. Ticks are applied to the managed instance
+	 * of the task, as the persistence context may have been cleared since.
+	 */
+	private static final WriteBehindQueue writeBehind = new WriteBehindQueue(lock,
+			() -> runInTransaction(em -> {
+				DailyTotals.flush(em);
+				ChangedEntities.flush(em);
+			}), TimekeeperPlugin::getManaged);
+
+	/** Milliseconds to wait for queued changes to be stored when saving */
+	private static final long FLUSH_TIMEOUT = 10_000;
+
+	/**
+	 * System property for when to force journal writes to disk, one of "never",
+	 * "events" (the default) or "always"
+	 */
+	public static final String PROP_JOURNAL_SYNC = "net.resheim.eclipse.timekeeper.db.journal.sync";
+
+	/** Journal of activity changes not yet committed, may be <code>null</code> */
+	private static volatile TrackingJournal journal;
+
 	private static Job saveDatabaseJob;
 
+	/** Number of entities written by the last save */
+	private static volatile int lastSaveCount;
+
+	/** Milliseconds spent by the last save */
+	private static volatile long lastSaveTime;
+
+	/** Number of activities assigned epoch second values in each transaction */
+	private static final int EPOCH_BATCH_SIZE = 500;
+
+	/**
+	 * Whether or not all activities have been assigned epoch second values, so
+	 * that these can be used when querying.
+	 */
+	private static volatile boolean epochReady = false;
+
+	/** Maximum number of tasks kept in the cache */
+	private static final int TASK_CACHE_SIZE = 1_000;
+
+	/** Number of milliseconds a task is kept in the cache without being used */
+	private static final long TASK_CACHE_IDLE = 8 * 60 * 60 * 1_000L;
+
 	private static final ListenerList<DatabaseChangeListener> listeners = new ListenerList<>();
 
 	/** Task repository kind identifier for Bugzilla. */
@@ -129,11 +217,21 @@ public class TimekeeperPlugin extends Plugin {
 
 	private static final String LOCAL_REPO_KEY_ID = "net.resheim.eclipse.timekeeper.repo-id"; //$NON-NLS-1$
 	
-	/**
-	 * Some features connected to Mylyn has no knowledge of Timekeeper tasks and in
-	 * order to avoid excessive lookups in the database, we utilise a simple cache.
-	 */
-	private static Map<ITask, Task> linkCache = new HashMap<>();
+	/** Tasks that have been linked with Mylyn tasks */
+	private static final TaskCache taskCache = new TaskCache(TASK_CACHE_SIZE, TASK_CACHE_IDLE);
+
+	/** Mylyn task repositories by URL */
+	private static final RepositoryIndex repositoryIndex = new RepositoryIndex();
+
+	/** Removes deleted Mylyn tasks from the cache */
+	private final ITaskListChangeListener taskListListener = deltas -> {
+		for (TaskContainerDelta delta : deltas) {
+			if (delta.getKind() == TaskContainerDelta.Kind.DELETED && delta.getElement() instanceof ITask) {
+				ITask task = (ITask) delta.getElement();
+				taskCache.invalidate(new GlobalTaskId(getRepositoryUrl(task), task.getTaskId()));
+			}
+		}
+	};
 
 	public void addListener(DatabaseChangeListener listener) {
 		listeners.add(listener);
@@ -195,12 +293,7 @@ public class TimekeeperPlugin extends Plugin {
 					}
 					log.info("Using database at '{}'", jdbc_url);
 
-					// baseline the database
-//					Flyway flyway = Flyway.configure()
-//							.dataSource(jdbc_url, "sa", "")
-//							.baselineOnMigrate(false)
-//							.locations("classpath:/db/").load();
-//					flyway.migrate();
+					long time = System.currentTimeMillis();
 					// https://www.eclipse.org/forums/index.php?t=msg&goto=541155&
 					props.put(PersistenceUnitProperties.CLASSLOADER, TimekeeperPlugin.class.getClassLoader());
 					props.put(PersistenceUnitProperties.JDBC_URL, jdbc_url);
@@ -208,16 +301,37 @@ public class TimekeeperPlugin extends Plugin {
 					props.put(PersistenceUnitProperties.JDBC_USER, "sa");
 					props.put(PersistenceUnitProperties.JDBC_PASSWORD, "");
 					props.put(PersistenceUnitProperties.LOGGING_LEVEL, "fine"); // fine / fine
-					// we want Flyway to create the database, it gives us better control over migrating?
-//					props.put(PersistenceUnitProperties.DDL_GENERATION, "create-tables");
-//					props.put(PersistenceUnitProperties.JAVASE_DB_INTERACTION, "true");
-					createEntityManager(props);
+					SchemaVersion schema = SchemaVersion.load(getBundle());
+					// keep the connection open so that the database is only opened once
+					try (Connection connection = openConnection(jdbc_url)) {
+						// the migrations must be applied before EclipseLink extends the schema
+						boolean current = schema.prepare(connection, props);
+						long ddl = System.currentTimeMillis();
+						createEntityManager(props);
+						log.info("Entity manager created in {} ms, {}", System.currentTimeMillis() - ddl,
+								current ? "without schema generation" : "schema extended by EclipseLink");
+						if (!isWoven()) {
+							log.warn("The entity classes have not been woven, relations will not be loaded lazily");
+						}
+						log.info("Connected to database in {} ms, schema was {}", System.currentTimeMillis() - time,
+								current ? "current" : "updated");
+					}
 				} catch (Exception e) {
-					throw new RuntimeException("Could not connect to Timekeeper database at " + jdbc_url, e);
+					RuntimeException failure = new RuntimeException("Could not connect to Timekeeper database at " + jdbc_url, e);
+					ready.completeExceptionally(failure);
+					throw failure;
+				}
+				openJournal(jdbc_url);
+				try {
+					cleanTaskActivities();
+				} catch (RuntimeException e) {
+					log.error("Could not recover running activities", e);
 				}
-				cleanTaskActivities();
+				// complete first, so that listeners may wait for the database
+				ready.complete(this);
 				notifyListeners();
-				latch.countDown();
+				createEpochJob().schedule();
+				createDailyTotalsJob().schedule();
 		};
 		Thread thread = new Thread(runnable);
         thread.start();
@@ -229,14 +343,292 @@ public class TimekeeperPlugin extends Plugin {
 //		connectDatabaseJob.schedule();
 	}
 
+	/**
+	 * Opens the journal of the database at the given location, replaying any
+	 * entries left from the previous session before it is used.
+	 * 
+	 * @param jdbcUrl the database location
+	 */
+	private static void openJournal(String jdbcUrl) {
+		Path path = getJournalPath(jdbcUrl);
+		try {
+			TrackingJournal j = new TrackingJournal(path, getJournalSyncPolicy());
+			List<TrackingJournal.Entry> entries = j.read();
+			if (!entries.isEmpty()) {
+				try {
+					int changed = inTransaction(em -> {
+						int n = TrackingJournal.replay(em, entries);
+						DailyTotals.flush(em);
+						return n;
+					});
+					log.info("Replayed {} of {} journal entries from '{}'", changed, entries.size(), path);
+				} catch (PersistenceException e) {
+					Path failed = path.resolveSibling(path.getFileName() + ".failed");
+					Files.copy(path, failed, StandardCopyOption.REPLACE_EXISTING);
+					log.error("Could not replay journal, the entries were saved to '{}'", failed, e);
+				}
+				j.clear();
+			}
+			journal = j;
+			writeBehind.setJournal(j);
+		} catch (IOException e) {
+			log.error("Could not open journal at '{}'", path, e);
+		}
+	}
+
+	/**
+	 * Returns the location of the journal, which is next to the database files
+	 * if these are local. As the database may be shared between workspaces,
+	 * each workspace has its own journal.
+	 * 
+	 * @param jdbcUrl the database location
+	 * @return the journal location
+	 */
+	static Path getJournalPath(String jdbcUrl) {
+		String location = jdbcUrl.startsWith("jdbc:h2:") ? jdbcUrl.substring("jdbc:h2:".length()) : "";
+		int parameters = location.indexOf(';');
+		if (parameters >= 0) {
+			location = location.substring(0, parameters);
+		}
+		if (location.startsWith("file:")) {
+			location = location.substring("file:".length());
+		}
+		Path database;
+		if (location.isEmpty() || location.startsWith("tcp:") || location.startsWith("ssl:")
+				|| location.startsWith("mem:")) {
+			// not a local database, use the default location
+			database = Paths.get(System.getProperty("user.home"), ".timekeeper", "h2db");
+		} else if (location.startsWith("~")) {
+			database = Paths.get(System.getProperty("user.home") + location.substring(1));
+		} else {
+			database = Paths.get(location);
+		}
+		String workspace = "default";
+		Location instanceLocation = Platform.isRunning() ? Platform.getInstanceLocation() : null;
+		if (instanceLocation != null && instanceLocation.getURL() != null) {
+			workspace = Integer.toHexString(instanceLocation.getURL().toString().hashCode());
+		}
+		return database.resolveSibling(database.getFileName() + "-" + workspace + ".journal");
+	}
+
+	private static TrackingJournal.SyncPolicy getJournalSyncPolicy() {
+		String policy = System.getProperty(PROP_JOURNAL_SYNC, TrackingJournal.SyncPolicy.EVENTS.name());
+		try {
+			return TrackingJournal.SyncPolicy.valueOf(policy.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown journal sync policy '{}'", policy);
+			return TrackingJournal.SyncPolicy.EVENTS;
+		}
+	}
+
+	/**
+	 * Writes the event to the journal if it is in use.
+	 * 
+	 * @return the journal record or -1
+	 */
+	private static long journal(TrackingJournal.Type type, GlobalTaskId id, LocalDateTime time) {
+		return journal(type, id, null, time);
+	}
+
+	/**
+	 * Writes the event to the journal if it is in use, along with the summary
+	 * of the task.
+	 * 
+	 * @return the journal record or -1
+	 */
+	private static long journal(TrackingJournal.Type type, GlobalTaskId id, String summary, LocalDateTime time) {
+		TrackingJournal j = journal;
+		if (j == null) {
+			return -1;
+		}
+		try {
+			return j.append(type, id, summary, time);
+		} catch (IOException e) {
+			log.error("Could not write {} of '{}' to the journal", type, id, e);
+			return -1;
+		}
+	}
+
+	private static Connection openConnection(String jdbcUrl) throws SQLException {
+		Properties info = new Properties();
+		info.put("user", "sa");
+		info.put("password", "");
+		return new Driver().connect(jdbcUrl, info);
+	}
+
+	/**
+	 * Tests whether or not the entity classes have been woven when building, as
+	 * lazy loading of relations and change tracking depend on this.
+	 * 
+	 * @return <code>true</code> if the classes are woven
+	 */
+	static boolean isWoven() {
+		return PersistenceWeaved.class.isAssignableFrom(Task.class)
+				&& PersistenceWeavedLazy.class.isAssignableFrom(Activity.class);
+	}
+
 	private static void createEntityManager(Map<String, Object> props) {
-		entityManager = new PersistenceProvider()
-				.createEntityManagerFactory("net.resheim.eclipse.timekeeper.db", props)
-				.createEntityManager(props);
+		entityManagerFactory = new PersistenceProvider()
+				.createEntityManagerFactory("net.resheim.eclipse.timekeeper.db", props);
+		entityManager = entityManagerFactory.createEntityManager(props);
+	}
+
+	/**
+	 * Creates a job that assigns epoch second values to activities stored before
+	 * these columns were introduced. This is done in small batches using a
+	 * separate entity manager, starting with the most recent activities. Until
+	 * the job is done, period queries will use the timestamp columns.
+	 * 
+	 * @return the job
+	 */
+	private static Job createEpochJob() {
+		Job job = new Job("Updating Timekeeper activities") {
+
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				EntityManager em = entityManagerFactory.createEntityManager();
+				try {
+					int total = 0;
+					while (!monitor.isCanceled()) {
+						int updated = updateEpochBatch(em);
+						if (updated == 0) {
+							epochReady = true;
+							log.info("Epoch seconds assigned to {} activities", total);
+							return Status.OK_STATUS;
+						}
+						total += updated;
+					}
+					return Status.CANCEL_STATUS;
+				} catch (PersistenceException e) {
+					return new Status(IStatus.ERROR, BUNDLE_ID, "Could not update activities", e);
+				} finally {
+					em.close();
+				}
+			}
+
+		};
+		job.setSystem(true);
+		job.setPriority(Job.DECORATE);
+		return job;
+	}
+
+	/**
+	 * Creates a job that calculates the daily totals unless this has been
+	 * completed, which is not the case the first time this version of the
+	 * database is used, or if the previous calculation was interrupted.
+	 * 
+	 * @return the job
+	 */
+	private static Job createDailyTotalsJob() {
+		Job job = new Job("Calculating Timekeeper daily totals") {
+
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				EntityManager em = openEntityManager();
+				try {
+					if (DailyTotals.isBuilt(em)) {
+						DailyTotals.setReady(true);
+						return Status.OK_STATUS;
+					}
+				} catch (PersistenceException e) {
+					return new Status(IStatus.ERROR, BUNDLE_ID, "Could not calculate daily totals", e);
+				} finally {
+					em.close();
+				}
+				try {
+					getDefault().rebuildDailyTotals();
+					return Status.OK_STATUS;
+				} catch (PersistenceException e) {
+					return new Status(IStatus.ERROR, BUNDLE_ID, "Could not calculate daily totals", e);
+				}
+			}
+
+		};
+		job.setSystem(true);
+		job.setPriority(Job.DECORATE);
+		return job;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int updateEpochBatch(EntityManager em) {
+		EntityTransaction transaction = em.getTransaction();
+		transaction.begin();
+		try {
+			List<Object[]> rows = em
+					.createNativeQuery("SELECT ID, START_TIME, END_TIME FROM ACTIVITY "
+							+ "WHERE START_EPOCH IS NULL AND START_TIME IS NOT NULL ORDER BY START_TIME DESC")
+					.setMaxResults(EPOCH_BATCH_SIZE)
+					.getResultList();
+			for (Object[] row : rows) {
+				Timestamp start = (Timestamp) row[1];
+				Timestamp end = (Timestamp) row[2];
+				em.createNativeQuery("UPDATE ACTIVITY SET START_EPOCH = ?, END_EPOCH = ? WHERE ID = ?")
+						.setParameter(1, Activity.toEpochSecond(start.toLocalDateTime()))
+						.setParameter(2, end == null ? Activity.OPEN : Activity.toEpochSecond(end.toLocalDateTime()))
+						.setParameter(3, row[0])
+						.executeUpdate();
+			}
+			transaction.commit();
+			return rows.size();
+		} finally {
+			if (transaction.isActive()) {
+				transaction.rollback();
+			}
+		}
 	}
 	
+	/**
+	 * Returns the cache of tasks that have been linked with Mylyn tasks.
+	 * 
+	 * @return the task cache
+	 */
+	public static TaskCache getTaskCache() {
+		return taskCache;
+	}
+
+	/**
+	 * Returns whether or not the database is connected and ready for use.
+	 * 
+	 * @return <code>true</code> if the database is ready
+	 * @see #whenReady()
+	 */
 	public boolean isReady() {
-		return latch.getCount() == 0;
+		return ready.isDone() && !ready.isCompletedExceptionally();
+	}
+
+	/**
+	 * Returns a future that is completed when the database has been connected,
+	 * the journal has been replayed and any dangling activities have been
+	 * recovered. If the database could not be connected, the future completes
+	 * exceptionally. Dependent actions that are not asynchronous are executed
+	 * on the connecting thread, or immediately if the database is already ready.
+	 * 
+	 * @return a future completed with this plug-in
+	 */
+	public CompletableFuture<TimekeeperPlugin> whenReady() {
+		return ready.copy();
+	}
+
+	/**
+	 * Returns the Timekeeper {@link Task} associated with the given Mylyn task
+	 * once the database is ready.
+	 * 
+	 * @param task the Mylyn task
+	 * @return a future completed with the task
+	 * @see #getTask(ITask)
+	 */
+	public CompletableFuture<Task> getTaskWhenReady(ITask task) {
+		return ready.thenApply(plugin -> plugin.getTask(task));
+	}
+
+	/**
+	 * Returns all activity labels once the database is ready.
+	 * 
+	 * @return a future completed with the labels
+	 * @see #getLabels()
+	 */
+	public static CompletableFuture<List<ActivityLabel>> getLabelsWhenReady() {
+		return ready.thenApply(plugin -> getLabels().collect(Collectors.toList()));
 	}
 
 	public class WorkspaceSaveParticipant implements ISaveParticipant {
@@ -275,16 +667,129 @@ public class TimekeeperPlugin extends Plugin {
 		return instance;
 	}
 	
+	/**
+	 * Returns the entity manager shared with the user interface. It is guarded
+	 * by a lock, so reading must be done within
+	 * {@link #withEntityManager(Function)} and modifications within
+	 * {@link #inTransaction(Function)} or {@link #runInTransaction(Consumer)}.
+	 * 
+	 * @return the shared entity manager
+	 */
 	public EntityManager getEntityManager() {
 		return entityManager;
 	}
 
+	/**
+	 * Creates a new entity manager for use by a single thread, typically a
+	 * background job. The caller is responsible for closing it when done, and
+	 * instances obtained from it must not be passed to the user interface.
+	 * 
+	 * @return a new entity manager
+	 */
+	public static EntityManager openEntityManager() {
+		return entityManager.getEntityManagerFactory().createEntityManager();
+	}
+
+	/**
+	 * Applies the work to the shared entity manager within a transaction, while
+	 * holding the lock that guards it. If a transaction is already active the
+	 * work becomes part of it, otherwise a new transaction is started and
+	 * committed when done. Should the work fail, a transaction started here is
+	 * rolled back.
+	 * 
+	 * @param work the work to do
+	 * @return the result of the work
+	 */
+	public static <T> T inTransaction(Function<EntityManager, T> work) {
+		lock.lock();
+		EntityTransaction transaction = null;
+		boolean begun = false;
+		try {
+			transaction = entityManager.getTransaction();
+			begun = !transaction.isActive();
+			if (begun) {
+				transaction.begin();
+			}
+			T result = work.apply(entityManager);
+			if (begun) {
+				transaction.commit();
+			}
+			return result;
+		} finally {
+			if (begun && transaction.isActive()) {
+				transaction.rollback();
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Applies the work to the shared entity manager while holding the lock that
+	 * guards it, without starting a transaction. This is used by background
+	 * jobs reading entities that are to be shown in the user interface. The
+	 * entity manager is <code>null</code> until the database is ready.
+	 * 
+	 * @param work the work to do
+	 * @return the result of the work
+	 */
+	public static <T> T withEntityManager(Function<EntityManager, T> work) {
+		lock.lock();
+		try {
+			return work.apply(entityManager);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the instance of the entity managed by the shared entity manager.
+	 * The persistence context is cleared when the database is saved, so entities
+	 * obtained before that, such as those of a view model, are detached. Changes
+	 * made to these are not stored, so an entity that has been held for a while
+	 * must be obtained again using this method before it is modified, within
+	 * the same transaction.
+	 * 
+	 * @param entity the entity, which may be detached
+	 * @return the managed entity, or <code>null</code> if it has been removed
+	 */
+	public static <T> T getManaged(T entity) {
+		return withEntityManager(em -> em == null ? entity
+				: find(em, em.getEntityManagerFactory().getPersistenceUnitUtil(), entity));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T find(EntityManager em, PersistenceUnitUtil util, T entity) {
+		if (entity == null || em.contains(entity)) {
+			return entity;
+		}
+		Object id = util.getIdentifier(entity);
+		// not yet persisted, which is done by cascade from the managed owner
+		if (id == null) {
+			return entity;
+		}
+		return (T) em.find(entity.getClass(), id);
+	}
+
+	/**
+	 * Performs the work on the shared entity manager within a transaction.
+	 * 
+	 * @param work the work to do
+	 * @see #inTransaction(Function)
+	 */
+	public static void runInTransaction(Consumer<EntityManager> work) {
+		inTransaction(em -> {
+			work.accept(em);
+			return null;
+		});
+	}
+
 	@Override
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		log.info("Starting TimekeeperPlugin");
 		connectToDatabase();
 		createSaveJob();
+		TasksUiPlugin.getTaskList().addChangeListener(taskListListener);
 		ISaveParticipant saveParticipant = new WorkspaceSaveParticipant();
 		ResourcesPlugin.getWorkspace().addSaveParticipant(BUNDLE_ID, saveParticipant);
 	}
@@ -292,84 +797,125 @@ public class TimekeeperPlugin extends Plugin {
 	/**
 	 * In some cases the Mylyn task can be deactivated without the tracked task
 	 * being properly updated. This can happen for instance when the workbench is
-	 * closed before the database has been updated. In this case some guesswork is
-	 * applied using data from Mylyn.
+	 * closed before the database has been updated. In this case the activity is
+	 * ended at the last tick, which is the last time the user was known to work
+	 * on the task. Note that events not yet stored when the workbench was
+	 * closed have already been replayed from the journal. If there is no usable
+	 * tick, the end time is determined using data from Mylyn.
 	 */
 	private void cleanTaskActivities() {
-		TypedQuery<Task> createQuery = entityManager.createQuery("SELECT t FROM Task t",
-				Task.class);
-		List<Task> resultList = createQuery.getResultList();
-		for (Task trackedTask : resultList) {
-			trackedTask.getCurrentActivity().ifPresent(activity -> {
-				ITask task = trackedTask.getMylynTask() == null ? getMylynTask(trackedTask)
-						: trackedTask.getMylynTask();
-				// note that the ITask may not exist in this workspace
-				if (task != null && !task.isActive()) {
-					// try to figure out when it was last active
-					ZonedDateTime start = activity.getStart().atZone(ZoneId.systemDefault());
-					ZonedDateTime end = start.plusMinutes(30);
-					Calendar s = Calendar.getInstance();
-					Calendar e = Calendar.getInstance();
-					while (true) {
-						s.setTime(Date.from(start.toInstant()));
-						e.setTime(Date.from(end.toInstant()));
-						long elapsedTime = TasksUi.getTaskActivityManager().getElapsedTime(task, s, e);
-						// update the end time on the activity
-						if (elapsedTime == 0 || e.after(Calendar.getInstance())) {
-							activity.setEnd(LocalDateTime.ofInstant(e.toInstant(), ZoneId.systemDefault()));
-							trackedTask.endActivity();
-							break;
-						}
-						start = start.plusMinutes(30);
-						end = end.plusMinutes(30);
-					}
-				}
+		long begin = System.nanoTime();
+		// the current activity is loaded lazily, so it is resolved while holding the lock
+		Map<Task, Activity> running = withEntityManager(em -> {
+			Map<Task, Activity> activities = new LinkedHashMap<>();
+			for (Task trackedTask : em.createNamedQuery("Task.findRunning", Task.class).getResultList()) {
+				trackedTask.getCurrentActivity().ifPresent(activity -> activities.put(trackedTask, activity));
+			}
+			return activities;
+		});
+		// determining the end time may require querying Mylyn, which is done
+		// without holding the lock. There is rarely more than one running
+		// activity, so this is not worth doing in parallel.
+		Map<Task, LocalDateTime> ends = new HashMap<>();
+		running.forEach((trackedTask, activity) -> {
+			ITask task = trackedTask.getMylynTask() == null ? getMylynTask(trackedTask)
+					: trackedTask.getMylynTask();
+			// note that the ITask may not exist in this workspace
+			if (task != null && !task.isActive()) {
+				ends.put(trackedTask, getRecoveredEnd(trackedTask, activity, task));
+			}
+		});
+		if (!ends.isEmpty()) {
+			runInTransaction(em -> {
+				ends.forEach((trackedTask, end) -> {
+					trackedTask.getCurrentActivity().ifPresent(activity -> activity.setEnd(end));
+					trackedTask.endActivity();
+				});
+				DailyTotals.flush(em);
 			});
 		}
+		log.info("Recovered {} of {} running activities in {} ms", ends.size(), running.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+	}
+
+	/**
+	 * Returns the most likely end time of an activity that was never ended.
+	 */
+	private static LocalDateTime getRecoveredEnd(Task trackedTask, Activity activity, ITask task) {
+		LocalDateTime start = activity.getStart();
+		LocalDateTime tick = trackedTask.getTick();
+		if (tick != null && !tick.isBefore(start)) {
+			return tick;
+		}
+		return ActivityRecovery.findLastActive(start, LocalDateTime.now(),
+				(from, to) -> TasksUi.getTaskActivityManager().getElapsedTime(task, toCalendar(from), toCalendar(to)));
+	}
+
+	private static Calendar toCalendar(LocalDateTime time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+		return calendar;
 	}
 
 	@Override
 	public void stop(BundleContext context) throws Exception {
+		TasksUiPlugin.getTaskList().removeChangeListener(taskListListener);
+		repositoryIndex.uninstall();
+		log.info("Stopping TimekeeperPlugin, {}, {} pending writes", taskCache, writeBehind.getDepth());
 		if (entityManager != null && entityManager.isOpen()) {
+			writeBehind.shutdown(FLUSH_TIMEOUT);
 			entityManager.close();
+			clearPending();
+		}
+		if (journal != null) {
+			journal.close();
 		}
 		super.stop(context);
 	}
 
 	/**
 	 * Returns the Timekeeper {@link Task} associated with the given Mylyn
-	 * task. If no such task exists it will be created.
+	 * task. If no such task exists it will be created. If the database is not
+	 * ready yet, <code>null</code> is returned, so this is only suitable where
+	 * there is nothing to show until then. Work that must be done with the task
+	 * should rather use {@link #getTaskWhenReady(ITask)}.
 	 * 
 	 * @param task the Mylyn task
 	 * @return a {@link Task} associated with the Mylyn task
-	 * @throws InterruptedException
+	 * @see #getTaskWhenReady(ITask)
 	 */
 	public Task getTask(ITask task) {
 		// the UI will typically attempt to get some task details before the database is ready 
 		if (entityManager == null) {
 			return null;
 		}
-		if (linkCache.containsKey(task)) {
-			return linkCache.get(task);
-		}
 		GlobalTaskId id = new GlobalTaskId(TimekeeperPlugin.getRepositoryUrl(task), task.getTaskId());
-		Task found = entityManager.find(Task.class, id);
-		if (found == null) {
-			// no such tracked task exists, create one
-			Task tt = new Task(task);
-			entityManager.persist(tt);
-			linkCache.put(task, tt);
-			return tt;
-		} else {
-			log.info("Task '{}' was not linked with Mylyn task", found);
-			// make sure there is a link between the two tasks, this would be the case if the tracked task was just
-			// loaded from the database
-			if (found.getTaskLinkStatus().equals(TaskLinkStatus.UNDETERMINED)) { 
-				found.linkWithMylynTask(task);
-				entityManager.persist(found);
+		Task cached = taskCache.get(id);
+		if (cached != null) {
+			return cached;
+		}
+		lock.lock();
+		try {
+			Task found = findTask(entityManager, id);
+			if (found == null) {
+				// no such tracked task exists, create one
+				Task tt = new Task(task);
+				entityManager.persist(tt);
+				taskCache.put(id, tt);
+				return tt;
+			} else {
+				log.info("Task '{}' was not linked with Mylyn task", found);
+				// make sure there is a link between the two tasks, this would be the case if the tracked task was just
+				// loaded from the database
+				if (found.getTaskLinkStatus().equals(TaskLinkStatus.UNDETERMINED)) { 
+					found.linkWithMylynTask(task);
+					entityManager.persist(found);
+				}
+				taskCache.put(id, found);
+				return found;
 			}
-			linkCache.put(task, found);
-			return found;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -383,55 +929,203 @@ public class TimekeeperPlugin extends Plugin {
 	public static ITask getMylynTask(Task task) {
 		// get the repository then find the task. Seems like the Mylyn API is
 		// a bit limited in this area as I could not find something more usable
-		Optional<TaskRepository> tr = TasksUi
-				.getRepositoryManager()
-				.getAllRepositories()
-				.stream()
-				.filter(r -> r.getRepositoryUrl().equals(task.getRepositoryUrl())).findFirst();
-		if (tr.isPresent()) {
-			return TasksUi.getRepositoryModel().getTask(tr.get(), task.getTaskId());
+		TaskRepository repository = repositoryIndex.get(task.getRepositoryUrl());
+		if (repository != null) {
+			return TasksUi.getRepositoryModel().getTask(repository, task.getTaskId());
 		}
 		return null;
 	}
 
 	/**
-	 * Exports Timekeeper related data to two separate CSV files. One for
-	 * {@link Task}, another for {@link Activity} instances and yet another
-	 * for the relations between these two.
+	 * Exports the database to a zip archive.
 	 * 
-	 * TODO: Compress into zip
+	 * @param archive the archive file to create
+	 * @return the number of exported rows
+	 * @throws IOException
+	 * @see #exportTo(Path, IProgressMonitor)
+	 */
+	public int exportTo(Path archive) throws IOException {
+		return exportTo(archive, new NullProgressMonitor());
+	}
+
+	/**
+	 * Exports the database to a zip archive holding one CSV file for each of
+	 * {@link Task}, {@link Activity}, {@link Project} and {@link ActivityLabel}
+	 * instances, along with a manifest used to verify the content when imported.
+	 * The relation between tasks and activities is stored with the activity,
+	 * using the repository URL and identifier of the task as the surrogate key is
+	 * only valid within the database. Rows are streamed from the database to the
+	 * archive.
 	 * 
-	 * @param path the path to the directory
+	 * @param archive the archive file to create
+	 * @param monitor progress monitor, the export is cancelled if requested
+	 * @return the number of exported rows
 	 * @throws IOException
+	 * @throws OperationCanceledException if the export was cancelled
 	 */
-	public int exportTo(Path path) throws IOException {
-		if (!path.toFile().exists()) {
-			Files.createDirectory(path);
+	public int exportTo(Path archive, IProgressMonitor monitor) throws IOException {
+		return export(archive, null, monitor);
+	}
+
+	/**
+	 * Exports the changes made since the previous export to the given folder.
+	 * The folder is meant to hold a series of exports, such as nightly backups.
+	 * The first export to the folder is a full export, the following hold only
+	 * the tasks, activities, projects and labels written after the watermark of
+	 * the most recent export in the folder, along with the keys of those deleted.
+	 * The time this takes is thus proportional to the number of changes. A
+	 * folder of such exports is restored using {@link #importFrom(Path)}.
+	 * 
+	 * @param folder  the folder to create the archive in
+	 * @param monitor progress monitor, the export is cancelled if requested
+	 * @return the number of exported rows
+	 * @throws IOException
+	 * @throws OperationCanceledException if the export was cancelled
+	 */
+	public int exportChanges(Path folder, IProgressMonitor monitor) throws IOException {
+		Files.createDirectories(folder);
+		Long watermark = DatabaseArchive.getWatermark(folder);
+		Long since = watermark == null ? null : watermark - DatabaseArchive.OVERLAP;
+		String name = "timekeeper-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+		Path archive = folder.resolve(name + ".zip");
+		for (int i = 1; Files.exists(archive); i++) {
+			archive = folder.resolve(name + "-" + i + ".zip");
+		}
+		return export(archive, since, monitor);
+	}
+
+	private int export(Path archive, Long since, IProgressMonitor monitor) throws IOException {
+		// make sure pending changes are included, the archive is read using
+		// another entity manager so these must be committed first
+		flushWrites();
+		updateDailyTotals();
+		// a separate entity manager is used so that the user interface is not blocked
+		EntityManager em = openEntityManager();
+		EntityTransaction transaction = em.getTransaction();
+		try {
+			transaction.begin();
+			int exported = DatabaseArchive.write(em.unwrap(Connection.class), archive, since, monitor);
+			transaction.commit();
+			return exported;
+		} catch (PersistenceException | SQLException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			if (transaction.isActive()) {
+				transaction.rollback();
+			}
+			em.close();
 		}
-		Path tasks = path.resolve("trackedtask.csv");
-		Path activities = path.resolve("activity.csv");
-		Path relations = path.resolve("trackedtask_activity.csv");
-		EntityTransaction transaction = entityManager.getTransaction();
-		transaction.begin();
-		int tasksExported = entityManager
-				.createNativeQuery("CALL CSVWRITE('" + tasks + "', 'SELECT * FROM TRACKEDTASK');").executeUpdate();
-		int activitiesExported = entityManager
-				.createNativeQuery("CALL CSVWRITE('" + activities + "', 'SELECT * FROM ACTIVITY');").executeUpdate();
-		// relations are not automatically created, so we do this the easy way
-		entityManager.createNativeQuery("CALL CSVWRITE('" + relations + "', 'SELECT * FROM TRACKEDTASK_ACTIVITY');")
-				.executeUpdate();
-		transaction.commit();
-		return tasksExported + activitiesExported;
 	}
 
 	/**
 	 * Import and merge records from the specified location.
 	 * 
-	 * @param path root location of the
-	 * @return
+	 * @param path the archive or folder to import from
+	 * @return the number of imported tasks and activities
 	 * @throws IOException
+	 * @see #importFrom(Path, IProgressMonitor)
 	 */
 	public int importFrom(Path path) throws IOException {
+		return importFrom(path, new NullProgressMonitor());
+	}
+
+	/**
+	 * Import and merge records from the specified location. This is either an
+	 * archive created by {@link #exportTo(Path, IProgressMonitor)}, a folder of
+	 * archives created by {@link #exportChanges(Path, IProgressMonitor)}, or a
+	 * folder holding the CSV files of an older export.
+	 * <p>
+	 * The archives of a folder are merged in order, starting with the most
+	 * recent full export. Likewise, if the archive holds only changes, the
+	 * archives preceding it in the same folder are merged first. Exports made
+	 * prior to the relation between tasks and activities being stored with the
+	 * activity also contain a <i>trackedtask_activity.csv</i> file, if present
+	 * the relations in this file are applied to the imported activities. Nothing
+	 * is imported if an archive does not match its manifest, an archive is
+	 * missing from the chain, or the import is cancelled.
+	 * </p>
+	 * 
+	 * @param path    the archive or folder to import from
+	 * @param monitor progress monitor, the import is cancelled if requested
+	 * @return the number of imported tasks and activities
+	 * @throws IOException
+	 * @throws OperationCanceledException if the import was cancelled
+	 */
+	public int importFrom(Path path, IProgressMonitor monitor) throws IOException {
+		if (!Files.exists(path)) {
+			throw new IOException("'" + path + "' does not exist.");
+		}
+		List<Path> chain;
+		if (Files.isDirectory(path)) {
+			chain = Files.exists(path.resolve("trackedtask.csv")) ? null : DatabaseArchive.getChain(path, null);
+			if (chain != null && chain.isEmpty()) {
+				throw new IOException("'" + path + "' holds no exports.");
+			}
+		} else {
+			Properties manifest = DatabaseArchive.readManifest(path);
+			boolean changes = manifest != null && manifest.getProperty(DatabaseArchive.SINCE) != null;
+			chain = changes ? DatabaseArchive.getChain(path.toAbsolutePath().getParent(), path)
+					: Collections.singletonList(path);
+		}
+		// pending changes must be stored before they are merged with the imported
+		flushWrites();
+		updateDailyTotals();
+		int imported = 0;
+		EntityManager em = openEntityManager();
+		EntityTransaction transaction = em.getTransaction();
+		try {
+			transaction.begin();
+			em.createNativeQuery("SET REFERENTIAL_INTEGRITY FALSE;").executeUpdate();
+			try {
+				if (chain == null) {
+					imported = importFolder(em, path);
+				} else {
+					SubMonitor progress = SubMonitor.convert(monitor, chain.size());
+					for (Path archive : chain) {
+						imported += DatabaseArchive.read(em.unwrap(Connection.class), archive, progress.split(1));
+					}
+				}
+			} finally {
+				em.createNativeQuery("SET REFERENTIAL_INTEGRITY TRUE;").executeUpdate();
+			}
+			// calculated again on the next start should this be interrupted
+			DailyTotals.invalidate(em);
+			transaction.commit();
+			DailyTotals.setReady(false);
+		} catch (PersistenceException | SQLException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			if (transaction.isActive()) {
+				transaction.rollback();
+			}
+			em.close();
+		}
+		try {
+			// cached instances do not have the imported content, so these are
+			// dropped and read again when used
+			entityManager.getEntityManagerFactory().getCache().evictAll();
+			writeBehind.flush(TimekeeperPlugin::saveAndClear).get(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+			rebuildDailyTotals();
+			notifyListeners();
+			return imported;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(e.getMessage());
+		} catch (PersistenceException | ExecutionException | TimeoutException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Merges the CSV files of an export made before these were stored in an
+	 * archive. This must be called within a transaction.
+	 * 
+	 * @param em   the entity manager to use
+	 * @param path root location of the exported files
+	 * @return the number of imported tasks and activities
+	 * @throws IOException
+	 */
+	private static int importFolder(EntityManager em, Path path) throws IOException {
 		Path tasks = path.resolve("trackedtask.csv");
 		Path activities = path.resolve("activity.csv");
 		Path relations = path.resolve("trackedtask_activity.csv");
@@ -441,35 +1135,88 @@ public class TimekeeperPlugin extends Plugin {
 		if (!activities.toFile().exists()) {
 			throw new IOException("'activity.csv' does not exist in the specified location.");
 		}
-		if (!relations.toFile().exists()) {
-			throw new IOException("'trackedtask_activity.csv' does not exist in the specified location.");
+		// surrogate keys are assigned by this database
+		int tasksImported = mergeCsv(em, "TASK", "REPOSITORY_URL, TASK_ID", tasks, "ID");
+		int activitiesImported = mergeCsv(em, "ACTIVITY", "ID", activities, "ACTIVITY_TASK");
+		updateRelations(em, activities, "ID");
+		if (relations.toFile().exists()) {
+			updateRelations(em, relations, null);
 		}
-		EntityTransaction transaction = entityManager.getTransaction();
-		try {
-			transaction.begin();
-			entityManager.createNativeQuery("SET REFERENTIAL_INTEGRITY FALSE;").executeUpdate();
-			int tasksImported = entityManager
-					.createNativeQuery("MERGE INTO TRACKEDTASK (SELECT * FROM CSVREAD('" + tasks + "'));")
-					.executeUpdate();
-			int activitiesImported = entityManager
-					.createNativeQuery("MERGE INTO ACTIVITY (SELECT * FROM CSVREAD('" + activities + "'));")
-					.executeUpdate();
-			entityManager
-					.createNativeQuery("MERGE INTO TRACKEDTASK_ACTIVITY (SELECT * FROM CSVREAD('" + relations + "'));")
-					.executeUpdate();
-			entityManager.createNativeQuery("SET REFERENTIAL_INTEGRITY TRUE;").executeUpdate();
-			transaction.commit();
-			// update all instances with potentially new content
-			TypedQuery<Task> createQuery = entityManager.createQuery("SELECT t FROM Task t",
-					Task.class);
-			List<Task> resultList = createQuery.getResultList();
-			for (Task trackedTask : resultList) {
-				entityManager.refresh(trackedTask);
+		return tasksImported + activitiesImported;
+	}
+
+	/**
+	 * Merges the rows of a CSV file into the given table. Only the columns that
+	 * are present in both the file and the table are used, so that files
+	 * exported with an older version of the schema can be imported.
+	 *
+	 * @param em      the entity manager to use
+	 * @param table   name of the table
+	 * @param key     the columns identifying a row
+	 * @param file    the CSV file
+	 * @param ignored columns of the table that are not to be imported
+	 * @return the number of rows merged
+	 * @throws IOException if the file cannot be read
+	 */
+	private static int mergeCsv(EntityManager em, String table, String key, Path file, String... ignored)
+			throws IOException {
+		List<?> existing = em
+				.createNativeQuery("SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = ?1")
+				.setParameter(1, table)
+				.getResultList();
+		String columns = readCsvHeader(file).stream()
+				.filter(existing::contains)
+				.filter(c -> !Arrays.asList(ignored).contains(c))
+				.map(c -> '"' + c + '"')
+				.collect(Collectors.joining(", "));
+		return em.createNativeQuery("MERGE INTO " + table + " (" + columns + ") KEY (" + key + ") SELECT "
+				+ columns + " FROM CSVREAD('" + file + "');").executeUpdate();
+	}
+
+	/**
+	 * Applies the relations between tasks and activities found in a CSV file to
+	 * the activities. The task is identified by the repository URL and task
+	 * identifier columns of the file. This is either the file with the
+	 * activities, or the <i>trackedtask_activity.csv</i> file of older exports.
+	 *
+	 * @param em       the entity manager to use
+	 * @param file     the CSV file
+	 * @param activity the column identifying the activity, or <code>null</code>
+	 *                 to use the first column with a name starting with
+	 *                 "ACTIVIT"
+	 * @throws IOException if the file cannot be read or is not as expected
+	 */
+	private static void updateRelations(EntityManager em, Path file, String activity) throws IOException {
+		List<String> header = readCsvHeader(file);
+		String activityId = header.stream()
+				.filter(c -> activity == null ? c.startsWith("ACTIVIT") : c.equals(activity)).findFirst()
+				.orElseThrow(() -> new IOException("'" + file.getFileName() + "' has no activity column."));
+		Optional<String> taskId = header.stream().filter(c -> c.endsWith("TASK_ID")).findFirst();
+		Optional<String> repositoryUrl = header.stream().filter(c -> c.endsWith("REPOSITORY_URL")).findFirst();
+		if (!taskId.isPresent() || !repositoryUrl.isPresent()) {
+			if (activity == null) {
+				throw new IOException("'" + file.getFileName() + "' has no task column.");
 			}
-			return tasksImported + activitiesImported;
-		} catch (PersistenceException e) {
-			transaction.rollback();
-			throw new IOException(e.getMessage());
+			// not an export of activities with tasks
+			return;
+		}
+		String relations = "SELECT R.\"" + activityId + "\" AS ACTIVITY, T.ID AS TASK FROM CSVREAD('" + file
+				+ "') R JOIN TASK T ON T.TASK_ID = R.\"" + taskId.get() + "\" AND T.REPOSITORY_URL = R.\""
+				+ repositoryUrl.get() + "\"";
+		em.createNativeQuery("UPDATE ACTIVITY A SET ACTIVITY_TASK = (SELECT TASK FROM (" + relations
+				+ ") WHERE ACTIVITY = A.ID) WHERE A.ID IN (SELECT ACTIVITY FROM (" + relations + "));")
+				.executeUpdate();
+	}
+
+	/**
+	 * @return the upper case column names of the first line of a CSV file
+	 */
+	private static List<String> readCsvHeader(Path file) throws IOException {
+		try (Stream<String> lines = Files.lines(file)) {
+			String header = lines.findFirst().orElseThrow(() -> new IOException("'" + file.getFileName() + "' is empty."));
+			return Stream.of(header.split(","))
+					.map(c -> c.trim().replace("\"", "").toUpperCase(Locale.ROOT))
+					.collect(Collectors.toList());
 		}
 	}
 
@@ -523,14 +1270,21 @@ public class TimekeeperPlugin extends Plugin {
 			@Override
 			protected IStatus run(IProgressMonitor monitor) {
 				if (entityManager != null && entityManager.isOpen()) {
-					List<Project> resultList = entityManager.createNamedQuery("Project.findAll", Project.class).getResultList();
-					EntityTransaction transaction = entityManager.getTransaction();
-					transaction.begin();
-					for (Object object : resultList) {
-						entityManager.persist(object);
-						log.debug("Storing project {}",object);
+					long begin = System.nanoTime();
+					try {
+						// no other change is applied while the context is cleared
+						lastSaveCount = writeBehind.flush(TimekeeperPlugin::saveAndClear).get(FLUSH_TIMEOUT,
+								TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return Status.CANCEL_STATUS;
+					} catch (ExecutionException | TimeoutException e) {
+						return new Status(IStatus.ERROR, BUNDLE_ID, "Could not save the Timekeeper database", e);
 					}
-					transaction.commit();
+					lastSaveTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+					log.info("Saved {} changed entities in {} ms", lastSaveCount, lastSaveTime);
+					// the view models hold detached entities, and are obtained again
+					getDefault().notifyListeners();
 					return Status.OK_STATUS;
 				} else {
 					return new Status(IStatus.ERROR, BUNDLE_ID, "Cannot persist data – no database connection.");
@@ -598,8 +1352,14 @@ public class TimekeeperPlugin extends Plugin {
 		return "<undetermined>";
 	}
 	
+	/**
+	 * Returns the project with the given name.
+	 * 
+	 * @param title the name of the project
+	 * @return the project or <code>null</code> if there is no such project
+	 */
 	public static Project getProject(String title) {
-		return entityManager.find(Project.class, title);
+		return withEntityManager(em -> em.find(Project.class, title));
 	}
 	
 	/**
@@ -610,44 +1370,159 @@ public class TimekeeperPlugin extends Plugin {
 	 * @return
 	 */
 	public static Project createAndSaveProject(ITask task) {
-		EntityTransaction transaction = entityManager.getTransaction();
-		boolean activeTransaction = transaction.isActive();
 		String name = getMylynProjectName(task);
 		String typeId = task.getConnectorKind();
-		ProjectType type = entityManager.find(ProjectType.class, typeId);
-		if (!activeTransaction) {
-			transaction.begin();
-		}
-		if (type == null) {
-			type = new ProjectType(typeId);
-			entityManager.persist(type);
-		}
-		Project project = new Project(type, name);
-		entityManager.persist(project);
-		if (!activeTransaction) {
-			transaction.commit();
-		}
-		return project;
-		
+		return inTransaction(em -> {
+			ProjectType type = em.find(ProjectType.class, typeId);
+			if (type == null) {
+				type = new ProjectType(typeId);
+				em.persist(type);
+			}
+			Project project = new Project(type, name);
+			em.persist(project);
+			return project;
+		});
 	}
 
 	/**
-	 * Return all tracked tasks, those that are associated with a Mylyn task will have the proper assignment.
+	 * Return all tracked tasks having activities in the week starting at the given
+	 * date, those that are associated with a Mylyn task will have the proper
+	 * assignment.
 	 * 
+	 * @param startDate the first day of the week
 	 * @return a stream of tasks
 	 */
 	public static Stream<Task> getTasks(LocalDate startDate) {
-		if (entityManager == null) {
+		// the tasks are managed by the shared entity manager, so they are also
+		// linked while holding the lock
+		return withEntityManager(em -> getTasks(em, startDate).collect(Collectors.toList())).stream();
+	}
+
+	/**
+	 * Return all tracked tasks having activities in the week starting at the given
+	 * date, using the given entity manager. This is typically one obtained from
+	 * {@link #openEntityManager()} so that the tasks can be processed without
+	 * interfering with those shown in the user interface.
+	 * 
+	 * @param em        the entity manager to use
+	 * @param startDate the first day of the week
+	 * @return a stream of tasks
+	 */
+	public static Stream<Task> getTasks(EntityManager em, LocalDate startDate) {
+		List<Task> tasks = findTasks(em, startDate, startDate.plusDays(7)).collect(Collectors.toList());
+		linkWithMylynTasks(tasks);
+		return tasks.stream();
+	}
+
+	/**
+	 * Return all tracked tasks that have activities overlapping the period from the
+	 * start date up to, but not including, the end date. The filtering is done by
+	 * the database so only the relevant tasks are loaded. Note that the tasks are
+	 * not linked with their Mylyn counterparts.
+	 * 
+	 * @param startDate the first day of the period
+	 * @param endDate   the first day after the period
+	 * @return a stream of tasks
+	 */
+	public static Stream<Task> findTasks(LocalDate startDate, LocalDate endDate) {
+		return withEntityManager(em -> findTasks(em, startDate, endDate).collect(Collectors.toList())).stream();
+	}
+
+	private static Stream<Task> findTasks(EntityManager em, LocalDate startDate, LocalDate endDate) {
+		if (em == null) {
 			return Stream.empty();
 		}
-		return entityManager.createNamedQuery("Task.findAll", Task.class)
+		if (epochReady) {
+			return em.createNamedQuery("Task.findByEpochPeriod", Task.class)
+					.setParameter("start", Activity.toEpochSecond(startDate))
+					.setParameter("end", Activity.toEpochSecond(endDate))
+					.getResultStream();
+		}
+		return em.createNamedQuery("Task.findByPeriod", Task.class)
+				.setParameter("start", LocalDateTime.of(startDate, LocalTime.MIN))
+				.setParameter("end", LocalDateTime.of(endDate, LocalTime.MIN))
+				.getResultStream();
+	}
+
+	/**
+	 * Applies the work to all tracked tasks having activities in the week
+	 * starting at the given date. The tasks are obtained by an entity manager
+	 * of their own, which is closed when done, so that the database is queried
+	 * without holding the lock of the shared entity manager. Hence the tasks
+	 * must not be modified or shown in the user interface, for that these must
+	 * be obtained using {@link #getManagedTasks(Collection)}. Note that the
+	 * tasks are not linked with their Mylyn counterparts.
+	 * 
+	 * @param startDate the first day of the week
+	 * @param work      the work to do
+	 * @return the result of the work
+	 */
+	public static <T> T queryTasks(LocalDate startDate, Function<List<Task>, T> work) {
+		EntityManager em = openEntityManager();
+		try {
+			return work.apply(findTasks(em, startDate, startDate.plusDays(7)).collect(Collectors.toList()));
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Returns the given tasks as managed by the shared entity manager, while
+	 * holding its lock. As the tasks have been read by another entity manager
+	 * these are usually found in the cache, so few if any queries are required.
+	 * Tasks that have been removed in the meantime are left out. Note that the
+	 * tasks are not linked with their Mylyn counterparts.
+	 * 
+	 * @param tasks the tasks obtained by another entity manager
+	 * @return the tasks of the shared entity manager
+	 * @see #linkWithMylynTasks(Collection)
+	 */
+	public static List<Task> getManagedTasks(Collection<Task> tasks) {
+		return withEntityManager(em -> {
+			if (em == null) {
+				return Collections.<Task>emptyList();
+			}
+			PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+			List<Task> managed = new ArrayList<>(tasks.size());
+			for (Task task : tasks) {
+				Task found = find(em, util, task);
+				if (found != null) {
+					managed.add(found);
+				}
+			}
+			return managed;
+		});
+	}
+
+	/**
+	 * Returns the tracked task with the given identifier, or <code>null</code>
+	 * if there is no such task. Tasks that have been persisted but not yet
+	 * written to the database are also found.
+	 *
+	 * @param em the entity manager to use
+	 * @param id the task identifier
+	 * @return the task or <code>null</code>
+	 */
+	static Task findTask(EntityManager em, GlobalTaskId id) {
+		return em.createNamedQuery("Task.findByGlobalId", Task.class)
+				.setParameter("repositoryUrl", id.getRepositoryUrl())
+				.setParameter("taskId", id.getTaskId())
+				.setHint(QueryHints.CACHE_USAGE, CacheUsage.ConformResultsInUnitOfWork)
 				.getResultStream()
-				// TODO: Move filtering to database
-				.filter(tt -> hasData(tt, startDate))
-				.map(TimekeeperPlugin::linkWithMylynTask);
+				.findFirst()
+				.orElse(null);
 	}
-	
-	private static boolean hasData/* this week */(Task task, LocalDate startDate) {
+
+	/**
+	 * Determines whether or not the task has any recorded work in the week
+	 * starting at the given date. This is the in-memory equivalent of
+	 * {@link #findTasks(LocalDate, LocalDate)}.
+	 * 
+	 * @param task      the task to test
+	 * @param startDate the first day of the week
+	 * @return <code>true</code> if work has been recorded
+	 */
+	static boolean hasData/* this week */(Task task, LocalDate startDate) {
 		// this should only be NULL if the database has not started yet. See databaseStateChanged()
 		if (task == null) {
 			return false;
@@ -661,37 +1536,57 @@ public class TimekeeperPlugin extends Plugin {
 	}
 	
 	/**
-	 * Finds and returns all activity label instances in the database.
+	 * Finds and returns all activity label instances in the database. The stream
+	 * is empty if the database is not ready yet.
 	 * 
 	 * @return a stream of labels
+	 * @see #getLabelsWhenReady()
 	 */
 	public static Stream<ActivityLabel> getLabels(){
-		return entityManager.createNamedQuery("ActivityLabel.findAll", ActivityLabel.class)
-				.getResultStream();
+		return withEntityManager(em -> em == null ? Collections.<ActivityLabel>emptyList()
+				: em.createNamedQuery("ActivityLabel.findAll", ActivityLabel.class).getResultList()).stream();
 	}
-	
+
+	/**
+	 * Returns the labels of the activity. These are loaded lazily using the
+	 * shared entity manager, so this is done while holding the lock.
+	 *
+	 * @param activity the activity
+	 * @return a copy of the labels
+	 */
+	public static List<ActivityLabel> getLabels(Activity activity) {
+		return withEntityManager(em -> new ArrayList<>(activity.getLabels()));
+	}
+
+	/**
+	 * Returns the activity currently running on the task. The activity is
+	 * loaded lazily using the shared entity manager, so this is done while
+	 * holding the lock.
+	 *
+	 * @param task the task
+	 * @return the current activity
+	 */
+	public static Optional<Activity> getCurrentActivity(Task task) {
+		return withEntityManager(em -> task.getCurrentActivity());
+	}
+
+	/**
+	 * Returns the task the activity belongs to. The task is loaded lazily using
+	 * the shared entity manager, so this is done while holding the lock.
+	 *
+	 * @param activity the activity
+	 * @return the task or <code>null</code>
+	 */
+	public static Task getTrackedTask(Activity activity) {
+		return withEntityManager(em -> activity.getTrackedTask());
+	}
+
 	public static void setLabel(ActivityLabel label) {
-		EntityTransaction transaction = entityManager.getTransaction();
-		boolean activeTransaction = transaction.isActive();
-		if (!activeTransaction) {
-			transaction.begin();
-		}
-		entityManager.persist(label);
-		if (!activeTransaction) {
-			transaction.commit();
-		}
+		runInTransaction(em -> em.persist(label));
 	}
 
 	public static void removeLabel(ActivityLabel label) {
-		EntityTransaction transaction = entityManager.getTransaction();
-		boolean activeTransaction = transaction.isActive();
-		if (!activeTransaction) {
-			transaction.begin();
-		}
-		entityManager.remove(label);
-		if (!activeTransaction) {
-			transaction.commit();
-		}
+		runInTransaction(em -> em.remove(label));
 	}
 	/**
 	 * Links the given task with a Mylyn task if found in any of the workspace task
@@ -702,12 +1597,10 @@ public class TimekeeperPlugin extends Plugin {
 	 * @return the modified tracked task
 	 */
 	private static Task linkWithMylynTask(Task tt) {
-		Optional<TaskRepository> tr = TasksUi.getRepositoryManager()
-				.getAllRepositories()
-				.stream()
-				.filter(r -> r.getRepositoryUrl().equals(tt.getRepositoryUrl())).findFirst();
-		if (tr.isPresent()) {
-			tt.linkWithMylynTask(TasksUi.getRepositoryModel().getTask(tr.get(), tt.getTaskId()));
+		TaskRepository repository = repositoryIndex.get(tt.getRepositoryUrl());
+		ITask task = repository == null ? null : TasksUi.getRepositoryModel().getTask(repository, tt.getTaskId());
+		if (task != null) {
+			tt.linkWithMylynTask(task);
 			tt.setTaskLinkStatus(TaskLinkStatus.LINKED);
 		} else {
 			tt.setTaskLinkStatus(TaskLinkStatus.UNLINKED);
@@ -715,6 +1608,22 @@ public class TimekeeperPlugin extends Plugin {
 		return tt;
 	}
 
+	/**
+	 * Links all the given tasks that have not already been linked with their
+	 * Mylyn counterparts. Each task costs a single repository lookup, and the
+	 * lock of the shared entity manager is not required.
+	 * 
+	 * @param tasks the tracked tasks
+	 * @see #linkWithMylynTask(Task)
+	 */
+	public static void linkWithMylynTasks(Collection<Task> tasks) {
+		for (Task tt : tasks) {
+			if (tt.getTaskLinkStatus() != TaskLinkStatus.LINKED || tt.getMylynTask() == null) {
+				linkWithMylynTask(tt);
+			}
+		}
+	}
+
 	/**
 	 * Provides means of setting the {@link EntityManager} of the plug-in. This
 	 * method should only be used for testing.
@@ -725,6 +1634,16 @@ public class TimekeeperPlugin extends Plugin {
 	 */
 	static void setEntityManager(EntityManager entityManager) {
 		TimekeeperPlugin.entityManager = entityManager;
+		clearPending();
+	}
+
+	/**
+	 * Forgets the entities marked as changed, which must be done whenever the
+	 * shared persistence context is cleared or closed after having been flushed.
+	 */
+	private static void clearPending() {
+		DailyTotals.clear();
+		ChangedEntities.clear();
 	}
 
 	/**
@@ -753,7 +1672,8 @@ public class TimekeeperPlugin extends Plugin {
 
 	/**
 	 * Creates a new tracked task associated with the Mylyn task if the prior is not
-	 * present, and starts a new activity.
+	 * present, and starts a new activity. The activity is stored in the
+	 * background, so the caller does not have to wait for the database.
 	 * 
 	 * @param task the Mylyn task to start
 	 */
@@ -761,42 +1681,165 @@ public class TimekeeperPlugin extends Plugin {
 		if (entityManager == null) {
 			return;
 		}
-		EntityTransaction transaction = entityManager.getTransaction();
-		boolean activeTransaction = transaction.isActive();
-		if (!activeTransaction) {
-			transaction.begin();
-		}
-		Task ttask = getTask(task);
-		if (ttask != null) {
-			Activity activity = ttask.startActivity();
-			entityManager.persist(activity);
-			log.debug("Activating task '{}'", task);
-			notifyListeners();
-		}
-		if (!activeTransaction) {
-			transaction.commit();
-		}
+		LocalDateTime now = LocalDateTime.now();
+		// the task may not have been stored yet, so enough is journaled to create it
+		long record = journal(TrackingJournal.Type.START, new GlobalTaskId(getRepositoryUrl(task), task.getTaskId()),
+				task.getSummary(), now);
+		writeBehind.submit(record, () -> {
+			Task ttask = getTask(task);
+			if (ttask != null) {
+				Activity activity = ttask.startActivity(now);
+				entityManager.persist(activity);
+				log.debug("Activating task '{}'", task);
+				notifyListeners();
+			}
+		});
 	}
 
 	/**
-	 * Ends the activity currently active on the given Mylyn task.
+	 * Ends the activity currently active on the given Mylyn task. The activity
+	 * is stored in the background, so the caller does not have to wait for the
+	 * database.
 	 * 
 	 * @param task the Mylyn task to start
 	 */
 	public void endMylynTask(ITask task) {
-		Task ttask = getTask(task);
-		if (ttask != null) {
-			Activity activity = ttask.endActivity();
-			EntityTransaction transaction = entityManager.getTransaction();
-			boolean activeTransaction = transaction.isActive();
-			if (!activeTransaction) {
-				transaction.begin();
+		if (entityManager == null) {
+			return;
+		}
+		LocalDateTime now = LocalDateTime.now();
+		long record = journal(TrackingJournal.Type.STOP, new GlobalTaskId(getRepositoryUrl(task), task.getTaskId()),
+				now);
+		writeBehind.submit(record, () -> {
+			Task ttask = getTask(task);
+			if (ttask != null) {
+				ttask.getCurrentActivity()
+						.filter(a -> a.getEnd() == null)
+						.ifPresent(a -> a.setEnd(now));
+				Activity activity = ttask.endActivity();
+				if (activity != null) {
+					entityManager.persist(activity);
+				}
+				log.debug("Dectivating task '{}'", task);
 			}
-			entityManager.persist(activity);
-			if (!activeTransaction) {
-				transaction.commit();
+		});
+	}
+
+	/**
+	 * Sets the last time the task was active while the user was not idle. Ticks
+	 * are coalesced and stored in the background.
+	 * 
+	 * @param task the task to update
+	 * @param tick the tick time
+	 */
+	public void setTick(Task task, LocalDateTime tick) {
+		writeBehind.tick(task, tick, journal(TrackingJournal.Type.TICK, task.getId(), tick));
+	}
+
+	/**
+	 * Returns the number of activity changes and ticks that have not yet been
+	 * stored in the database.
+	 * 
+	 * @return the number of pending changes
+	 */
+	public int getPendingWrites() {
+		return writeBehind.getDepth();
+	}
+
+	/**
+	 * Writes the entities changed since the last save, and clears the shared
+	 * persistence context so that it only holds the entities used from now on.
+	 * This must be done by the writer thread while holding the lock, once the
+	 * queued changes have been committed. The context is only cleared if the
+	 * changes were written.
+	 * 
+	 * @return the number of entities written
+	 */
+	private static int saveAndClear() {
+		// only the entities changed since the last save are written
+		int count = inTransaction(em -> {
+			DailyTotals.flush(em);
+			return ChangedEntities.flush(em);
+		});
+		entityManager.clear();
+		clearPending();
+		taskCache.invalidateAll();
+		log.debug("Cleared the shared persistence context");
+		return count;
+	}
+
+	/**
+	 * Returns the number of changed entities written the last time the database
+	 * was saved. Only entities changed since the previous save are written, so
+	 * this should not grow with the size of the database. Entities already
+	 * written by a commit of queued activity changes are not counted.
+	 *
+	 * @return the number of entities written
+	 * @see #getLastSaveTime()
+	 */
+	public static int getLastSaveCount() {
+		return lastSaveCount;
+	}
+
+	/**
+	 * Returns the time spent the last time the database was saved, including
+	 * waiting for pending activity changes to be stored.
+	 *
+	 * @return the time in milliseconds
+	 * @see #getLastSaveCount()
+	 */
+	public static long getLastSaveTime() {
+		return lastSaveTime;
+	}
+
+	/**
+	 * Waits for all queued activity changes and ticks to be stored.
+	 */
+	private static void flushWrites() {
+		try {
+			writeBehind.flush().get(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException e) {
+			log.warn("Could not store {} pending changes", writeBehind.getDepth(), e);
+		}
+	}
+
+	/**
+	 * Updates the daily totals with all activities that have been changed since
+	 * last time. This should be called after editing activities.
+	 * 
+	 * @see DailyTotals
+	 */
+	public void updateDailyTotals() {
+		if (entityManager == null) {
+			return;
+		}
+		runInTransaction(DailyTotals::flush);
+	}
+
+	/**
+	 * Recalculates the daily totals of all tasks from their activities. This can
+	 * be used to repair the totals should they for some reason be wrong. All
+	 * tasks and activities are loaded, so this is done using a separate entity
+	 * manager that is closed when done.
+	 * 
+	 * @return the number of task days
+	 * @see DailyTotals
+	 */
+	public int rebuildDailyTotals() {
+		EntityManager em = openEntityManager();
+		EntityTransaction transaction = em.getTransaction();
+		try {
+			transaction.begin();
+			int rows = DailyTotals.rebuild(em);
+			transaction.commit();
+			return rows;
+		} finally {
+			if (transaction.isActive()) {
+				transaction.rollback();
 			}
-			log.debug("Dectivating task '{}'", task);
+			em.close();
 		}
 	}
 
@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.zip.CRC32;
+
+import javax.persistence.EntityManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * An append-only journal of activity start, tick and stop events. Each event is
+ * written to the journal before it is handed to the persistence context, and
+ * is kept until the change has been committed to the database. Should the
+ * application terminate before that, the events remaining in the journal are
+ * replayed when starting, see {@link #replay(EntityManager, List)}.
+ * <p>
+ * Each record is stored as its length, the payload and a CRC32 checksum of the
+ * payload. A record that was only partially written when the application
+ * terminated is detected and ignored, along with anything following it. The
+ * same limit on the size of a record applies when appending and reading.
+ * </p>
+ *
+ * @author Torkild U. Resheim
+ */
+final class TrackingJournal implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(TrackingJournal.class);
+
+	/**
+	 * Records larger than this are considered corrupt, longer summaries are
+	 * shortened when appending
+	 */
+	private static final int MAX_RECORD_SIZE = 4_096;
+
+	/** Type of event */
+	enum Type {
+		START, TICK, STOP
+	}
+
+	/** When to force journal writes to the storage device */
+	enum SyncPolicy {
+		/** Leave it to the operating system */
+		NEVER,
+		/** Force start and stop events, but not ticks */
+		EVENTS,
+		/** Force all events */
+		ALWAYS
+	}
+
+	/**
+	 * A single event read from the journal.
+	 */
+	static final class Entry {
+
+		final Type type;
+
+		final long sequence;
+
+		final GlobalTaskId id;
+
+		/**
+		 * Summary of the task, so that it can be created if it was never
+		 * stored. This is only recorded for start events, and is
+		 * <code>null</code> for records written by earlier versions.
+		 */
+		final String summary;
+
+		final LocalDateTime time;
+
+		Entry(Type type, long sequence, GlobalTaskId id, LocalDateTime time) {
+			this(type, sequence, id, null, time);
+		}
+
+		Entry(Type type, long sequence, GlobalTaskId id, String summary, LocalDateTime time) {
+			this.type = type;
+			this.sequence = sequence;
+			this.id = id;
+			this.summary = summary;
+			this.time = time;
+		}
+
+		@Override
+		public String toString() {
+			return type + " #" + sequence + " " + id + " " + time;
+		}
+	}
+
+	private final Path path;
+
+	private final SyncPolicy policy;
+
+	private FileChannel channel;
+
+	/** Sequence number of the next record */
+	private long sequence;
+
+	/** Sequence numbers of records not yet committed to the database */
+	private final NavigableSet<Long> outstanding = new ConcurrentSkipListSet<>();
+
+	/**
+	 * Opens the journal at the given location, creating it if it does not exist.
+	 * Records already in the journal are kept until {@link #clear()} is called.
+	 *
+	 * @param path   the journal file
+	 * @param policy when to force writes to the storage device
+	 * @throws IOException if the journal could not be opened
+	 */
+	TrackingJournal(Path path, SyncPolicy policy) throws IOException {
+		this.path = path;
+		this.policy = policy;
+		List<Entry> entries = read(path);
+		sequence = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).sequence + 1;
+		channel = open(path, entries);
+	}
+
+	/**
+	 * Appends an event to the journal. The event is considered outstanding until
+	 * it has been marked as done.
+	 *
+	 * @param type the type of event
+	 * @param id   identifier of the task
+	 * @param time the time of the event
+	 * @return the sequence number of the record
+	 * @throws IOException if the record could not be written
+	 * @see #done(long)
+	 */
+	synchronized long append(Type type, GlobalTaskId id, LocalDateTime time) throws IOException {
+		return append(type, id, null, time);
+	}
+
+	/**
+	 * Appends an event to the journal, along with the summary of the task so
+	 * that the task can be created when replaying should it not exist.
+	 *
+	 * @param type    the type of event
+	 * @param id      identifier of the task
+	 * @param summary summary of the task, or <code>null</code>
+	 * @param time    the time of the event
+	 * @return the sequence number of the record
+	 * @throws IOException if the record could not be written
+	 * @see #append(Type, GlobalTaskId, LocalDateTime)
+	 */
+	synchronized long append(Type type, GlobalTaskId id, String summary, LocalDateTime time) throws IOException {
+		long seq = sequence;
+		ByteBuffer record = encode(new Entry(type, seq, id, summary, time));
+		if (record.remaining() - 2 * Integer.BYTES > MAX_RECORD_SIZE) {
+			// the summary is only a hint, so it is shortened rather than losing the record
+			int base = encode(new Entry(type, seq, id, time)).remaining() - 2 * Integer.BYTES;
+			String shortened = summary == null ? null : truncate(summary, MAX_RECORD_SIZE - base - 2);
+			record = encode(new Entry(type, seq, id, shortened, time));
+			if (shortened == null || record.remaining() - 2 * Integer.BYTES > MAX_RECORD_SIZE) {
+				throw new IOException("Journal record of task " + id + " exceeds " + MAX_RECORD_SIZE + " bytes");
+			}
+		}
+		sequence++;
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+		if (policy == SyncPolicy.ALWAYS || (policy == SyncPolicy.EVENTS && type != Type.TICK)) {
+			channel.force(false);
+		}
+		outstanding.add(seq);
+		return seq;
+	}
+
+	/**
+	 * Marks the record as no longer needed, either because it has been committed
+	 * to the database or because it has been superseded by a later record. The
+	 * record is removed from the journal on the next {@link #compact()}.
+	 *
+	 * @param sequence the sequence number of the record
+	 */
+	void done(long sequence) {
+		outstanding.remove(sequence);
+	}
+
+	/**
+	 * Returns the number of records that have not yet been marked as done.
+	 *
+	 * @return the number of outstanding records
+	 */
+	int getOutstanding() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Removes all records preceding the oldest outstanding record. If there are
+	 * no outstanding records, which is the common case, the journal is simply
+	 * truncated.
+	 *
+	 * @throws IOException if the journal could not be compacted
+	 */
+	synchronized void compact() throws IOException {
+		if (outstanding.isEmpty()) {
+			channel.truncate(0);
+			return;
+		}
+		long first = outstanding.first();
+		List<Entry> keep = new ArrayList<>();
+		for (Entry entry : read(path)) {
+			if (entry.sequence >= first) {
+				keep.add(entry);
+			}
+		}
+		channel.close();
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (Entry entry : keep) {
+				ByteBuffer record = encode(entry);
+				while (record.hasRemaining()) {
+					out.write(record);
+				}
+			}
+			out.force(false);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Removes all records from the journal, typically after they have been
+	 * replayed.
+	 *
+	 * @throws IOException if the journal could not be truncated
+	 */
+	synchronized void clear() throws IOException {
+		outstanding.clear();
+		channel.truncate(0);
+		channel.force(false);
+	}
+
+	/**
+	 * Returns all complete records in the journal.
+	 *
+	 * @return the records in the order they were written
+	 * @throws IOException if the journal could not be read
+	 */
+	synchronized List<Entry> read() throws IOException {
+		return read(path);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Reads all complete records from the journal file. Reading stops at the
+	 * first record that is incomplete or fails the checksum.
+	 *
+	 * @param path the journal file
+	 * @return the records in the order they were written
+	 * @throws IOException if the journal could not be read
+	 */
+	static List<Entry> read(Path path) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		if (!Files.exists(path)) {
+			return entries;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		CRC32 crc = new CRC32();
+		while (buffer.remaining() >= Integer.BYTES) {
+			int length = buffer.getInt();
+			if (length <= 0 || length > MAX_RECORD_SIZE || buffer.remaining() < length + Integer.BYTES) {
+				log.warn("Ignoring incomplete record at position {} of {}", buffer.position() - Integer.BYTES, path);
+				break;
+			}
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != buffer.getInt()) {
+				log.warn("Ignoring corrupt record at position {} of {}", buffer.position() - length - 8, path);
+				break;
+			}
+			entries.add(decode(payload));
+		}
+		return entries;
+	}
+
+	/**
+	 * Applies the journal entries to the tasks in the database. Entries that
+	 * have already been applied are ignored. A task that was started but never
+	 * stored is created from the start event. This must be called within a
+	 * transaction.
+	 *
+	 * @param em      the entity manager to use
+	 * @param entries the entries to replay
+	 * @return the number of entries that resulted in a change
+	 */
+	static int replay(EntityManager em, List<Entry> entries) {
+		int changed = 0;
+		for (Entry entry : entries) {
+			Task task = TimekeeperPlugin.findTask(em, entry.id);
+			if (task == null && entry.type == Type.START) {
+				// the task was started for the first time, but never stored
+				task = new Task(entry.id, entry.summary);
+				em.persist(task);
+			}
+			if (task == null) {
+				log.warn("Could not replay {}, the task does not exist", entry);
+				continue;
+			}
+			Activity current = task.getCurrentActivity().orElse(null);
+			switch (entry.type) {
+			case START:
+				long start = Activity.toEpochSecond(entry.time);
+				if (task.getActivities().stream().anyMatch(a -> Activity.toEpochSecond(a.getStart()) == start)) {
+					// already stored
+					continue;
+				}
+				if (current != null) {
+					end(task, current, entry.time);
+				}
+				em.persist(task.startActivity(entry.time));
+				break;
+			case TICK:
+				if (task.getTick() != null && !entry.time.isAfter(task.getTick())) {
+					continue;
+				}
+				task.setTick(entry.time);
+				break;
+			case STOP:
+				if (current == null) {
+					// already stored
+					continue;
+				}
+				end(task, current, entry.time);
+				break;
+			}
+			changed++;
+		}
+		return changed;
+	}
+
+	private static void end(Task task, Activity activity, LocalDateTime time) {
+		if (activity.getEnd() == null) {
+			activity.setEnd(time.isBefore(activity.getStart()) ? activity.getStart() : time);
+		}
+		task.endActivity();
+	}
+
+	private static FileChannel open(Path path, List<Entry> entries) throws IOException {
+		Files.createDirectories(path.toAbsolutePath().getParent());
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		// drop any incomplete record at the end, so that new records can be read
+		long valid = 0;
+		for (Entry entry : entries) {
+			valid += encode(entry).remaining();
+		}
+		if (channel.size() > valid) {
+			channel.truncate(valid);
+		}
+		return channel;
+	}
+
+	private static ByteBuffer encode(Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(entry.type.ordinal());
+			out.writeLong(entry.sequence);
+			out.writeLong(entry.time.toEpochSecond(ZoneOffset.UTC));
+			out.writeInt(entry.time.getNano());
+			out.writeUTF(entry.id.getRepositoryUrl());
+			out.writeUTF(entry.id.getTaskId());
+			if (entry.summary != null) {
+				out.writeUTF(entry.summary);
+			}
+		}
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer buffer = ByteBuffer.allocate(payload.length + 2 * Integer.BYTES);
+		buffer.putInt(payload.length);
+		buffer.put(payload);
+		buffer.putInt((int) crc.getValue());
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Returns the longest prefix of the string that takes up no more than the
+	 * given number of bytes when written using {@link DataOutputStream#writeUTF},
+	 * without splitting a surrogate pair.
+	 *
+	 * @param s     the string to shorten
+	 * @param bytes the maximum number of bytes
+	 * @return the prefix, or <code>null</code> if there is no room at all
+	 */
+	static String truncate(String s, int bytes) {
+		if (bytes < 0) {
+			return null;
+		}
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += (c >= 0x0001 && c <= 0x007F) ? 1 : c <= 0x07FF ? 2 : 3;
+			if (length > bytes) {
+				return s.substring(0, i > 0 && Character.isHighSurrogate(s.charAt(i - 1)) ? i - 1 : i);
+			}
+		}
+		return s;
+	}
+
+	private static Entry decode(byte[] payload) throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+			Type type = Type.values()[in.readByte()];
+			long sequence = in.readLong();
+			LocalDateTime time = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+			GlobalTaskId id = new GlobalTaskId(in.readUTF(), in.readUTF());
+			// the summary is optional, and not present in older records
+			String summary = in.available() > 0 ? in.readUTF() : null;
+			return new Entry(type, sequence, id, summary, time);
+		} catch (EOFException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Malformed journal record", e);
+		}
+	}
+
+}
@@ -0,0 +1,360 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.Project;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * An immutable model of the tasks worked on during a week, arranged as they are
+ * shown in the work week view: projects, the tasks of each project and the
+ * activities of each task that took place during the week, in the order they
+ * are shown. The time spent on
+ * each day is summed up when the model is created, so that looking up the
+ * children or the totals of an element does not depend on the number of tasks
+ * and activities.
+ * <p>
+ * Activities that have not been ended are kept aside and added to the totals
+ * when these are requested, so that the numbers of the active task keep
+ * increasing without the model having to be created again. If a task or an
+ * activity is modified, a new model must be obtained using {@link #with(Task)}.
+ * </p>
+ * <p>
+ * The arrays returned are shared and must not be modified.
+ * </p>
+ *
+ * @author Torkild U. Resheim
+ * @see WeekSnapshot
+ */
+public final class WeekModel {
+
+	private static final long SECONDS_PER_DAY = 86_400;
+
+	private static final Task[] NO_TASKS = new Task[0];
+
+	private static final Activity[] NO_ACTIVITIES = new Activity[0];
+
+	private static final Comparator<Project> PROJECT_ORDER = Comparator.comparing(Project::getName,
+			String.CASE_INSENSITIVE_ORDER);
+
+	/**
+	 * Tasks in numerical order of the identifier where possible. This is also
+	 * used by {@link WeekSnapshot} so that tasks are shown in the same order.
+	 */
+	static final Comparator<Task> TASK_ORDER = Comparator
+			.comparing(Task::getTaskId, Comparator.nullsFirst(WeekModel::compareTaskIds))
+			.thenComparing(Task::getTaskSummary, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+	/**
+	 * The time spent during each day of the week, split into the seconds of
+	 * activities that have ended and the activities that are still running.
+	 */
+	private static final class Totals {
+
+		private final long[] seconds;
+
+		private final Activity[] open;
+
+		private Totals(long[] seconds, Activity[] open) {
+			this.seconds = seconds;
+			this.open = open;
+		}
+
+		private long getSeconds(long first, int weekday, long now) {
+			long sum = seconds[weekday];
+			long from = first + weekday * SECONDS_PER_DAY;
+			for (Activity activity : open) {
+				sum += activity.getSeconds(from, from + SECONDS_PER_DAY, now);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * A task and the activities that took place during the week.
+	 */
+	private static final class TaskRow {
+
+		private final Activity[] activities;
+
+		private final Totals totals;
+
+		private TaskRow(Activity[] activities, Totals totals) {
+			this.activities = activities;
+			this.totals = totals;
+		}
+	}
+
+	/**
+	 * A project and the tasks that were worked on during the week.
+	 */
+	private static final class ProjectRow {
+
+		private final Task[] tasks;
+
+		private final Totals totals;
+
+		private ProjectRow(Task[] tasks, Totals totals) {
+			this.tasks = tasks;
+			this.totals = totals;
+		}
+	}
+
+	private final LocalDate firstDayOfWeek;
+
+	/** Start of the week in epoch seconds */
+	private final long first;
+
+	private final Set<Task> tasks;
+
+	private final Project[] projects;
+
+	/** The project shown for each project name */
+	private final Map<String, Project> projectsByName;
+
+	/** Rows keyed by the project name, as with the elements of the view */
+	private final Map<String, ProjectRow> projectRows;
+
+	private final Map<Task, TaskRow> taskRows;
+
+	private final Totals totals;
+
+	private WeekModel(LocalDate firstDayOfWeek, Set<Task> tasks, Map<String, Project> projectsByName,
+			Project[] projects, Map<String, ProjectRow> projectRows, Map<Task, TaskRow> taskRows) {
+		this.firstDayOfWeek = firstDayOfWeek;
+		this.first = Activity.toEpochSecond(firstDayOfWeek);
+		this.tasks = Collections.unmodifiableSet(tasks);
+		this.projectsByName = projectsByName;
+		this.projects = projects;
+		this.projectRows = projectRows;
+		this.taskRows = taskRows;
+		this.totals = sum(projectRows.values().stream().map(p -> p.totals).toArray(Totals[]::new));
+	}
+
+	/**
+	 * Creates a model of the given tasks. Tasks that are not associated with a
+	 * project are left out as these cannot be shown.
+	 *
+	 * @param firstDayOfWeek the first day of the week
+	 * @param tasks          the tasks worked on during the week
+	 * @return a new model
+	 */
+	public static WeekModel of(LocalDate firstDayOfWeek, Collection<Task> tasks) {
+		long first = Activity.toEpochSecond(firstDayOfWeek);
+		Map<Task, TaskRow> taskRows = new HashMap<>(tasks.size() * 2);
+		Set<Task> included = new LinkedHashSet<>(tasks.size() * 2);
+		for (Task task : tasks) {
+			if (task != null && task.getProject() != null && included.add(task)) {
+				taskRows.put(task, createRow(first, task));
+			}
+		}
+		return create(firstDayOfWeek, included, taskRows);
+	}
+
+	/**
+	 * Returns a model where the given task is added, or its activities and
+	 * totals are obtained again if it is already part of the model. Another
+	 * instance of the same task, such as one that has been detached from the
+	 * persistence context, is replaced. This must be used when a task or one
+	 * of its activities has been modified.
+	 *
+	 * @param task the added or modified task
+	 * @return a new model
+	 */
+	public WeekModel with(Task task) {
+		if (task == null || task.getProject() == null) {
+			return this;
+		}
+		Set<Task> included = new LinkedHashSet<>(tasks);
+		Map<Task, TaskRow> rows = new HashMap<>(taskRows);
+		for (Task t : tasks) {
+			if (t != task && isSameTask(t, task)) {
+				included.remove(t);
+				rows.remove(t);
+			}
+		}
+		included.add(task);
+		rows.put(task, createRow(first, task));
+		return create(firstDayOfWeek, included, rows);
+	}
+
+	/**
+	 * Determines whether or not the two instances represent the same task. Tasks
+	 * without an identifier are never the same.
+	 */
+	private static boolean isSameTask(Task t1, Task t2) {
+		return t1.getTaskId() != null && t1.getRepositoryUrl() != null && t1.getTaskId().equals(t2.getTaskId())
+				&& t1.getRepositoryUrl().equals(t2.getRepositoryUrl());
+	}
+
+	private static int compareTaskIds(String s1, String s2) {
+		try {
+			return Long.compare(Long.parseLong(s1), Long.parseLong(s2));
+		} catch (NumberFormatException e) {
+			return s1.compareTo(s2);
+		}
+	}
+
+	private static WeekModel create(LocalDate firstDayOfWeek, Set<Task> tasks, Map<Task, TaskRow> taskRows) {
+		Map<String, Project> projects = new HashMap<>();
+		Map<String, List<Task>> grouped = new HashMap<>();
+		for (Task task : tasks) {
+			Project project = task.getProject();
+			projects.putIfAbsent(project.getName(), project);
+			grouped.computeIfAbsent(project.getName(), name -> new ArrayList<>()).add(task);
+		}
+		Map<String, ProjectRow> projectRows = new HashMap<>(projects.size() * 2);
+		for (Map.Entry<String, List<Task>> entry : grouped.entrySet()) {
+			Task[] projectTasks = entry.getValue().toArray(NO_TASKS);
+			Arrays.sort(projectTasks, TASK_ORDER);
+			Totals[] t = new Totals[projectTasks.length];
+			for (int i = 0; i < projectTasks.length; i++) {
+				t[i] = taskRows.get(projectTasks[i]).totals;
+			}
+			projectRows.put(entry.getKey(), new ProjectRow(projectTasks, sum(t)));
+		}
+		Project[] sorted = projects.values().toArray(new Project[projects.size()]);
+		Arrays.sort(sorted, PROJECT_ORDER);
+		return new WeekModel(firstDayOfWeek, tasks, projects, sorted, projectRows, taskRows);
+	}
+
+	private static TaskRow createRow(long first, Task task) {
+		long last = first + 7 * SECONDS_PER_DAY;
+		long now = Activity.currentEpochSecond();
+		List<Activity> activities = new ArrayList<>();
+		List<Activity> open = new ArrayList<>();
+		long[] seconds = new long[7];
+		for (Activity activity : task.getActivities()) {
+			if (activity.getEnd() == null) {
+				// keep running activities even if no time has been spent yet
+				if (activity.getStartEpoch() < last && now >= first) {
+					activities.add(activity);
+					open.add(activity);
+				}
+			} else if (activity.getSeconds(first, last, now) > 0) {
+				activities.add(activity);
+				for (int i = 0; i < 7; i++) {
+					long from = first + i * SECONDS_PER_DAY;
+					seconds[i] += activity.getSeconds(from, from + SECONDS_PER_DAY, now);
+				}
+			}
+		}
+		activities.sort(null);
+		return new TaskRow(activities.toArray(NO_ACTIVITIES),
+				new Totals(seconds, open.toArray(NO_ACTIVITIES)));
+	}
+
+	private static Totals sum(Totals[] totals) {
+		long[] seconds = new long[7];
+		List<Activity> open = new ArrayList<>();
+		for (Totals t : totals) {
+			for (int i = 0; i < 7; i++) {
+				seconds[i] += t.seconds[i];
+			}
+			Collections.addAll(open, t.open);
+		}
+		return new Totals(seconds, open.toArray(NO_ACTIVITIES));
+	}
+
+	public LocalDate getFirstDayOfWeek() {
+		return firstDayOfWeek;
+	}
+
+	/**
+	 * @return all tasks of the model
+	 */
+	public Set<Task> getTasks() {
+		return tasks;
+	}
+
+	/**
+	 * @return the projects of the tasks, each project name only occurring once
+	 *         and sorted by name
+	 */
+	public Project[] getProjects() {
+		return projects;
+	}
+
+	/**
+	 * Returns the project the task is shown under. As projects are shown once
+	 * for each name, this may be another instance than that of the task.
+	 *
+	 * @param task the task
+	 * @return the project or <code>null</code> if no task of the project is
+	 *         part of the model
+	 */
+	public Project getProject(Task task) {
+		return task.getProject() == null ? null : projectsByName.get(task.getProject().getName());
+	}
+
+	/**
+	 * @param project the project
+	 * @return the tasks of the project worked on during the week
+	 */
+	public Task[] getTasks(Project project) {
+		ProjectRow row = projectRows.get(project.getName());
+		return row == null ? NO_TASKS : row.tasks;
+	}
+
+	/**
+	 * @param task the task
+	 * @return the activities of the task that took place during the week
+	 */
+	public Activity[] getActivities(Task task) {
+		TaskRow row = taskRows.get(task);
+		return row == null ? NO_ACTIVITIES : row.activities;
+	}
+
+	/**
+	 * @param weekday the day of the week, starting from 0
+	 * @param now     the current time in epoch seconds
+	 * @return the number of seconds spent on all tasks that day
+	 */
+	public long getSeconds(int weekday, long now) {
+		return totals.getSeconds(first, weekday, now);
+	}
+
+	/**
+	 * @param project the project
+	 * @param weekday the day of the week, starting from 0
+	 * @param now     the current time in epoch seconds
+	 * @return the number of seconds spent on the project that day
+	 */
+	public long getSeconds(Project project, int weekday, long now) {
+		ProjectRow row = projectRows.get(project.getName());
+		return row == null ? 0 : row.totals.getSeconds(first, weekday, now);
+	}
+
+	/**
+	 * @param task    the task
+	 * @param weekday the day of the week, starting from 0
+	 * @param now     the current time in epoch seconds
+	 * @return the number of seconds spent on the task that day
+	 */
+	public long getSeconds(Task task, int weekday, long now) {
+		TaskRow row = taskRows.get(task);
+		return row == null ? 0 : row.totals.getSeconds(first, weekday, now);
+	}
+
+}
@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.ActivityLabel;
+import net.resheim.eclipse.timekeeper.db.model.Project;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * An immutable summary of the time spent on tasks during a week, that can be
+ * stored in a compact binary form. This is used to show the numbers of the
+ * current week while the database is still being connected to, and is replaced
+ * with the live data as soon as it is available.
+ *
+ * @author Torkild U. Resheim
+ */
+public final class WeekSnapshot {
+
+	private static final Logger log = LoggerFactory.getLogger(WeekSnapshot.class);
+
+	/** Identifies the file format, "TKWS" */
+	private static final int MAGIC = 0x544b5753;
+
+	private static final int VERSION = 1;
+
+	private static final long SECONDS_PER_DAY = 86_400;
+
+	/**
+	 * A project and the tasks that were worked on during the week.
+	 */
+	public static final class ProjectEntry {
+
+		private final String name;
+
+		private final List<TaskEntry> tasks = new ArrayList<>();
+
+		private ProjectEntry(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public List<TaskEntry> getTasks() {
+			return Collections.unmodifiableList(tasks);
+		}
+
+		/**
+		 * @param weekday the day of the week, starting from 0
+		 * @return the number of seconds spent on the project that day
+		 */
+		public long getSeconds(int weekday) {
+			return tasks.stream().mapToLong(t -> t.getSeconds(weekday)).sum();
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * A task and the time spent on it during each day of the week.
+	 */
+	public static final class TaskEntry {
+
+		private final ProjectEntry project;
+
+		private final String repositoryUrl;
+
+		private final String taskId;
+
+		private final String summary;
+
+		private final long[] seconds;
+
+		private final List<ActivityLabel> labels;
+
+		private TaskEntry(ProjectEntry project, String repositoryUrl, String taskId, String summary, long[] seconds,
+				List<ActivityLabel> labels) {
+			this.project = project;
+			this.repositoryUrl = repositoryUrl;
+			this.taskId = taskId;
+			this.summary = summary;
+			this.seconds = seconds;
+			this.labels = labels;
+		}
+
+		public ProjectEntry getProject() {
+			return project;
+		}
+
+		public String getRepositoryUrl() {
+			return repositoryUrl;
+		}
+
+		public String getTaskId() {
+			return taskId;
+		}
+
+		public String getSummary() {
+			return summary;
+		}
+
+		/**
+		 * @param weekday the day of the week, starting from 0
+		 * @return the number of seconds spent on the task that day
+		 */
+		public long getSeconds(int weekday) {
+			return seconds[weekday];
+		}
+
+		/**
+		 * @return the labels of activities on the task during the week
+		 */
+		public List<ActivityLabel> getLabels() {
+			return Collections.unmodifiableList(labels);
+		}
+
+		@Override
+		public String toString() {
+			return taskId + ": " + summary;
+		}
+	}
+
+	private final LocalDate firstDayOfWeek;
+
+	private final List<ProjectEntry> projects;
+
+	private WeekSnapshot(LocalDate firstDayOfWeek, List<ProjectEntry> projects) {
+		this.firstDayOfWeek = firstDayOfWeek;
+		this.projects = projects;
+	}
+
+	/**
+	 * Creates a snapshot of the time spent on the given tasks.
+	 *
+	 * @param firstDayOfWeek the first day of the week
+	 * @param tasks          the tasks worked on during the week
+	 * @param now            the time used to end activities that are still
+	 *                       running
+	 * @return a new snapshot
+	 */
+	public static WeekSnapshot of(LocalDate firstDayOfWeek, Collection<Task> tasks, LocalDateTime now) {
+		long first = Activity.toEpochSecond(firstDayOfWeek);
+		long end = Activity.toEpochSecond(now);
+		Map<String, ProjectEntry> projects = new LinkedHashMap<>();
+		tasks.stream()
+				.filter(t -> t.getProject() != null)
+				.sorted(WeekModel.TASK_ORDER)
+				.forEach(task -> {
+					Project project = task.getProject();
+					ProjectEntry p = projects.computeIfAbsent(project.getName(), ProjectEntry::new);
+					long[] seconds = new long[7];
+					for (int i = 0; i < 7; i++) {
+						long from = first + i * SECONDS_PER_DAY;
+						seconds[i] = task.getSeconds(from, from + SECONDS_PER_DAY, end);
+					}
+					Map<String, ActivityLabel> labels = new LinkedHashMap<>();
+					task.getActivities()
+							.stream()
+							.filter(a -> a.getDuration(firstDayOfWeek, firstDayOfWeek.plusDays(7)).getSeconds() > 0)
+							.flatMap(a -> a.getLabels().stream())
+							.forEach(l -> labels.putIfAbsent(l.getName(), new ActivityLabel(l.getName(), l.getColor())));
+					p.tasks.add(new TaskEntry(p, task.getRepositoryUrl(), task.getTaskId(), task.getTaskSummary(),
+							seconds, new ArrayList<>(labels.values())));
+				});
+		// projects are in the same order as in the week model
+		List<ProjectEntry> sorted = new ArrayList<>(projects.values());
+		sorted.sort((p1, p2) -> String.CASE_INSENSITIVE_ORDER.compare(p1.name, p2.name));
+		return new WeekSnapshot(firstDayOfWeek, sorted);
+	}
+
+	public LocalDate getFirstDayOfWeek() {
+		return firstDayOfWeek;
+	}
+
+	public List<ProjectEntry> getProjects() {
+		return Collections.unmodifiableList(projects);
+	}
+
+	/**
+	 * @param weekday the day of the week, starting from 0
+	 * @return the number of seconds spent on all tasks that day
+	 */
+	public long getSeconds(int weekday) {
+		return projects.stream().mapToLong(p -> p.getSeconds(weekday)).sum();
+	}
+
+	/**
+	 * Writes the snapshot to the given file. The file is replaced atomically so
+	 * that a snapshot is either completely written or not at all.
+	 *
+	 * @param path the snapshot file
+	 * @throws IOException if the snapshot could not be written
+	 */
+	public void write(Path path) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(firstDayOfWeek.toEpochDay());
+			out.writeInt(projects.size());
+			for (ProjectEntry project : projects) {
+				writeString(out, project.name);
+				out.writeInt(project.tasks.size());
+				for (TaskEntry task : project.tasks) {
+					writeString(out, task.repositoryUrl);
+					writeString(out, task.taskId);
+					writeString(out, task.summary);
+					for (long s : task.seconds) {
+						out.writeInt((int) s);
+					}
+					out.writeInt(task.labels.size());
+					for (ActivityLabel label : task.labels) {
+						writeString(out, label.getName());
+						writeString(out, label.getColor());
+					}
+				}
+			}
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a snapshot from the given file. The file is read in one go and not
+	 * mapped into memory, as a mapped file cannot be replaced on all platforms.
+	 *
+	 * @param path the snapshot file
+	 * @return the snapshot, or an empty optional if the file does not exist or
+	 *         could not be read
+	 */
+	public static Optional<WeekSnapshot> read(Path path) {
+		if (!Files.exists(path)) {
+			return Optional.empty();
+		}
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+				return Optional.empty();
+			}
+			LocalDate firstDayOfWeek = LocalDate.ofEpochDay(in.getLong());
+			int projectCount = in.getInt();
+			List<ProjectEntry> projects = new ArrayList<>(projectCount);
+			for (int i = 0; i < projectCount; i++) {
+				ProjectEntry project = new ProjectEntry(readString(in));
+				int taskCount = in.getInt();
+				for (int j = 0; j < taskCount; j++) {
+					String repositoryUrl = readString(in);
+					String taskId = readString(in);
+					String summary = readString(in);
+					long[] seconds = new long[7];
+					for (int d = 0; d < 7; d++) {
+						seconds[d] = in.getInt();
+					}
+					int labelCount = in.getInt();
+					List<ActivityLabel> labels = new ArrayList<>(labelCount);
+					for (int l = 0; l < labelCount; l++) {
+						labels.add(new ActivityLabel(readString(in), readString(in)));
+					}
+					project.tasks.add(new TaskEntry(project, repositoryUrl, taskId, summary, seconds, labels));
+				}
+				projects.add(project);
+			}
+			return Optional.of(new WeekSnapshot(firstDayOfWeek, projects));
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			log.warn("Could not read week snapshot " + path, e);
+			return Optional.empty();
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Applies changes to the shared persistence context on a single writer thread
+ * and commits them in batches, so that the threads reporting the changes never
+ * have to wait for the database. Changes are applied in the order they were
+ * submitted, and are committed a short while after the first uncommitted
+ * change. Tick updates are coalesced so that only the latest tick of each task
+ * is applied, and are committed less frequently.
+ * <p>
+ * If a {@link TrackingJournal} is used, the journal records of the changes are
+ * released once the changes have been committed.
+ * </p>
+ *
+ * @author Torkild U. Resheim
+ */
+final class WriteBehindQueue {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+	/** Milliseconds changes are collected before they are committed */
+	static final long COMMIT_DELAY = 2_000;
+
+	/** Milliseconds tick updates are collected before they are committed */
+	static final long TICK_COMMIT_DELAY = 60_000;
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	/** Guards the shared persistence context while changes are applied */
+	private final Lock lock;
+
+	/** Commits all changes applied to the shared persistence context */
+	private final Runnable commit;
+
+	/**
+	 * Obtains the instance of a task managed by the shared persistence context,
+	 * as the task of a tick may have been detached since it was submitted
+	 */
+	private final UnaryOperator<Task> resolver;
+
+	/** A tick and the journal record it was written to */
+	private static final class Tick {
+
+		final LocalDateTime time;
+
+		final long record;
+
+		Tick(LocalDateTime time, long record) {
+			this.time = time;
+			this.record = record;
+		}
+	}
+
+	/** The latest tick of each task, not yet applied */
+	private final Map<Task, Tick> ticks = new ConcurrentHashMap<>();
+
+	/** Journal of the submitted changes, may be <code>null</code> */
+	private volatile TrackingJournal journal;
+
+	/** Journal records of the changes applied since the last commit, writer thread only */
+	private final List<Long> records = new ArrayList<>();
+
+	/** Number of changes that have been submitted but not committed */
+	private final AtomicInteger depth = new AtomicInteger();
+
+	/** Number of changes applied since the last commit, writer thread only */
+	private int applied;
+
+	/** The next scheduled commit, writer thread only */
+	private ScheduledFuture<?> scheduledCommit;
+
+	/** When the next scheduled commit is due, writer thread only */
+	private long commitDue;
+
+	/**
+	 * Creates a new queue.
+	 *
+	 * @param lock   the lock guarding the shared persistence context
+	 * @param commit commits all changes applied to the context
+	 */
+	WriteBehindQueue(Lock lock, Runnable commit) {
+		this(lock, commit, UnaryOperator.identity());
+	}
+
+	/**
+	 * Creates a new queue that applies ticks to the instances of the tasks
+	 * obtained using the resolver.
+	 *
+	 * @param lock     the lock guarding the shared persistence context
+	 * @param commit   commits all changes applied to the context
+	 * @param resolver returns the managed instance of a task, or
+	 *                 <code>null</code> if it has been removed
+	 */
+	WriteBehindQueue(Lock lock, Runnable commit, UnaryOperator<Task> resolver) {
+		this.lock = lock;
+		this.commit = commit;
+		this.resolver = resolver;
+		executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "Timekeeper database writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// scheduled commits are replaced by the final flush when shutting down
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * Submits a change to be applied to the shared persistence context. The
+	 * change will be committed along with others within
+	 * {@link #COMMIT_DELAY} milliseconds.
+	 *
+	 * @param change the change to apply
+	 */
+	void submit(Runnable change) {
+		submit(-1, change);
+	}
+
+	/**
+	 * Submits a change that has been written to the journal.
+	 *
+	 * @param record the journal record of the change, or -1
+	 * @param change the change to apply
+	 * @see #submit(Runnable)
+	 */
+	void submit(long record, Runnable change) {
+		depth.incrementAndGet();
+		executor.execute(() -> {
+			apply(change);
+			applied++;
+			if (record >= 0) {
+				records.add(record);
+			}
+			scheduleCommit(COMMIT_DELAY);
+		});
+	}
+
+	/**
+	 * Submits a new tick time for the task. If a previous tick has not yet been
+	 * applied, it is replaced.
+	 *
+	 * @param task the task to update
+	 * @param tick the tick time
+	 */
+	void tick(Task task, LocalDateTime tick) {
+		tick(task, tick, -1);
+	}
+
+	/**
+	 * Submits a new tick time that has been written to the journal.
+	 *
+	 * @param task   the task to update
+	 * @param tick   the tick time
+	 * @param record the journal record of the tick, or -1
+	 * @see #tick(Task, LocalDateTime)
+	 */
+	void tick(Task task, LocalDateTime tick, long record) {
+		Tick previous = ticks.put(task, new Tick(tick, record));
+		if (previous != null) {
+			// the record of the replaced tick is no longer needed
+			release(previous.record);
+		} else {
+			depth.incrementAndGet();
+			executor.execute(() -> {
+				apply(this::applyTicks);
+				scheduleCommit(TICK_COMMIT_DELAY);
+			});
+		}
+	}
+
+	/**
+	 * Applies and commits all changes submitted so far.
+	 *
+	 * @return a future that completes when the changes have been committed
+	 */
+	Future<?> flush() {
+		return executor.submit(this::commitNow);
+	}
+
+	/**
+	 * Applies and commits all changes submitted so far, and then does the work
+	 * on the writer thread while holding the lock, so that no other change is
+	 * applied in the meantime. The work is not done if the changes could not be
+	 * committed.
+	 *
+	 * @param work the work to do once the changes have been committed
+	 * @return a future that completes with the result of the work
+	 */
+	<T> Future<T> flush(Callable<T> work) {
+		return executor.submit(() -> {
+			commitNow();
+			if (applied > 0) {
+				throw new IllegalStateException("Could not commit " + applied + " changes");
+			}
+			lock.lock();
+			try {
+				return work.call();
+			} finally {
+				lock.unlock();
+			}
+		});
+	}
+
+	/**
+	 * Commits all changes submitted so far and stops the writer thread.
+	 *
+	 * @param timeout the maximum number of milliseconds to wait
+	 */
+	void shutdown(long timeout) {
+		if (executor.isShutdown()) {
+			return;
+		}
+		executor.execute(this::commitNow);
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				log.warn("Gave up waiting for {} changes to be stored", getDepth());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of changes that have been submitted but not yet
+	 * committed.
+	 *
+	 * @return the queue depth
+	 */
+	int getDepth() {
+		return depth.get();
+	}
+
+	/**
+	 * Sets the journal the submitted changes have been written to.
+	 *
+	 * @param journal the journal or <code>null</code>
+	 */
+	void setJournal(TrackingJournal journal) {
+		this.journal = journal;
+	}
+
+	private void apply(Runnable change) {
+		lock.lock();
+		try {
+			change.run();
+		} catch (RuntimeException e) {
+			log.error("Could not apply change to Timekeeper database", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void applyTicks() {
+		for (Task task : ticks.keySet()) {
+			Tick tick = ticks.remove(task);
+			if (tick != null) {
+				Task managed = resolver.apply(task);
+				if (managed != null) {
+					managed.setTick(tick.time);
+				}
+				applied++;
+				if (tick.record >= 0) {
+					records.add(tick.record);
+				}
+			}
+		}
+	}
+
+	private void release(long record) {
+		TrackingJournal j = journal;
+		if (j != null && record >= 0) {
+			j.done(record);
+		}
+	}
+
+	private void compactJournal() {
+		TrackingJournal j = journal;
+		if (j != null) {
+			try {
+				j.compact();
+			} catch (IOException e) {
+				log.error("Could not compact the Timekeeper journal", e);
+			}
+		}
+	}
+
+	private void scheduleCommit(long delay) {
+		long due = System.currentTimeMillis() + delay;
+		if (scheduledCommit != null && !scheduledCommit.isDone()) {
+			if (commitDue <= due) {
+				return;
+			}
+			scheduledCommit.cancel(false);
+		}
+		commitDue = due;
+		scheduledCommit = executor.schedule(this::commitNow, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void commitNow() {
+		if (scheduledCommit != null) {
+			scheduledCommit.cancel(false);
+			scheduledCommit = null;
+		}
+		if (applied == 0) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			commit.run();
+			depth.addAndGet(-applied);
+			log.debug("Committed {} changes in {} ms, {} pending", applied,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), getDepth());
+			applied = 0;
+			records.forEach(this::release);
+			records.clear();
+			compactJournal();
+		} catch (RuntimeException e) {
+			log.error("Could not commit changes to Timekeeper database", e);
+			scheduleCommit(COMMIT_DELAY);
+		}
+	}
+
+}
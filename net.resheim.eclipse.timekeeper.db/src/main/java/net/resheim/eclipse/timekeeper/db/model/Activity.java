@@ -15,9 +15,11 @@ import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Optional;
+import java.util.TimeZone;
 
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
@@ -26,13 +28,20 @@ import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
+import javax.persistence.PostLoad;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 import org.eclipse.persistence.annotations.UuidGenerator;
 
+import net.resheim.eclipse.timekeeper.db.ChangedEntities;
+import net.resheim.eclipse.timekeeper.db.DailyTotals;
 import net.resheim.eclipse.timekeeper.db.converters.LocalDateTimeAttributeConverter;
 
 /**
@@ -46,12 +55,25 @@ import net.resheim.eclipse.timekeeper.db.converters.LocalDateTimeAttributeConver
  * @author Torkild U. Resheim
  */
 @Entity
-@Table(name = "ACTIVITY")
+@Table(name = "ACTIVITY", indexes = {
+		@Index(name = "IX_ACTIVITY_START_TIME", columnList = "START_TIME"),
+		@Index(name = "IX_ACTIVITY_END_TIME", columnList = "END_TIME"),
+		@Index(name = "IX_ACTIVITY_EPOCH", columnList = "START_EPOCH,END_EPOCH"),
+		@Index(name = "IX_ACTIVITY_MODIFIED", columnList = "MODIFIED") })
 @UuidGenerator(name = "uuid")
 public class Activity implements Comparable<Activity>, Serializable {
 
 	private static final long serialVersionUID = 7770745026684660897L;
 
+	/** Epoch second used to mark the end of an activity that is still running */
+	public static final long OPEN = Long.MAX_VALUE;
+
+	/** Number of seconds in a day */
+	static final long SECONDS_PER_DAY = 86_400;
+
+	/** The time zone used when determining the current time in epoch seconds */
+	private static final TimeZone ZONE = TimeZone.getDefault();
+
 	@Id
 	@GeneratedValue(generator = "uuid")
 	@Column(name = "ID")
@@ -67,18 +89,25 @@ public class Activity implements Comparable<Activity>, Serializable {
 	@Convert(converter = LocalDateTimeAttributeConverter.class)
 	private LocalDateTime end = null;
 
+	/** The start time in epoch seconds, see {@link #toEpochSecond(LocalDateTime)} */
+	@Column(name = "START_EPOCH")
+	private Long startEpoch;
+
+	/** The end time in epoch seconds or {@link #OPEN} if the activity is running */
+	@Column(name = "END_EPOCH")
+	private Long endEpoch;
+
 	/** Whether or not activity properties have been manually adjusted or created */
 	@Column(name = "ADJUSTED")
 	private boolean manual = false;
 
 	/** The task the activity is associated with */
-	@ManyToOne
-	@JoinColumn(name = "TASK_ID", referencedColumnName = "TASK_ID")
-	@JoinColumn(name = "REPOSITORY_URL", referencedColumnName = "REPOSITORY_URL")
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "ACTIVITY_TASK")
 	private Task task;
 
 	/** The project this activity is associated with, if not associated with a tracked task */
-	@ManyToOne
+	@ManyToOne(fetch = FetchType.LAZY)
 	@JoinColumn(name = "ACTIVITY_PROJECT")
 	private Project project;
 
@@ -89,12 +118,26 @@ public class Activity implements Comparable<Activity>, Serializable {
 	@Column(name = "SUMMARY")
 	private String summary;
 
+	/** When the activity was last written, in milliseconds since the epoch */
+	@Column(name = "MODIFIED")
+	private Long modified;
+
+	/**
+	 * The period in epoch seconds that has been added to the daily totals, or
+	 * <code>null</code> if the activity is not yet part of these.
+	 * 
+	 * @see DailyTotals
+	 */
+	@Transient
+	private transient long[] accounted;
+
 	public Activity() {
 	}
 
 	public Activity(Task task, LocalDateTime start) {
 		this.task = task;
 		this.start = start;
+		updateEpoch();
 		StringBuilder sb = new StringBuilder();
 		sb.append("Activity started on ");
 		sb.append(getStart().format(DateTimeFormatter.ISO_LOCAL_DATE));
@@ -156,6 +199,45 @@ public class Activity implements Comparable<Activity>, Serializable {
 		return d;
 	}
 
+	/**
+	 * Returns the number of seconds of work on the given date. Unlike
+	 * {@link #getDuration(LocalDate)} this does not allocate any objects.
+	 * 
+	 * @param date the date to calculate for
+	 * @return the number of seconds of work on the given date
+	 * @see #getSeconds(long, long, long)
+	 */
+	public long getSeconds(LocalDate date) {
+		long from = toEpochSecond(date);
+		return getSeconds(from, from + SECONDS_PER_DAY, currentEpochSecond());
+	}
+
+	/**
+	 * Returns the number of seconds of work within the given period. If the
+	 * activity has not been ended, it is assumed to last until <i>now</i>.
+	 * 
+	 * @param from start of the period in epoch seconds, inclusive
+	 * @param to   end of the period in epoch seconds, exclusive
+	 * @param now  the current time in epoch seconds
+	 * @return the number of seconds of work within the period
+	 * @see #currentEpochSecond()
+	 */
+	public long getSeconds(long from, long to, long now) {
+		long s = getStartEpoch();
+		long e = end == null ? now : getEndEpoch();
+		if (s > to || e < from) {
+			return 0;
+		}
+		long d = e - s;
+		if (s < from) {
+			d -= from - s;
+		}
+		if (e > to) {
+			d -= e - to;
+		}
+		return d;
+	}
+
 	/**
 	 * Specifies the duration of the activity by modifying the end time. Also sets
 	 * the <i>manual</i> flag indicating that this activity was manually created or
@@ -166,6 +248,8 @@ public class Activity implements Comparable<Activity>, Serializable {
 	public void setDuration(Duration duration) {
 		end = start.plus(duration);
 		manual = true;
+		updateEpoch();
+		changed();
 	}
 
 	public LocalDateTime getEnd() {
@@ -178,10 +262,136 @@ public class Activity implements Comparable<Activity>, Serializable {
 
 	public void setEnd(LocalDateTime end) {
 		this.end = end;
+		updateEpoch();
+		changed();
 	}
 
 	public void setStart(LocalDateTime start) {
 		this.start = start;
+		updateEpoch();
+		changed();
+	}
+
+	/**
+	 * Returns the start time in epoch seconds.
+	 * 
+	 * @return the start time in seconds
+	 * @see #toEpochSecond(LocalDateTime)
+	 */
+	public long getStartEpoch() {
+		return startEpoch == null ? 0 : startEpoch;
+	}
+
+	/**
+	 * Returns the end time in epoch seconds, or {@link #OPEN} if the activity has
+	 * not been ended.
+	 * 
+	 * @return the end time in seconds
+	 * @see #toEpochSecond(LocalDateTime)
+	 */
+	public long getEndEpoch() {
+		return endEpoch == null ? OPEN : endEpoch;
+	}
+
+	/**
+	 * Returns the period in epoch seconds that has been added to the daily totals.
+	 * 
+	 * @return the start and end, or <code>null</code>
+	 * @see DailyTotals
+	 */
+	public long[] getAccounted() {
+		return accounted;
+	}
+
+	/**
+	 * Records whether or not the current period of the activity has been added to
+	 * the daily totals.
+	 * 
+	 * @param accounted <code>true</code> if the period has been added
+	 * @see DailyTotals
+	 */
+	public void setAccounted(boolean accounted) {
+		this.accounted = accounted ? new long[] { getStartEpoch(), getEndEpoch() } : null;
+	}
+
+	/**
+	 * Notifies the task and the daily totals that the period has changed.
+	 */
+	private void changed() {
+		if (task != null) {
+			task.invalidateIndex();
+		}
+		DailyTotals.markDirty(this);
+		ChangedEntities.markDirty(this);
+	}
+
+	/**
+	 * Keeps the epoch second columns in sync with the start and end times.
+	 */
+	private void updateEpoch() {
+		startEpoch = start == null ? null : toEpochSecond(start);
+		endEpoch = end == null ? OPEN : toEpochSecond(end);
+	}
+
+	/**
+	 * Called when the activity has been loaded from the database. Rows that have
+	 * not yet been migrated are assigned epoch seconds so that these are stored
+	 * the next time the activity is. Ended activities of a task are already part
+	 * of the daily totals. The task is not consulted as that would load it, the
+	 * daily totals ignore activities without a task anyway.
+	 */
+	@PostLoad
+	private void loaded() {
+		updateEpoch();
+		setAccounted(end != null);
+	}
+
+	/**
+	 * Records the time of writing, so that incremental exports can find the
+	 * activitys changed since the previous export.
+	 */
+	@PrePersist
+	@PreUpdate
+	private void stamp() {
+		modified = System.currentTimeMillis();
+	}
+
+	/**
+	 * Converts the local date and time to the number of seconds since
+	 * 1970-01-01T00:00. No time zone is applied, so the difference between two
+	 * values is the same as that of {@link Duration#between}, and every day starts
+	 * at a multiple of 86400 seconds.
+	 * 
+	 * @param time the local date and time
+	 * @return the number of seconds since the epoch
+	 */
+	public static long toEpochSecond(LocalDateTime time) {
+		return time.toEpochSecond(ZoneOffset.UTC);
+	}
+
+	/**
+	 * Returns the current local date and time as the number of seconds since
+	 * 1970-01-01T00:00, without allocating any objects. The time zone is that of
+	 * the system when this class was loaded.
+	 * 
+	 * @return the number of seconds since the epoch
+	 * @see #toEpochSecond(LocalDateTime)
+	 */
+	public static long currentEpochSecond() {
+		long millis = System.currentTimeMillis();
+		return Math.floorDiv(millis + ZONE.getOffset(millis), 1000);
+	}
+
+	/**
+	 * Converts the start of the local date to the number of seconds since
+	 * 1970-01-01T00:00.
+	 * 
+	 * @param date the local date
+	 * @return the number of seconds since the epoch
+	 * @see #toEpochSecond(LocalDateTime)
+	 */
+	public static long toEpochSecond(LocalDate date) {
+		return date.toEpochDay() * SECONDS_PER_DAY;
 	}
 
 	public boolean isEdited() {
@@ -192,12 +402,23 @@ public class Activity implements Comparable<Activity>, Serializable {
 		return task;
 	}
 
+	/**
+	 * Associates the activity with the task. This is done when the activity is
+	 * added to the task, as the relation is stored in the activity.
+	 *
+	 * @param task the task
+	 */
+	void setTrackedTask(Task task) {
+		this.task = task;
+	}
+
 	public String getSummary() {
 		return summary;
 	}
 
 	public void setSummary(String summary) {
 		this.summary = summary;
+		ChangedEntities.markDirty(this);
 	}
 
 	@Override
@@ -205,12 +426,18 @@ public class Activity implements Comparable<Activity>, Serializable {
 		return this.getStart().compareTo(o.getStart());
 	}
 
+	/**
+	 * Stored activities are identified by their identifier alone, so that the
+	 * task is not loaded when the activity is looked up in a collection.
+	 */
 	@Override
 	public int hashCode() {
+		if (id != null) {
+			return id.hashCode();
+		}
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((end == null) ? 0 : end.hashCode());
-		result = prime * result + ((id == null) ? 0 : id.hashCode());
 		result = prime * result + (manual ? 1231 : 1237);
 		result = prime * result + ((start == null) ? 0 : start.hashCode());
 		result = prime * result + ((summary == null) ? 0 : summary.hashCode());
@@ -227,16 +454,14 @@ public class Activity implements Comparable<Activity>, Serializable {
 		if (getClass() != obj.getClass())
 			return false;
 		Activity other = (Activity) obj;
+		if (id != null || other.id != null) {
+			return id != null && id.equals(other.id);
+		}
 		if (end == null) {
 			if (other.end != null)
 				return false;
 		} else if (!end.equals(other.end))
 			return false;
-		if (id == null) {
-			if (other.id != null)
-				return false;
-		} else if (!id.equals(other.id))
-			return false;
 		if (manual != other.manual)
 			return false;
 		if (start == null) {
@@ -268,7 +493,7 @@ public class Activity implements Comparable<Activity>, Serializable {
 		} else {
 			labels.remove(label);
 		}
-		
+		ChangedEntities.markDirty(this);
 	}
 
 }
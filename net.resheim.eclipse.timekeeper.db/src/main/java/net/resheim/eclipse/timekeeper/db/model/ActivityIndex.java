@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable index over the ended activities of a {@link Task}, used to
+ * calculate the time spent within a period without visiting every activity.
+ * <p>
+ * The overlap of an activity <i>[s, e)</i> with a period <i>[a, b)</i> equals
+ * <i>clamp(e) - clamp(s)</i> where <i>clamp(x) = min(max(x, a), b)</i>. Hence the
+ * total for all activities is the sum of clamped end times minus the sum of
+ * clamped start times. Start and end times are kept in two separately sorted
+ * arrays with prefix sums, so each of these sums is found using two binary
+ * searches. This also holds when activities overlap.
+ * </p>
+ * <p>
+ * Activities that have not been ended are kept aside and calculated
+ * individually, as their duration depends on the current time.
+ * </p>
+ *
+ * @author Torkild U. Resheim
+ */
+final class ActivityIndex {
+
+	/** Sorted start times in epoch seconds */
+	private final long[] starts;
+
+	/** Sorted end times in epoch seconds */
+	private final long[] ends;
+
+	/** Prefix sums of {@link #starts}, one longer than the array */
+	private final long[] startSums;
+
+	/** Prefix sums of {@link #ends}, one longer than the array */
+	private final long[] endSums;
+
+	/** Activities that have not been ended */
+	private final List<Activity> open;
+
+	/** Number of activities this index was created from */
+	private final int size;
+
+	ActivityIndex(List<Activity> activities) {
+		size = activities.size();
+		open = new ArrayList<>(1);
+		long[] s = new long[size];
+		long[] e = new long[size];
+		int n = 0;
+		for (Activity activity : activities) {
+			if (activity.getEnd() == null) {
+				open.add(activity);
+			} else {
+				s[n] = activity.getStartEpoch();
+				e[n] = activity.getEndEpoch();
+				n++;
+			}
+		}
+		starts = Arrays.copyOf(s, n);
+		ends = Arrays.copyOf(e, n);
+		Arrays.sort(starts);
+		Arrays.sort(ends);
+		startSums = prefixSums(starts);
+		endSums = prefixSums(ends);
+	}
+
+	/**
+	 * Returns the number of activities this index was created from.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the activities that have not been ended.
+	 */
+	List<Activity> getOpen() {
+		return open;
+	}
+
+	/**
+	 * Returns the number of seconds the ended activities overlap with the given
+	 * period.
+	 *
+	 * @param from start of the period in epoch seconds, inclusive
+	 * @param to   end of the period in epoch seconds, exclusive
+	 * @return the number of seconds
+	 */
+	long getSeconds(long from, long to) {
+		if (to <= from) {
+			return 0;
+		}
+		return clampedSum(ends, endSums, from, to) - clampedSum(starts, startSums, from, to);
+	}
+
+	/**
+	 * Returns the sum of all values when each is clamped to [from, to].
+	 */
+	private static long clampedSum(long[] values, long[] sums, long from, long to) {
+		int lo = lowerBound(values, from);
+		int hi = lowerBound(values, to);
+		return lo * from + (sums[hi] - sums[lo]) + (values.length - hi) * to;
+	}
+
+	/**
+	 * Returns the index of the first value that is not less than the key.
+	 */
+	private static int lowerBound(long[] values, long key) {
+		int lo = 0;
+		int hi = values.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static long[] prefixSums(long[] values) {
+		long[] sums = new long[values.length + 1];
+		for (int i = 0; i < values.length; i++) {
+			sums[i + 1] = sums[i] + values[i];
+		}
+		return sums;
+	}
+
+}
@@ -17,8 +17,12 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.NamedQuery;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
 
+import net.resheim.eclipse.timekeeper.db.ChangedEntities;
+
 /**
  * A label has a color and a name and is used to categorize an {@link Activity}.
  * 
@@ -41,6 +45,10 @@ public class ActivityLabel implements Serializable {
 
 	@Column(name = "COLOR")
 	private String color;
+
+	/** When the label was last written, in milliseconds since the epoch */
+	@Column(name = "MODIFIED")
+	private Long modified;
 	
 	public ActivityLabel() {
 	}
@@ -62,6 +70,7 @@ public class ActivityLabel implements Serializable {
 
 	public void setName(String name) {
 		this.name = name;
+		ChangedEntities.markDirty(this);
 	}
 
 	public String getColor() {
@@ -70,10 +79,21 @@ public class ActivityLabel implements Serializable {
 
 	public void setColor(String color) {
 		this.color = color;
+		ChangedEntities.markDirty(this);
 	}
 
 	public String getId() {
 		return id;
 	}
 
+	/**
+	 * Records the time of writing, so that incremental exports can find the
+	 * labels changed since the previous export.
+	 */
+	@PrePersist
+	@PreUpdate
+	private void stamp() {
+		modified = System.currentTimeMillis();
+	}
+
 }
@@ -22,10 +22,14 @@ import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
 
 import org.eclipse.mylyn.internal.tasks.core.Category;
 
+import net.resheim.eclipse.timekeeper.db.ChangedEntities;
+
 /**
  * The {@link Project} type represents a project where time is spent on
  * {@link Task} {@link Activity}. A project is typically a representation of a
@@ -69,6 +73,10 @@ public class Project implements Comparable<Project>, Serializable {
 	@Column(name = "EXTERNAL_ID")
 	private String externalId;
 
+	/** When the project was last written, in milliseconds since the epoch */
+	@Column(name = "MODIFIED")
+	private Long modified;
+
 	/**
 	 * A list of all activities spent directly on the project without being
 	 * associated with a particular task.
@@ -79,7 +87,7 @@ public class Project implements Comparable<Project>, Serializable {
 	/**
 	 * A list of all tasks worked on in this project.
 	 */
-	@OneToMany(cascade = CascadeType.ALL, fetch = FetchType.LAZY)
+	@OneToMany(mappedBy = "taskProject", cascade = CascadeType.ALL, fetch = FetchType.LAZY)
 	private Set<Task> tasks;
 
 	protected Project() {
@@ -98,7 +106,9 @@ public class Project implements Comparable<Project>, Serializable {
 	}
 	
 	public void addTask(Task task) {
-		tasks.add(task);
+		if (tasks.add(task)) {
+			ChangedEntities.markDirty(this);
+		}
 	}
 
 
@@ -113,6 +123,7 @@ public class Project implements Comparable<Project>, Serializable {
 
 	public void setTasksUrl(String tasksUrl) {
 		this.tasksUrl = tasksUrl;
+		ChangedEntities.markDirty(this);
 	}
 
 	public String getExternalId() {
@@ -121,6 +132,7 @@ public class Project implements Comparable<Project>, Serializable {
 
 	public void setExternalId(String externalId) {
 		this.externalId = externalId;
+		ChangedEntities.markDirty(this);
 	}
 
 	public String getName() {
@@ -129,6 +141,7 @@ public class Project implements Comparable<Project>, Serializable {
 
 	public void setName(String name) {
 		this.name = name;
+		ChangedEntities.markDirty(this);
 	}
 
 	public String getProjectUrl() {
@@ -137,6 +150,7 @@ public class Project implements Comparable<Project>, Serializable {
 
 	public void setProjectUrl(String projectUrl) {
 		this.projectUrl = projectUrl;
+		ChangedEntities.markDirty(this);
 	}
 
 	public String getRepositoryUrl() {
@@ -145,6 +159,7 @@ public class Project implements Comparable<Project>, Serializable {
 
 	public void setRepositoryUrl(String repositoryUrl) {
 		this.repositoryUrl = repositoryUrl;
+		ChangedEntities.markDirty(this);
 	}
 
 	public ProjectType getProjectType() {
@@ -153,6 +168,17 @@ public class Project implements Comparable<Project>, Serializable {
 
 	public void setProjectType(ProjectType projectType) {
 		this.projectType = projectType;
+		ChangedEntities.markDirty(this);
+	}
+
+	/**
+	 * Records the time of writing, so that incremental exports can find the
+	 * projects changed since the previous export.
+	 */
+	@PrePersist
+	@PreUpdate
+	private void stamp() {
+		modified = System.currentTimeMillis();
 	}
 
 }
@@ -26,15 +26,21 @@ import javax.persistence.Column;
 import javax.persistence.Convert;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
-import javax.persistence.IdClass;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
 import javax.persistence.Transient;
+import javax.persistence.UniqueConstraint;
 
 import org.eclipse.mylyn.internal.tasks.core.AbstractTask;
 import org.eclipse.mylyn.internal.tasks.core.AbstractTaskCategory;
@@ -42,6 +48,8 @@ import org.eclipse.mylyn.internal.tasks.core.AbstractTaskContainer;
 import org.eclipse.mylyn.internal.tasks.core.RepositoryQuery;
 import org.eclipse.mylyn.tasks.core.ITask;
 
+import net.resheim.eclipse.timekeeper.db.ChangedEntities;
+import net.resheim.eclipse.timekeeper.db.DailyTotals;
 import net.resheim.eclipse.timekeeper.db.TimekeeperPlugin;
 import net.resheim.eclipse.timekeeper.db.converters.LocalDateTimeAttributeConverter;
 
@@ -54,9 +62,22 @@ import net.resheim.eclipse.timekeeper.db.converters.LocalDateTimeAttributeConver
  */
 @SuppressWarnings("restriction")
 @Entity
-@Table(name = "TASK")
-@IdClass(value = GlobalTaskId.class)
-@NamedQuery(name="Task.findAll", query="SELECT t FROM Task t")
+@Table(name = "TASK", uniqueConstraints = {
+		@UniqueConstraint(name = "UX_TASK_GLOBAL_ID", columnNames = { "REPOSITORY_URL", "TASK_ID" }) }, indexes = {
+		@Index(name = "IX_TASK_MODIFIED", columnList = "MODIFIED") })
+@NamedQueries({
+	@NamedQuery(name="Task.findAll", query="SELECT t FROM Task t"),
+	@NamedQuery(name="Task.findByGlobalId", query="SELECT t FROM Task t WHERE t.repositoryUrl = :repositoryUrl AND t.taskId = :taskId"),
+	// tasks with an activity that has not been ended
+	@NamedQuery(name="Task.findRunning", query="SELECT t FROM Task t WHERE t.currentActivity IS NOT NULL"),
+	// an activity is within the period if it starts before the period ends and
+	// either is still running or ends after the period started
+	@NamedQuery(name="Task.findByPeriod", query="SELECT DISTINCT t FROM Task t JOIN t.activities a "
+			+ "WHERE a.start < :end AND (a.end IS NULL OR (a.end > :start AND a.end > a.start))"),
+	// same as above, using the epoch second columns where running activities end at Activity.OPEN
+	@NamedQuery(name="Task.findByEpochPeriod", query="SELECT DISTINCT t FROM Task t JOIN t.activities a "
+			+ "WHERE a.startEpoch < :end AND a.endEpoch > :start AND a.endEpoch > a.startEpoch")
+})
 public class Task implements Serializable {
 	
 	private static final long serialVersionUID = -2455754936217658613L;
@@ -64,12 +85,16 @@ public class Task implements Serializable {
 	@Transient
 	private transient Lock lock = new ReentrantLock();
 
+	/** Surrogate key used when referring to the task from other tables */
 	@Id
-	@Column(name = "REPOSITORY_URL")
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "ID")
+	private Long primaryKey;
+
+	@Column(name = "REPOSITORY_URL", nullable = false)
 	private String repositoryUrl;
 
-	@Id
-	@Column(name = "TASK_ID")
+	@Column(name = "TASK_ID", nullable = false)
 	private String taskId;
 
 	@ManyToOne
@@ -82,7 +107,7 @@ public class Task implements Serializable {
 	@Column(name = "TASK_SUMMARY")
 	private String taskSummary;
 
-	@OneToOne
+	@OneToOne(fetch = FetchType.LAZY)
 	@JoinColumn(name = "CURRENTACTIVITY_ID")
 	private Activity currentActivity;
 
@@ -91,7 +116,12 @@ public class Task implements Serializable {
 	@Column(name = "TICK")
 	private LocalDateTime tick;
 
-	@OneToMany(cascade = CascadeType.ALL, fetch = FetchType.LAZY)
+	/** When the task was last written, in milliseconds since the epoch */
+	@Column(name = "MODIFIED")
+	private Long modified;
+
+	/** Activities of the task, mapped by the ACTIVITY_TASK column of ACTIVITY */
+	@OneToMany(mappedBy = "task", cascade = CascadeType.ALL, orphanRemoval = true, fetch = FetchType.LAZY)
 	private List<Activity> activities;
 	
 	/** Optional link to a Mylyn task */
@@ -105,6 +135,10 @@ public class Task implements Serializable {
 	@Transient
 	private transient TaskLinkStatus taskLinkStatus = TaskLinkStatus.UNDETERMINED;
 
+	/** Index used for calculating durations, created when needed */
+	@Transient
+	private transient volatile ActivityIndex index;
+
 	public Task() {
 		activities = new ArrayList<>();
 	}
@@ -123,8 +157,38 @@ public class Task implements Serializable {
 		}
 	}
 
+	/**
+	 * Creates a new tracked task that is not yet associated with a Mylyn task.
+	 * The association, and thus the project, is established when the task is
+	 * obtained through {@link TimekeeperPlugin#getTask(ITask)}.
+	 * 
+	 * @param id      the global identifier of the task
+	 * @param summary the summary of the task
+	 */
+	public Task(GlobalTaskId id, String summary) {
+		this();
+		repositoryUrl = id.getRepositoryUrl();
+		taskId = id.getTaskId();
+		taskSummary = summary;
+	}
+
 	public void addActivity(Activity activity) {
+		activity.setTrackedTask(this);
 		activities.add(activity);
+		invalidateIndex();
+		ChangedEntities.markDirty(this);
+	}
+
+	/**
+	 * Removes the activity from this task.
+	 * 
+	 * @param activity the activity to remove
+	 */
+	public void removeActivity(Activity activity) {
+		activities.remove(activity);
+		invalidateIndex();
+		DailyTotals.markDirty(activity);
+		ChangedEntities.markDirty(this);
 	}
 
 	/**
@@ -144,6 +208,7 @@ public class Task implements Serializable {
 			returnActivity = currentActivity;
 			currentActivity = null;
 			lock.unlock();
+			ChangedEntities.markDirty(this);
 		}
 		return returnActivity;
 	}
@@ -162,6 +227,7 @@ public class Task implements Serializable {
 			currentActivity.setEnd(LocalDateTime.now());
 			currentActivity = null;
 			lock.unlock();
+			ChangedEntities.markDirty(this);
 		}
 	}
 
@@ -193,12 +259,87 @@ public class Task implements Serializable {
 	 * @return the total duration of work on the date
 	 */
 	public Duration getDuration(LocalDate date) {
-		Duration total = Duration.ZERO;
-		// sum up the duration
-		return getActivities()
-				.stream()
-				.map(a -> a.getDuration(date))
-				.reduce(total, (t, u) -> t.plus(u));
+		return getDuration(date, date.plusDays(1));
+	}
+
+	/**
+	 * Returns the total duration of work between the two dates, accumulated from
+	 * all the recorded activities. Ended activities are counted in whole seconds.
+	 * 
+	 * @param start the first date
+	 * @param end   the date after the last date
+	 * @return the total duration of work between the two dates
+	 */
+	public Duration getDuration(LocalDate start, LocalDate end) {
+		return Duration.ofSeconds(getSeconds(Activity.toEpochSecond(start), Activity.toEpochSecond(end),
+				Activity.currentEpochSecond()));
+	}
+
+	/**
+	 * Returns the number of seconds of work on the given date. Unlike
+	 * {@link #getDuration(LocalDate)} this does not allocate any objects once the
+	 * index of activities has been created.
+	 * 
+	 * @param date the date to calculate for
+	 * @return the number of seconds of work on the given date
+	 * @see #getSeconds(long, long, long)
+	 */
+	public long getSeconds(LocalDate date) {
+		long from = Activity.toEpochSecond(date);
+		return getSeconds(from, from + Activity.SECONDS_PER_DAY, Activity.currentEpochSecond());
+	}
+
+	/**
+	 * Returns the number of seconds of work within the given period, accumulated
+	 * from all the recorded activities. Activities that have not been ended are
+	 * assumed to last until <i>now</i>.
+	 * 
+	 * @param from start of the period in epoch seconds, inclusive
+	 * @param to   end of the period in epoch seconds, exclusive
+	 * @param now  the current time in epoch seconds
+	 * @return the number of seconds of work within the period
+	 * @see Activity#currentEpochSecond()
+	 */
+	public long getSeconds(long from, long to, long now) {
+		ActivityIndex i = getIndex();
+		long seconds = i.getSeconds(from, to);
+		List<Activity> open = i.getOpen();
+		for (int a = 0; a < open.size(); a++) {
+			seconds += open.get(a).getSeconds(from, to, now);
+		}
+		return seconds;
+	}
+
+	/**
+	 * Returns the index of activities, creating it if it has been invalidated or
+	 * the list of activities has been modified directly.
+	 */
+	private ActivityIndex getIndex() {
+		ActivityIndex i = index;
+		if (i == null || i.size() != activities.size()) {
+			i = new ActivityIndex(activities);
+			index = i;
+		}
+		return i;
+	}
+
+	/**
+	 * Discards the index of activities. This must be called whenever an activity
+	 * of this task is added, removed or has its period changed.
+	 */
+	void invalidateIndex() {
+		index = null;
+	}
+
+	/**
+	 * Returns the identifier of this task, which is unique across all
+	 * repositories. In the database the task is referred to using a numeric
+	 * surrogate key.
+	 * 
+	 * @return the task identifier
+	 */
+	public GlobalTaskId getId() {
+		return new GlobalTaskId(repositoryUrl, taskId);
 	}
 
 	public String getTaskUrl() {
@@ -207,6 +348,7 @@ public class Task implements Serializable {
 
 	public void setTaskUrl(String taskUrl) {
 		this.taskUrl = taskUrl;
+		ChangedEntities.markDirty(this);
 	}
 
 	public String getTaskSummary() {
@@ -215,6 +357,7 @@ public class Task implements Serializable {
 
 	public void setTaskSummary(String taskSummary) {
 		this.taskSummary = taskSummary;
+		ChangedEntities.markDirty(this);
 	}
 
 	/**
@@ -226,6 +369,16 @@ public class Task implements Serializable {
 		return tick;
 	}
 
+	/**
+	 * Records the time of writing, so that incremental exports can find the
+	 * tasks changed since the previous export.
+	 */
+	@PrePersist
+	@PreUpdate
+	private void stamp() {
+		modified = System.currentTimeMillis();
+	}
+
 	/**
 	 * Associates given Mylyn Task with this instance.
 	 * 
@@ -269,6 +422,7 @@ public class Task implements Serializable {
 	 */
 	public void setTick(LocalDateTime tick) {
 		this.tick = tick;
+		ChangedEntities.markDirty(this);
 	}
 
 	/**
@@ -279,9 +433,22 @@ public class Task implements Serializable {
 	 * @see #getCurrentActivity()
 	 */
 	public Activity startActivity() {
+		return startActivity(LocalDateTime.now());
+	}
+
+	/**
+	 * Starts a new activity at the given time and sets this as the current
+	 * activity. If there is already another activity active this will be
+	 * returned.
+	 * 
+	 * @param start the date and time the activity was started
+	 * @return the current activity
+	 * @see #startActivity()
+	 */
+	public Activity startActivity(LocalDateTime start) {
 		if (currentActivity == null) {
 			lock.lock();
-			currentActivity = new Activity(this, LocalDateTime.now());
+			currentActivity = new Activity(this, start);
 			addActivity(currentActivity);
 			lock.unlock();
 			return currentActivity;
@@ -331,8 +498,12 @@ public class Task implements Serializable {
 	}
 
 	public void setProject(Project project) {
+		if (project == taskProject) {
+			return;
+		}
 		this.taskProject = project;
 		this.taskProject.addTask(this);
+		ChangedEntities.markDirty(this);
 	}
 	
 	public TaskLinkStatus getTaskLinkStatus() {
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db.model;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+
+import net.resheim.eclipse.timekeeper.db.DailyTotals;
+
+/**
+ * The number of seconds spent on a {@link Task} on one particular day, summed
+ * over all ended activities of the task. The table is maintained incrementally
+ * by {@link DailyTotals} so that weekly totals can be read without loading the
+ * activity history. Activities that are still running are not included.
+ * 
+ * @author Torkild U. Resheim
+ */
+@Entity
+@Table(name = "TASK_DAY_TOTAL", indexes = {
+		@Index(name = "IX_TASK_DAY_TOTAL_DAY", columnList = "EPOCH_DAY") })
+@IdClass(value = TaskDayTotalId.class)
+@NamedQueries({
+	@NamedQuery(name="TaskDayTotal.findByPeriod", query="SELECT d FROM TaskDayTotal d WHERE d.day >= :start AND d.day < :end"),
+	@NamedQuery(name="TaskDayTotal.count", query="SELECT COUNT(d) FROM TaskDayTotal d"),
+	@NamedQuery(name="TaskDayTotal.deleteAll", query="DELETE FROM TaskDayTotal d")
+})
+public class TaskDayTotal implements Serializable {
+
+	private static final long serialVersionUID = 6209917432113284470L;
+
+	@Id
+	@Column(name = "REPOSITORY_URL")
+	private String repositoryUrl;
+
+	@Id
+	@Column(name = "TASK_ID")
+	private String taskId;
+
+	/** The day as number of days since 1970-01-01 */
+	@Id
+	@Column(name = "EPOCH_DAY")
+	private long day;
+
+	/** Name of the project the task belonged to when last updated */
+	@Column(name = "PROJECT")
+	private String project;
+
+	/** Total number of seconds spent on the task this day */
+	@Column(name = "SECONDS")
+	private long seconds;
+
+	protected TaskDayTotal() {
+	}
+
+	public TaskDayTotal(TaskDayTotalId id) {
+		this.repositoryUrl = id.getRepositoryUrl();
+		this.taskId = id.getTaskId();
+		this.day = id.getDay();
+	}
+
+	public TaskDayTotalId getId() {
+		return new TaskDayTotalId(repositoryUrl, taskId, day);
+	}
+
+	public GlobalTaskId getTaskId() {
+		return new GlobalTaskId(repositoryUrl, taskId);
+	}
+
+	public LocalDate getDate() {
+		return LocalDate.ofEpochDay(day);
+	}
+
+	public long getDay() {
+		return day;
+	}
+
+	public String getProject() {
+		return project;
+	}
+
+	public void setProject(String project) {
+		this.project = project;
+	}
+
+	public long getSeconds() {
+		return seconds;
+	}
+
+	public void setSeconds(long seconds) {
+		this.seconds = seconds;
+	}
+
+}
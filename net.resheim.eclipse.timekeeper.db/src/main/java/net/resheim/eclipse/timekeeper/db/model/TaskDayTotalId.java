@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db.model;
+
+import java.io.Serializable;
+
+/**
+ * Primary key of {@link TaskDayTotal}; the task and the day.
+ * 
+ * @author Torkild U. Resheim
+ */
+public class TaskDayTotalId implements Serializable {
+
+	private static final long serialVersionUID = -2250337185442010925L;
+
+	private String repositoryUrl;
+
+	private String taskId;
+
+	private long day;
+
+	public TaskDayTotalId() {
+	}
+
+	public TaskDayTotalId(String repositoryUrl, String taskId, long day) {
+		this.repositoryUrl = repositoryUrl;
+		this.taskId = taskId;
+		this.day = day;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = result * prime + repositoryUrl.hashCode();
+		result = result * prime + taskId.hashCode();
+		result = result * prime + Long.hashCode(day);
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof TaskDayTotalId) {
+			TaskDayTotalId other = (TaskDayTotalId) obj;
+			return other.day == day && other.repositoryUrl.equals(repositoryUrl) && other.taskId.equals(taskId);
+		}
+		return false;
+	}
+
+	public String getRepositoryUrl() {
+		return repositoryUrl;
+	}
+
+	public String getTaskId() {
+		return taskId;
+	}
+
+	public long getDay() {
+		return day;
+	}
+
+}
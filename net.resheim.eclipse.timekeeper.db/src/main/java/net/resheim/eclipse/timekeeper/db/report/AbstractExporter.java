@@ -41,7 +41,7 @@ public abstract class AbstractExporter {
 		return tasks
 				.stream()
 				.filter(t -> project.equals(t.getProject()))
-				.mapToLong(t -> t.getDuration(date).getSeconds())
+				.mapToLong(t -> t.getSeconds(date))
 				.sum();
 	}
 
@@ -57,7 +57,7 @@ public abstract class AbstractExporter {
 	protected long getSum(Set<Task> tasks, LocalDate date) {
 		return tasks
 				.stream()
-				.mapToLong(t -> t.getDuration(date).getSeconds())
+				.mapToLong(t -> t.getSeconds(date))
 				.sum();
 	}
 
@@ -45,11 +45,11 @@ public class FormatDurationMethodModel implements TemplateMethodModelEx {
 		long seconds = 0;
 		if ((((StringModel) args.get(1)).getWrappedObject()) instanceof Task) {
 			Task task = (Task) ((StringModel) args.get(1)).getWrappedObject();
-			seconds = task.getDuration(day).getSeconds();
+			seconds = task.getSeconds(day);
 		}
 		if ((((StringModel) args.get(1)).getWrappedObject()) instanceof Activity) {
 			Activity task = (Activity) ((StringModel) args.get(1)).getWrappedObject();
-			seconds = task.getDuration(day).getSeconds();
+			seconds = task.getSeconds(day);
 		}
 		if (seconds > 60) {
 			return DurationFormatUtils.formatDuration(seconds * 1000, "H:mm", true);
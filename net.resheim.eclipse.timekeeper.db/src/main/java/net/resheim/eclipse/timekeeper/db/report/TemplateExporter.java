@@ -16,16 +16,22 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import javax.persistence.EntityManager;
+
 import freemarker.cache.StringTemplateLoader;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
+import net.resheim.eclipse.timekeeper.db.DailyTotals;
 import net.resheim.eclipse.timekeeper.db.TimekeeperPlugin;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
 import net.resheim.eclipse.timekeeper.db.model.Task;
 import net.resheim.eclipse.timekeeper.db.report.model.WorkWeek;
 
@@ -52,17 +58,28 @@ public class TemplateExporter extends AbstractExporter {
 
 	@Override
 	public String getData(LocalDate firstDateOfWeek) {
+		EntityManager em = null;
 		try {
 			Template template = configuration.getTemplate(reportTemplate.getName());
 			StringWriter out = new StringWriter();
 
+			// store pending changes and read them back using a separate entity
+			// manager so that the instances shown in the user interface are not touched
+			TimekeeperPlugin.getDefault().updateDailyTotals();
+			em = TimekeeperPlugin.openEntityManager();
 			Set<Task>filtered = TimekeeperPlugin
-					.getTasks(firstDateOfWeek)
+					.getTasks(em, firstDateOfWeek)
 					.collect(Collectors.toSet());
 
-			// create the objects we're reporting on
+			// create the objects we're reporting on, using the daily totals if available
 			List<WorkWeek> weeks = new ArrayList<>();
-			weeks.add(new WorkWeek(firstDateOfWeek, filtered));
+			if (DailyTotals.isReady()) {
+				LocalDate[] dates = new WorkWeek(firstDateOfWeek, Collections.emptySet()).getDates();
+				Map<GlobalTaskId, long[]> totals = DailyTotals.load(em, dates[0], dates.length);
+				weeks.add(new WorkWeek(firstDateOfWeek, filtered, totals));
+			} else {
+				weeks.add(new WorkWeek(firstDateOfWeek, filtered));
+			}
 			// add the various models that we need for formatting and data extraction
 			HashMap<String, Object> contents = new HashMap<>();
 			// utility for formatting DateTime instances
@@ -79,6 +96,10 @@ public class TemplateExporter extends AbstractExporter {
 
 		} catch (IOException | TemplateException e) {
 			e.printStackTrace();
+		} finally {
+			if (em != null) {
+				em.close();
+			}
 		}
 		// ignore
 		return null;
@@ -14,13 +14,16 @@ import java.time.Duration;
 import java.time.LocalDate;
 import java.time.temporal.WeekFields;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import net.resheim.eclipse.timekeeper.db.DailyTotals;
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
 import net.resheim.eclipse.timekeeper.db.model.Project;
 import net.resheim.eclipse.timekeeper.db.model.Task;
 
@@ -40,6 +43,9 @@ public class WorkWeek {
 
 	/** All tasks that have been active this week */
 	protected Set<Task> tasks = Collections.emptySet();
+
+	/** Seconds spent on each task, per day of the week */
+	private Map<Task, long[]> seconds;
 	
 	/**
 	 * Creates a new {@link WorkWeek} instance
@@ -54,6 +60,41 @@ public class WorkWeek {
 		this.firstDayOfWeek = firstDayOfWeek;
 		this.tasks = tasks;
 		update();
+		seconds = new HashMap<>();
+		long now = Activity.currentEpochSecond();
+		long first = Activity.toEpochSecond(dates[0]);
+		for (Task task : tasks) {
+			long[] s = new long[dates.length];
+			for (int i = 0; i < dates.length; i++) {
+				long from = first + i * 86_400L;
+				s[i] = task.getSeconds(from, from + 86_400L, now);
+			}
+			seconds.put(task, s);
+		}
+	}
+
+	/**
+	 * Creates a new {@link WorkWeek} instance using daily totals instead of
+	 * walking through the activities of each task.
+	 * 
+	 * @param firstDayOfWeek
+	 *            date of the first day of the week
+	 * @param tasks
+	 *            a list of tasks being active this week
+	 * @param totals
+	 *            the daily totals of the week as loaded by
+	 *            {@link DailyTotals#load(javax.persistence.EntityManager, LocalDate, int)}
+	 *            starting at the first date of {@link #getDates()}
+	 */
+	public WorkWeek(LocalDate firstDayOfWeek, Set<Task> tasks, Map<GlobalTaskId, long[]> totals) {
+		super();
+		this.firstDayOfWeek = firstDayOfWeek;
+		this.tasks = tasks;
+		update();
+		seconds = new HashMap<>();
+		for (Task task : tasks) {
+			seconds.put(task, DailyTotals.getSeconds(totals, task, dates[0], dates.length));
+		}
 	}
 
 	/**
@@ -87,27 +128,16 @@ public class WorkWeek {
 	 * Returns the total amount of hours spent on the given project for the entire week.
 	 */
 	public Duration getSum() {
-		Duration total = Duration.ZERO;
-		for (LocalDate date : dates) {
-			Optional<Duration> d = tasks.stream()
-				.map(t -> t.getDuration(date))
-				.reduce(Duration::plus);	
-			if (d.isPresent()) {
-				total = total.plus(d.get());
-			}
-		}
-		return total;
+		return Duration.ofSeconds(tasks.stream()
+				.mapToLong(this::getSeconds)
+				.sum());
 	}
 
 	/**
 	 * Returns the total amount of hours spent at the given task.
 	 */
 	public Duration getSum(Task task) {
-		Duration total = Duration.ZERO;
-		for (LocalDate date : dates) {
-			total = total.plus(task.getDuration(date));								
-		}
-		return total;
+		return Duration.ofSeconds(getSeconds(task));
 	}
 
 	/**
@@ -117,14 +147,10 @@ public class WorkWeek {
 	 *            the date to calculate the total for
 	 */
 	public Duration getSum(LocalDate date) {
-		Optional<Duration> d = tasks.stream()
-			.map(t -> t.getDuration(date))
-			.reduce(Duration::plus);
-		if (d.isPresent()) {
-			return d.get();
-		} else {
-			return Duration.ZERO;
-		}
+		int day = indexOf(date);
+		return Duration.ofSeconds(tasks.stream()
+				.mapToLong(t -> getSeconds(t, day))
+				.sum());
 	}
 
 	/**
@@ -135,24 +161,46 @@ public class WorkWeek {
 	 *            the project name and identifier
 	 */
 	public Duration getSum(Project project) {
-		Duration total = Duration.ZERO;
-		for (LocalDate date : dates) {
-			total = total.plus(tasks.stream()
-					.filter(t -> project.equals(t.getProject()))
-					.map(t -> t.getDuration(date))
-					.reduce(Duration::plus).orElse(Duration.ZERO));			
-		}
-		return total;
+		return Duration.ofSeconds(tasks.stream()
+				.filter(t -> project.equals(t.getProject()))
+				.mapToLong(this::getSeconds)
+				.sum());
 	}
 
 	/**
 	 * Returns the total amount of hours spent on the given project at the given date.
 	 */
 	public Duration getSum(Project project, LocalDate date) {
-		return tasks.stream()
-			.filter(t -> project.equals(t.getProject()))
-			.map(t -> t.getDuration(date))
-			.reduce(Duration::plus).orElse(Duration.ZERO);
+		int day = indexOf(date);
+		return Duration.ofSeconds(tasks.stream()
+				.filter(t -> project.equals(t.getProject()))
+				.mapToLong(t -> getSeconds(t, day))
+				.sum());
+	}
+
+	private long getSeconds(Task task) {
+		long[] s = seconds.get(task);
+		if (s == null) {
+			return 0;
+		}
+		long total = 0;
+		for (long l : s) {
+			total += l;
+		}
+		return total;
+	}
+
+	private long getSeconds(Task task, int day) {
+		long[] s = seconds.get(task);
+		if (s == null || day < 0) {
+			return 0;
+		}
+		return s[day];
+	}
+
+	private int indexOf(LocalDate date) {
+		long day = date.toEpochDay() - dates[0].toEpochDay();
+		return day >= 0 && day < dates.length ? (int) day : -1;
 	}
 
 	private void update() {
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.START;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Verifies that the end of the last active window is found using a
+ * logarithmic number of lookups.
+ *
+ * @author Torkild U. Resheim
+ */
+public class ActivityRecoveryTest {
+
+	/** A month after the activity was started */
+	private static final LocalDateTime NOW = START.plusDays(30);
+
+	@ParameterizedTest
+	@ValueSource(longs = { 0, 10, 30, 31, 120, 601, 60 * 24 * 14, 60 * 24 * 30 })
+	public void testFindLastActive(long activeMinutes) {
+		LocalDateTime last = START.plusMinutes(activeMinutes);
+		int[] lookups = new int[1];
+		LocalDateTime end = ActivityRecovery.findLastActive(START, NOW, (from, to) -> {
+			lookups[0]++;
+			LocalDateTime e = last.isBefore(to) ? last : to;
+			return from.isBefore(e) ? Duration.between(from, e).toMillis() : 0;
+		});
+		// the end of the window in which the task was last active
+		long windows = Math.max(1, (activeMinutes + 29) / 30);
+		assertEquals(START.plusMinutes(Math.min(windows * 30, 60 * 24 * 30)), end);
+		// a month is 1440 windows
+		assertTrue(lookups[0] <= 2 * 11 + 1, "Lookups: " + lookups[0]);
+	}
+
+}
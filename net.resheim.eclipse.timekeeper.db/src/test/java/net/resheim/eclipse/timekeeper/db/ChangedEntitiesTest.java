@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.START;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+
+import org.eclipse.mylyn.internal.tasks.core.LocalTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that only the entities changed since the last flush are written,
+ * regardless of how many there are in the database. The statements actually
+ * executed are counted using {@link StatementCounter}.
+ *
+ * @author Torkild U. Resheim
+ */
+@SuppressWarnings("restriction")
+public class ChangedEntitiesTest {
+
+	private static EntityManager entityManager;
+
+	@BeforeAll
+	public static void before() {
+		entityManager = PersistenceHelper.getEntityManager();
+		TimekeeperPlugin.setEntityManager(entityManager);
+	}
+
+	@AfterEach
+	public void after() {
+		EntityTransaction transaction = entityManager.getTransaction();
+		if (transaction.isActive()) {
+			transaction.rollback();
+		}
+		transaction.begin();
+		Query createQuery = entityManager.createNativeQuery("SET REFERENTIAL_INTEGRITY FALSE;TRUNCATE TABLE TASK_DAY_TOTAL;TRUNCATE TABLE ACTIVITY;TRUNCATE TABLE TASK;SET REFERENTIAL_INTEGRITY TRUE");
+		createQuery.executeUpdate();
+		transaction.commit();
+		entityManager.clear();
+	}
+
+	private static int flush() {
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		int count = ChangedEntities.flush(entityManager);
+		transaction.commit();
+		return count;
+	}
+
+	@Test
+	public void testFlush_onlyChanged() {
+		List<Task> tasks = new ArrayList<>();
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		for (int i = 0; i < 100; i++) {
+			Task task = new Task(new LocalTask(String.valueOf(i), "Task #" + i));
+			for (int j = 0; j < 10; j++) {
+				Activity activity = new Activity(task, START.plusDays(j));
+				activity.setEnd(START.plusDays(j).plusHours(1));
+				task.addActivity(activity);
+			}
+			entityManager.persist(task);
+			tasks.add(task);
+		}
+		transaction.commit();
+		flush();
+
+		// nothing has changed
+		StatementCounter.reset();
+		assertEquals(0, flush());
+		assertEquals(0, StatementCounter.reset());
+
+		// one changed activity, and one activity added to a task
+		tasks.get(10).getActivities().get(3).setSummary("Changed");
+		Activity added = tasks.get(20).startActivity(START.plusDays(20));
+		assertEquals(2, flush());
+		// the changed activity and task are updated, and the new activity inserted
+		assertEquals(3, StatementCounter.reset());
+
+		// entities not managed by the entity manager are ignored
+		new Task(new LocalTask("unmanaged", "Unmanaged")).setTick(START);
+		assertEquals(0, flush());
+		assertEquals(0, StatementCounter.reset());
+
+		entityManager.clear();
+		Task reloaded = TimekeeperPlugin.findTask(entityManager, tasks.get(10).getId());
+		assertEquals(1, reloaded.getActivities().stream().filter(a -> "Changed".equals(a.getSummary())).count());
+		reloaded = TimekeeperPlugin.findTask(entityManager, tasks.get(20).getId());
+		assertEquals(11, reloaded.getActivities().size());
+		assertEquals(added.getStart(), reloaded.getCurrentActivity().get().getStart());
+	}
+
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.WEEK;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that the incrementally maintained daily totals are the same as those
+ * calculated from the activities.
+ *
+ * @author Torkild U. Resheim
+ */
+public class DailyTotalsTest {
+
+	private static EntityManager entityManager;
+
+	@BeforeAll
+	public static void before() {
+		entityManager = PersistenceHelper.getEntityManager();
+		TimekeeperPlugin.setEntityManager(entityManager);
+	}
+
+	@BeforeEach
+	public void beforeEach() {
+		// start out with an empty table
+		TimekeeperPlugin.getDefault().rebuildDailyTotals();
+	}
+
+	@AfterEach
+	public void after() {
+		EntityTransaction transaction = entityManager.getTransaction();
+		if (transaction.isActive()) {
+			transaction.rollback();
+		}
+		// apply the remaining changes so that none are left pending
+		TimekeeperPlugin.getDefault().updateDailyTotals();
+		transaction.begin();
+		Query createQuery = entityManager.createNativeQuery("SET REFERENTIAL_INTEGRITY FALSE;TRUNCATE TABLE TASK_DAY_TOTAL;TRUNCATE TABLE ACTIVITY;TRUNCATE TABLE TASK;SET REFERENTIAL_INTEGRITY TRUE");
+		createQuery.executeUpdate();
+		transaction.commit();
+		entityManager.clear();
+	}
+
+	private Task storeTask(String id, LocalDateTime... periods) {
+		Task task = TestFixtures.createTask(id, periods);
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		entityManager.persist(task);
+		transaction.commit();
+		TimekeeperPlugin.getDefault().updateDailyTotals();
+		return task;
+	}
+
+	private void assertTotals(Task... tasks) {
+		Map<GlobalTaskId, long[]> totals = DailyTotals.load(entityManager, WEEK, 7);
+		for (Task task : tasks) {
+			long[] expected = new long[7];
+			for (int i = 0; i < 7; i++) {
+				expected[i] = task.getDuration(WEEK.plusDays(i)).getSeconds();
+			}
+			assertArrayEquals(expected, DailyTotals.getSeconds(totals, task, WEEK, 7), "Totals of " + task);
+		}
+	}
+
+	@Test
+	public void testTotals_afterCreate() {
+		LocalDateTime monday = WEEK.atStartOfDay();
+		Task a = storeTask("1", monday.plusHours(9), monday.plusHours(11), monday.plusDays(1).plusHours(8),
+				monday.plusDays(1).plusHours(9));
+		// spanning midnight into the week and out of it
+		Task b = storeTask("2", monday.minusHours(2), monday.plusHours(2), monday.plusDays(6).plusHours(23),
+				monday.plusDays(7).plusHours(1));
+		assertTotals(a, b);
+	}
+
+	@Test
+	public void testTotals_afterEdit() {
+		LocalDateTime monday = WEEK.atStartOfDay();
+		Task task = storeTask("1", monday.plusHours(9), monday.plusHours(11), monday.plusDays(2).plusHours(9),
+				monday.plusDays(2).plusHours(10));
+		Activity first = task.getActivities().get(0);
+		Activity second = task.getActivities().get(1);
+		// move the first activity to tuesday, spanning midnight
+		first.setStart(monday.plusDays(1).plusHours(22));
+		first.setEnd(monday.plusDays(2).plusHours(3));
+		TimekeeperPlugin.getDefault().updateDailyTotals();
+		assertTotals(task);
+		// and delete the second
+		task.removeActivity(second);
+		TimekeeperPlugin.getDefault().updateDailyTotals();
+		assertTotals(task);
+		assertEquals(2L, entityManager.createNamedQuery("TaskDayTotal.count", Long.class).getSingleResult());
+	}
+
+	@Test
+	public void testTotals_runningActivity() {
+		LocalDate today = LocalDate.now();
+		Task task = storeTask("1", today.atStartOfDay(), today.atStartOfDay().plusMinutes(10));
+		task.startActivity();
+		Map<GlobalTaskId, long[]> totals = DailyTotals.load(entityManager, today, 1);
+		long[] seconds = DailyTotals.getSeconds(totals, task, today, 1);
+		// the running activity is not stored, but is added when reading
+		assertEquals(600, totals.get(task.getId())[0]);
+		assertTrue(Math.abs(task.getDuration(today).getSeconds() - seconds[0]) <= 1);
+		task.endActivity();
+	}
+
+	@Test
+	public void testRebuild_matchesIncremental() {
+		LocalDateTime monday = WEEK.atStartOfDay();
+		Task a = storeTask("1", monday.plusHours(9), monday.plusHours(11));
+		Task b = storeTask("2", monday.plusDays(3).plusHours(20), monday.plusDays(4).plusHours(4));
+		a.getActivities().get(0).setEnd(monday.plusHours(12));
+		TimekeeperPlugin.getDefault().updateDailyTotals();
+		Map<GlobalTaskId, long[]> incremental = DailyTotals.load(entityManager, WEEK, 7);
+		TimekeeperPlugin.getDefault().rebuildDailyTotals();
+		Map<GlobalTaskId, long[]> rebuilt = DailyTotals.load(entityManager, WEEK, 7);
+		assertEquals(incremental.keySet(), rebuilt.keySet());
+		for (GlobalTaskId id : rebuilt.keySet()) {
+			assertArrayEquals(rebuilt.get(id), incremental.get(id));
+		}
+		assertTotals(a, b);
+	}
+
+	@Test
+	public void testRebuild_recordsBuilt() {
+		assertTrue(DailyTotals.isBuilt(entityManager));
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		DailyTotals.invalidate(entityManager);
+		transaction.commit();
+		// rows alone do not imply that the totals are complete
+		storeTask("1", WEEK.atStartOfDay(), WEEK.atStartOfDay().plusHours(1));
+		assertEquals(1L, entityManager.createNamedQuery("TaskDayTotal.count", Long.class).getSingleResult());
+		assertFalse(DailyTotals.isBuilt(entityManager));
+		TimekeeperPlugin.getDefault().rebuildDailyTotals();
+		assertTrue(DailyTotals.isBuilt(entityManager));
+	}
+
+}
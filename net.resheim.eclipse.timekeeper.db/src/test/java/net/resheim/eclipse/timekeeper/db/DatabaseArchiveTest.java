@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.START;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.mylyn.internal.tasks.core.LocalTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that the database can be exported to an archive and imported again,
+ * that incremental exports only hold the changes and can be imported in order,
+ * that changes not yet stored are exported, and that damaged archives are
+ * rejected.
+ *
+ * @author Torkild U. Resheim
+ */
+@SuppressWarnings("restriction")
+public class DatabaseArchiveTest {
+
+	private static EntityManager entityManager;
+
+	@TempDir
+	Path folder;
+
+	@BeforeAll
+	public static void before() {
+		// deleted rows are recorded by triggers created when the schema is migrated
+		entityManager = PersistenceHelper.getEntityManager();
+		TimekeeperPlugin.setEntityManager(entityManager);
+	}
+
+	@AfterEach
+	public void after() {
+		EntityTransaction transaction = entityManager.getTransaction();
+		if (transaction.isActive()) {
+			transaction.rollback();
+		}
+		truncate();
+	}
+
+	private static void truncate() {
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		entityManager.createNativeQuery("SET REFERENTIAL_INTEGRITY FALSE;TRUNCATE TABLE TASK_DAY_TOTAL;TRUNCATE TABLE ACTIVITY;TRUNCATE TABLE TASK;TRUNCATE TABLE DELETED_ROW;SET REFERENTIAL_INTEGRITY TRUE").executeUpdate();
+		transaction.commit();
+		entityManager.clear();
+	}
+
+	private static void createTasks(int count) {
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		for (int i = 0; i < count; i++) {
+			Task task = new Task(new LocalTask(String.valueOf(i), "Task #" + i));
+			for (int j = 0; j < 10; j++) {
+				Activity activity = new Activity(task, START.plusDays(j));
+				activity.setEnd(START.plusDays(j).plusHours(1));
+				activity.setSummary("Activity \"" + j + "\", task " + i);
+				task.addActivity(activity);
+			}
+			entityManager.persist(task);
+		}
+		transaction.commit();
+		entityManager.clear();
+	}
+
+	private static int write(Path archive) throws IOException, SQLException {
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		try {
+			return DatabaseArchive.write(entityManager.unwrap(Connection.class), archive, new NullProgressMonitor());
+		} finally {
+			transaction.commit();
+		}
+	}
+
+	private static int write(Path archive, Long since) throws IOException, SQLException {
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		try {
+			return DatabaseArchive.write(entityManager.unwrap(Connection.class), archive, since,
+					new NullProgressMonitor());
+		} finally {
+			transaction.commit();
+		}
+	}
+
+	private static int read(Path archive) throws IOException, SQLException {
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		int read = DatabaseArchive.read(entityManager.unwrap(Connection.class), archive, new NullProgressMonitor());
+		transaction.commit();
+		entityManager.clear();
+		return read;
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException, SQLException {
+		createTasks(50);
+		Path archive = folder.resolve("export.zip");
+		assertEquals(550, write(archive));
+		truncate();
+		assertEquals(550, read(archive));
+		LocalTask local = new LocalTask("7", "Task #7");
+		Task task = TimekeeperPlugin.findTask(entityManager,
+				new GlobalTaskId(TimekeeperPlugin.getRepositoryUrl(local), local.getTaskId()));
+		assertEquals(10, task.getActivities().size());
+		assertEquals(1, task.getActivities().stream().filter(a -> "Activity \"3\", task 7".equals(a.getSummary()))
+				.count());
+		// importing the same archive again merges rather than duplicates
+		assertEquals(550, read(archive));
+		assertEquals(500L, entityManager.createQuery("SELECT COUNT(a) FROM Activity a").getSingleResult());
+	}
+
+	@Test
+	public void testWriteAndRead_changes() throws IOException, SQLException, InterruptedException {
+		createTasks(20);
+		Thread.sleep(10);
+		write(folder.resolve("full.zip"), null);
+		Thread.sleep(10);
+		long watermark = DatabaseArchive.getWatermark(folder);
+
+		// change one activity, remove another and add a third
+		LocalTask local = new LocalTask("3", "Task #3");
+		GlobalTaskId id = new GlobalTaskId(TimekeeperPlugin.getRepositoryUrl(local), local.getTaskId());
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		Task task = TimekeeperPlugin.findTask(entityManager, id);
+		task.getActivities().get(0).setSummary("Changed");
+		task.removeActivity(task.getActivities().get(1));
+		Activity added = new Activity(task, START.plusDays(20));
+		added.setEnd(START.plusDays(20).plusHours(1));
+		task.addActivity(added);
+		transaction.commit();
+		entityManager.clear();
+
+		Path changes = folder.resolve("changes.zip");
+		write(changes, watermark);
+		Properties manifest = DatabaseArchive.readManifest(changes);
+		assertEquals(Long.toString(watermark), manifest.getProperty(DatabaseArchive.SINCE));
+		assertEquals("2", manifest.getProperty(DatabaseArchive.ACTIVITIES + ".rows"));
+		assertEquals("1", manifest.getProperty(DatabaseArchive.DELETED + ".rows"));
+		assertNull(DatabaseArchive.readManifest(folder.resolve("full.zip")).getProperty(DatabaseArchive.SINCE));
+
+		// importing the changes also imports the full export preceding it
+		List<Path> chain = DatabaseArchive.getChain(folder, changes);
+		assertEquals(2, chain.size());
+		truncate();
+		for (Path archive : chain) {
+			read(archive);
+		}
+		assertEquals(200L, entityManager.createQuery("SELECT COUNT(a) FROM Activity a").getSingleResult());
+		task = TimekeeperPlugin.findTask(entityManager, id);
+		assertEquals(10, task.getActivities().size());
+		assertEquals(1, task.getActivities().stream().filter(a -> "Changed".equals(a.getSummary())).count());
+		assertEquals(1, task.getActivities().stream().filter(a -> a.getStart().equals(START.plusDays(20))).count());
+	}
+
+	@Test
+	public void testRead_damaged() throws IOException, SQLException {
+		createTasks(5);
+		Path archive = folder.resolve("export.zip");
+		write(archive);
+		// drop the last activity while keeping the manifest
+		Path damaged = folder.resolve("damaged.zip");
+		try (ZipInputStream in = new ZipInputStream(Files.newInputStream(archive));
+				ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(damaged))) {
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				out.putNextEntry(new ZipEntry(entry.getName()));
+				byte[] content = in.readAllBytes();
+				int length = content.length;
+				if (entry.getName().equals(DatabaseArchive.ACTIVITIES)) {
+					length = new String(content).lastIndexOf('\n', length - 2) + 1;
+				}
+				out.write(content, 0, length);
+				out.closeEntry();
+			}
+		}
+		truncate();
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		assertThrows(IOException.class, () -> DatabaseArchive.read(entityManager.unwrap(Connection.class), damaged,
+				new NullProgressMonitor()));
+		transaction.rollback();
+		assertEquals(0L, entityManager.createQuery("SELECT COUNT(a) FROM Activity a").getSingleResult());
+	}
+
+	@Test
+	public void testExport_pendingWrite() throws IOException, SQLException {
+		createTasks(1);
+		LocalTask local = new LocalTask("0", "Task #0");
+		Task task = TimekeeperPlugin.findTask(entityManager,
+				new GlobalTaskId(TimekeeperPlugin.getRepositoryUrl(local), local.getTaskId()));
+		// the tick is stored in the background and committed some time later
+		LocalDateTime tick = START.plusDays(20);
+		TimekeeperPlugin.getDefault().setTick(task, tick);
+		Path archive = folder.resolve("export.zip");
+		assertEquals(11, TimekeeperPlugin.getDefault().exportTo(archive));
+		truncate();
+		read(archive);
+		assertEquals(tick, TimekeeperPlugin.findTask(entityManager, task.getId()).getTick());
+	}
+
+	@Test
+	public void testWrite_cancelled() throws IOException {
+		createTasks(5);
+		Path archive = folder.resolve("export.zip");
+		NullProgressMonitor monitor = new NullProgressMonitor();
+		monitor.setCanceled(true);
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		assertThrows(OperationCanceledException.class,
+				() -> DatabaseArchive.write(entityManager.unwrap(Connection.class), archive, monitor));
+		transaction.rollback();
+		// neither the archive nor the temporary file is left behind
+		try (var files = Files.list(folder)) {
+			assertFalse(files.findAny().isPresent());
+		}
+	}
+
+}
@@ -10,17 +10,25 @@
  *******************************************************************************/
 package net.resheim.eclipse.timekeeper.db;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 
 import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.h2.Driver;
 
 /**
  * Utility for setting up an {@link EntityManager} for testing. Logging level is
- * set to FINE and the database resides in memory only.
+ * set to FINE and the database resides in memory only. The schema is created
+ * by the migration scripts, as when the application is started.
  * 
  * @author Torkild U. Resheim
  */
@@ -29,16 +37,41 @@ public class PersistenceHelper {
 	private static final EntityManager entityManager;
 	
 	static {
+		entityManager = createEntityManagerFactory("jdbc:h2:mem:test_mem").createEntityManager();
+	};
+
+	/**
+	 * Prepares the database at the given location the same way as when the
+	 * application is started, by applying the migration scripts before
+	 * EclipseLink extends the schema.
+	 * 
+	 * @param url the JDBC URL of the database
+	 * @return a new entity manager factory
+	 */
+	static EntityManagerFactory createEntityManagerFactory(String url) {
 		Map<String, Object> props = new HashMap<String, Object>();
-		props.put(PersistenceUnitProperties.JDBC_URL, "jdbc:h2:mem:test_mem");
+		props.put(PersistenceUnitProperties.JDBC_URL, url);
 		props.put(PersistenceUnitProperties.JDBC_DRIVER, "org.h2.Driver");
 		props.put(PersistenceUnitProperties.JDBC_USER, "sa");
 		props.put(PersistenceUnitProperties.JDBC_PASSWORD, "");
 		props.put(PersistenceUnitProperties.LOGGING_LEVEL, "fine");
-		entityManager = Persistence	
-				.createEntityManagerFactory("net.resheim.eclipse.timekeeper.db", props)
-				.createEntityManager();
-	};
+		// SQL is logged at this level, which is used for counting statements
+		props.put(PersistenceUnitProperties.LOGGING_LOGGER, StatementCounter.class.getName());
+		Properties info = new Properties();
+		info.put("user", "sa");
+		info.put("password", "");
+		// keep the connection open so that an in-memory database is kept
+		try (Connection connection = new Driver().connect(url, info)) {
+			SchemaVersion.load(Paths.get("db")).prepare(connection, props);
+			EntityManagerFactory factory = Persistence.createEntityManagerFactory("net.resheim.eclipse.timekeeper.db",
+					props);
+			// have EclipseLink connect, and extend the schema, while the connection is open
+			factory.createEntityManager().close();
+			return factory;
+		} catch (IOException | SQLException e) {
+			throw new IllegalStateException("Could not prepare the database", e);
+		}
+	}
 
 	/**
 	 * Returns an entity manager that only stores data in memory. This will not
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.h2.Driver;
+import org.junit.jupiter.api.Test;
+
+import net.resheim.eclipse.timekeeper.db.SchemaVersion.Migration;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that migrations are applied once, that the schema is only
+ * considered current when the migration scripts have not changed, and that a
+ * database created before the schema was versioned is upgraded.
+ *
+ * @author Torkild U. Resheim
+ */
+public class SchemaVersionTest {
+
+	private static Connection connect(String name) throws SQLException {
+		Properties info = new Properties();
+		info.put("user", "sa");
+		info.put("password", "");
+		return new Driver().connect("jdbc:h2:mem:" + name, info);
+	}
+
+	private static final Migration V3 = new Migration("V3__create.sql",
+			"-- a comment\nCREATE TABLE IF NOT EXISTS T (ID INT);\nINSERT INTO T VALUES (1);");
+
+	private static final Migration V4 = new Migration("V4__insert.sql", "INSERT INTO T VALUES (2);");
+
+	@Test
+	public void testMigrate() throws SQLException {
+		try (Connection connection = connect("schema_migrate")) {
+			// the baseline is never applied
+			SchemaVersion schema = new SchemaVersion(Arrays.asList(new Migration("V1__old.sql", "FAIL;"), V3));
+			assertFalse(schema.isCurrent(connection));
+			assertEquals(1, schema.migrate(connection));
+			assertTrue(schema.isCurrent(connection));
+			assertEquals(1, count(connection));
+
+			List<Migration> migrations = new ArrayList<>(Arrays.asList(V3, V4));
+			SchemaVersion next = new SchemaVersion(migrations);
+			assertFalse(next.isCurrent(connection));
+			assertEquals(1, next.migrate(connection));
+			assertTrue(next.isCurrent(connection));
+			assertEquals(2, count(connection));
+			assertEquals(0, next.migrate(connection));
+			assertEquals(2, count(connection));
+		}
+	}
+
+	@Test
+	public void testDirectives() throws SQLException {
+		try (Connection connection = connect("schema_directives")) {
+			Migration migration = new Migration("V3__directives.sql",
+					"CREATE TABLE IF NOT EXISTS T (ID INT, V INT);\n"
+							+ "INSERT INTO T SELECT X, 0 FROM SYSTEM_RANGE(1, 25);\n"
+							+ "-- @repeat\nUPDATE T SET V = 1 WHERE V = 0 LIMIT 10;\n"
+							+ "-- @generate\nSELECT 'CREATE TABLE ' || NAME || ' (ID INT)' FROM "
+							+ "(SELECT 'U' AS NAME FROM DUAL UNION SELECT 'W' FROM DUAL);");
+			assertEquals(1, new SchemaVersion(Arrays.asList(migration)).migrate(connection));
+			try (Statement s = connection.createStatement();
+					ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM T WHERE V = 1")) {
+				rs.next();
+				assertEquals(25, rs.getInt(1));
+				s.execute("SELECT * FROM U");
+				s.execute("SELECT * FROM W");
+			}
+		}
+	}
+
+	@Test
+	public void testChecksum() {
+		Migration changed = new Migration("V4__insert.sql", "INSERT INTO T VALUES (3);");
+		assertEquals(new SchemaVersion(Arrays.asList(V3, V4)).getChecksum(),
+				new SchemaVersion(Arrays.asList(V4, V3)).getChecksum());
+		assertNotEquals(new SchemaVersion(Arrays.asList(V3, V4)).getChecksum(),
+				new SchemaVersion(Arrays.asList(V3, changed)).getChecksum());
+	}
+
+	@Test
+	public void testMigrationScripts() throws IOException, SQLException {
+		SchemaVersion schema = SchemaVersion.load(Paths.get("db"));
+		assertTrue(schema.getVersion() > SchemaVersion.BASELINE);
+		// the scripts are applied to a new database before EclipseLink is started
+		PersistenceHelper.getEntityManager();
+		try (Connection connection = connect("test_mem")) {
+			assertTrue(schema.isCurrent(connection));
+			Map<String, Object> props = new HashMap<>();
+			assertTrue(schema.prepare(connection, props));
+			assertEquals(PersistenceUnitProperties.NONE, props.get(PersistenceUnitProperties.DDL_GENERATION));
+		}
+	}
+
+	@Test
+	public void testUpgrade_fromBaseline() throws IOException, SQLException {
+		String url = "jdbc:h2:mem:schema_upgrade";
+		try (Connection connection = connect("schema_upgrade"); Statement s = connection.createStatement()) {
+			// a database created before the schema version was recorded
+			String baseline = new String(Files.readAllBytes(Paths.get("db", "baseline.sql")), StandardCharsets.UTF_8);
+			for (String sql : baseline.split(";")) {
+				if (!sql.trim().isEmpty()) {
+					s.execute(sql);
+				}
+			}
+			s.execute("INSERT INTO PROJECT_TYPE VALUES ('local')");
+			s.execute("INSERT INTO PROJECT (NAME, TYPE) VALUES ('Project', 'local')");
+			s.execute("INSERT INTO TASK (REPOSITORY_URL, TASK_ID, TASK_SUMMARY, TASK_PROJECT) "
+					+ "VALUES ('local', '1', 'First', 'Project'), ('local', '2', 'Second', 'Project')");
+			s.execute("INSERT INTO ACTIVITY (ID, START_TIME, END_TIME, TASK_ID, REPOSITORY_URL) VALUES "
+					+ "('a1', '2022-05-09 09:00:00', '2022-05-09 10:00:00', '1', 'local'), "
+					+ "('a2', '2022-05-09 11:00:00', NULL, '2', 'local'), "
+					+ "('a3', '2022-05-09 12:00:00', '2022-05-09 13:00:00', NULL, NULL)");
+			// the join table is what the application used to read
+			s.execute("INSERT INTO TASK_ACTIVITY VALUES ('local', '1', 'a1'), ('local', '2', 'a2'), ('local', '2', 'a3')");
+			s.execute("UPDATE TASK SET CURRENTACTIVITY_ID = 'a2' WHERE TASK_ID = '2'");
+			s.execute("INSERT INTO PROJECT_TASK VALUES ('Project', 'local', '1'), ('Project', 'local', '2')");
+
+			// connect the same way as when the application is started
+			EntityManagerFactory factory = PersistenceHelper.createEntityManagerFactory(url);
+			EntityManager em = factory.createEntityManager();
+			try {
+				assertTrue(SchemaVersion.load(Paths.get("db")).isCurrent(connection));
+				Task first = TimekeeperPlugin.findTask(em, new GlobalTaskId("local", "1"));
+				Task second = TimekeeperPlugin.findTask(em, new GlobalTaskId("local", "2"));
+				assertEquals("First", first.getTaskSummary());
+				assertEquals("Project", first.getProject().getName());
+				assertEquals(1, first.getActivities().size());
+				assertEquals(2, second.getActivities().size());
+				assertEquals(LocalDateTime.of(2022, 5, 9, 11, 0), second.getCurrentActivity().get().getStart());
+				try (ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM TASK WHERE ID IS NULL")) {
+					rs.next();
+					assertEquals(0, rs.getInt(1));
+				}
+			} finally {
+				em.close();
+				factory.close();
+			}
+		}
+	}
+
+	@Test
+	public void testMigrate_afterFailure() throws IOException, SQLException {
+		Path folder = Paths.get("db");
+		List<Migration> migrations = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "V*.sql")) {
+			for (Path path : stream) {
+				String name = path.getFileName().toString();
+				String script = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+				// the V8 script fails after some of its statements have been applied
+				migrations.add(new Migration(name, name.startsWith("V8__") ? script + "\nFAIL;" : script));
+			}
+		}
+		String baseline = new String(Files.readAllBytes(folder.resolve("baseline.sql")), StandardCharsets.UTF_8);
+		SchemaVersion schema = SchemaVersion.load(folder);
+		assertTrue(schema.getVersion() >= 8);
+		try (Connection connection = connect("schema_failure")) {
+			SchemaVersion failing = new SchemaVersion(migrations, baseline);
+			assertThrows(SQLException.class, () -> failing.migrate(connection));
+			assertFalse(schema.isCurrent(connection));
+			try (Statement s = connection.createStatement();
+					ResultSet rs = s.executeQuery("SELECT VERSION FROM SCHEMA_VERSION")) {
+				assertTrue(rs.next());
+				assertEquals(7, rs.getInt(1));
+			}
+			// only the failed script and those after it are applied
+			assertEquals(schema.getVersion() - 7, schema.migrate(connection));
+			assertTrue(schema.isCurrent(connection));
+			assertEquals(0, schema.migrate(connection));
+		}
+	}
+
+	@Test
+	public void testEntityClassesWoven() {
+		// the classes are woven when building, and are packaged as is
+		assertTrue(TimekeeperPlugin.isWoven());
+	}
+
+	private static int count(Connection connection) throws SQLException {
+		try (Statement s = connection.createStatement(); ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM T")) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+}
@@ -179,7 +179,7 @@ public class SharedStorageTest {
 
 		// now attempt to load the task from the persistent storage
 		GlobalTaskId id = new GlobalTaskId(ttask.getRepositoryUrl(), ttask.getTaskId());
-		Task dbTask = entityManager.find(Task.class, id);
+		Task dbTask = TimekeeperPlugin.findTask(entityManager, id);
 		// Test the single task
 		if (dbTask instanceof Task) {
 			List<Activity> activities = ((Task) dbTask).getActivities();
@@ -222,7 +222,7 @@ public class SharedStorageTest {
 
 		// now attempt to load the task from the persistent storage
 		GlobalTaskId id = new GlobalTaskId(task.getRepositoryUrl(), task.getTaskId());
-		Task dbTask = entityManager.find(Task.class, id);
+		Task dbTask = TimekeeperPlugin.findTask(entityManager, id);
 
 		// verify that the accumulated duration is correct
 		if (dbTask instanceof Task) {
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.eclipse.persistence.logging.DefaultSessionLog;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.logging.SessionLogEntry;
+
+/**
+ * EclipseLink session log counting the SQL statements that modify the
+ * database, so that tests can verify what is actually written. The log is
+ * installed by {@link PersistenceHelper} and requires SQL to be logged.
+ *
+ * @author Torkild U. Resheim
+ */
+public class StatementCounter extends DefaultSessionLog {
+
+	private static final Pattern MODIFYING = Pattern.compile("^\\s*(INSERT|UPDATE|DELETE)\\b",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	@Override
+	public void log(SessionLogEntry entry) {
+		if (SessionLog.SQL.equals(entry.getNameSpace()) && entry.getMessage() != null
+				&& MODIFYING.matcher(entry.getMessage()).find()) {
+			count.incrementAndGet();
+		}
+		super.log(entry);
+	}
+
+	/**
+	 * Returns the number of modifying statements executed since the last call,
+	 * and starts counting again.
+	 *
+	 * @return the number of statements
+	 */
+	static int reset() {
+		return count.getAndSet(0);
+	}
+
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies eviction, invalidation and the counters of {@link TaskCache}.
+ *
+ * @author Torkild U. Resheim
+ */
+public class TaskCacheTest {
+
+	private final AtomicLong clock = new AtomicLong();
+
+	private static GlobalTaskId id(int i) {
+		return new GlobalTaskId("local", Integer.toString(i));
+	}
+
+	@Test
+	public void testGet_countsHitsAndMisses() {
+		TaskCache cache = new TaskCache(10, 1_000, clock::get);
+		Task task = new Task();
+		assertNull(cache.get(id(1)));
+		cache.put(id(1), task);
+		assertSame(task, cache.get(id(1)));
+		assertSame(task, cache.get(id(1)));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testPut_evictsLeastRecentlyUsed() {
+		TaskCache cache = new TaskCache(3, 1_000, clock::get);
+		for (int i = 0; i < 3; i++) {
+			clock.incrementAndGet();
+			cache.put(id(i), new Task());
+		}
+		// use the first so that the second is the least recently used
+		clock.incrementAndGet();
+		cache.get(id(0));
+		clock.incrementAndGet();
+		cache.put(id(3), new Task());
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertNull(cache.get(id(1)));
+	}
+
+	@Test
+	public void testCleanUp_evictsIdle() {
+		TaskCache cache = new TaskCache(10, 1_000, clock::get);
+		cache.put(id(0), new Task());
+		clock.set(500);
+		cache.put(id(1), new Task());
+		clock.set(1_200);
+		cache.cleanUp();
+		assertEquals(1, cache.size());
+		assertNull(cache.get(id(0)));
+	}
+
+	@Test
+	public void testInvalidate() {
+		TaskCache cache = new TaskCache(10, 1_000, clock::get);
+		cache.put(id(0), new Task());
+		cache.put(id(1), new Task());
+		cache.invalidate(id(0));
+		assertNull(cache.get(id(0)));
+		assertEquals(1, cache.size());
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getEvictionCount());
+	}
+
+}
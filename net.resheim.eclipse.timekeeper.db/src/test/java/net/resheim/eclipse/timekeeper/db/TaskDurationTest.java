@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.WEEK;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that the durations calculated by {@link Task} using its index of
+ * activities are the same as those found by visiting every activity.
+ *
+ * @author Torkild U. Resheim
+ */
+public class TaskDurationTest {
+
+	private static Duration getExpected(Task task, LocalDate date) {
+		return task.getActivities()
+				.stream()
+				.map(a -> a.getDuration(date))
+				.reduce(Duration.ZERO, Duration::plus);
+	}
+
+	private static void assertDurations(Task task) {
+		for (int i = -1; i < 8; i++) {
+			LocalDate date = WEEK.plusDays(i);
+			assertEquals(getExpected(task, date), task.getDuration(date), "Duration on " + date);
+			assertEquals(getExpected(task, date).getSeconds(), task.getSeconds(date), "Seconds on " + date);
+		}
+	}
+
+	private static Task createTask(long seed, int count) {
+		Random random = new Random(seed);
+		Task task = new Task();
+		for (int i = 0; i < count; i++) {
+			// overlapping activities, some spanning midnight or several days
+			LocalDateTime start = WEEK.atStartOfDay().minusDays(1).plusMinutes(random.nextInt(9 * 24 * 60));
+			Activity activity = new Activity(task, start);
+			activity.setEnd(start.plusMinutes(random.nextInt(i % 10 == 0 ? 3 * 24 * 60 : 5 * 60)));
+			task.addActivity(activity);
+		}
+		return task;
+	}
+
+	@Test
+	public void testDuration_matchesActivities() {
+		for (long seed = 0; seed < 20; seed++) {
+			assertDurations(createTask(seed, (int) seed * 7));
+		}
+	}
+
+	@Test
+	public void testDuration_afterChanges() {
+		Task task = createTask(42, 50);
+		assertDurations(task);
+		// edit
+		Activity activity = task.getActivities().get(10);
+		activity.setStart(WEEK.atTime(23, 0));
+		activity.setEnd(WEEK.plusDays(1).atTime(1, 30));
+		assertDurations(task);
+		// remove
+		task.removeActivity(task.getActivities().get(20));
+		assertDurations(task);
+		// modify the list directly
+		task.getActivities().remove(0);
+		assertDurations(task);
+		// add
+		Activity added = new Activity(task, WEEK.atTime(8, 0));
+		added.setDuration(Duration.ofHours(3));
+		task.addActivity(added);
+		assertDurations(task);
+	}
+
+	@Test
+	public void testDuration_range() {
+		Task task = createTask(7, 100);
+		Duration expected = Duration.ZERO;
+		for (int i = 0; i < 7; i++) {
+			expected = expected.plus(task.getDuration(WEEK.plusDays(i)));
+		}
+		assertEquals(expected, task.getDuration(WEEK, WEEK.plusDays(7)));
+	}
+
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.WEEK;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Query;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.sessions.Session;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that the tasks found by querying the database for a given week are
+ * the same as those found when filtering all tasks in memory.
+ *
+ * @author Torkild U. Resheim
+ */
+public class TaskQueryTest {
+
+	private static EntityManager entityManager;
+
+	@BeforeAll
+	public static void before() {
+		entityManager = PersistenceHelper.getEntityManager();
+		TimekeeperPlugin.setEntityManager(entityManager);
+	}
+
+	@AfterEach
+	public void after() {
+		EntityTransaction transaction = entityManager.getTransaction();
+		if (transaction.isActive()) {
+			transaction.rollback();
+		}
+		transaction.begin();
+		Query createQuery = entityManager.createNativeQuery("SET REFERENTIAL_INTEGRITY FALSE;TRUNCATE TABLE ACTIVITY;TRUNCATE TABLE TASK;SET REFERENTIAL_INTEGRITY TRUE");
+		createQuery.executeUpdate();
+		transaction.commit();
+		entityManager.clear();
+	}
+
+	private Task storeTask(String id, LocalDateTime... periods) {
+		Task task = TestFixtures.createTask(id, periods);
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		entityManager.persist(task);
+		transaction.commit();
+		return task;
+	}
+
+	private void createTestTasks() {
+		LocalDateTime monday = WEEK.atStartOfDay();
+		// entirely within the week
+		storeTask("1", monday.plusHours(9), monday.plusHours(11));
+		// entirely in the previous week
+		storeTask("2", monday.minusDays(3), monday.minusDays(3).plusHours(2));
+		// starting in the previous week, ending in this
+		storeTask("3", monday.minusHours(2), monday.plusHours(2));
+		// ending exactly when the week starts
+		storeTask("4", monday.minusHours(2), monday);
+		// starting exactly when the next week starts
+		storeTask("5", monday.plusDays(7), monday.plusDays(7).plusHours(1));
+		// spanning the entire week
+		storeTask("6", monday.minusDays(1), monday.plusDays(8));
+		// still running
+		storeTask("7", monday.plusDays(2), null);
+		// one activity in the previous week and one in the next
+		storeTask("8", monday.minusDays(2), monday.minusDays(2).plusHours(1), monday.plusDays(9),
+				monday.plusDays(9).plusHours(1));
+		// zero length activity within the week
+		storeTask("9", monday.plusDays(3), monday.plusDays(3));
+		entityManager.clear();
+	}
+
+	private Set<String> getExpected(LocalDate week) {
+		List<Task> all = entityManager.createNamedQuery("Task.findAll", Task.class).getResultList();
+		Set<String> expected = all.stream()
+				.filter(t -> TimekeeperPlugin.hasData(t, week))
+				.map(Task::getTaskId)
+				.collect(Collectors.toSet());
+		assertFalse(expected.isEmpty());
+		return expected;
+	}
+
+	@Test
+	public void testFindTasks_matchesInMemoryFilter() {
+		createTestTasks();
+		for (LocalDate week : new LocalDate[] { WEEK.minusDays(7), WEEK, WEEK.plusDays(7) }) {
+			Set<String> actual = TimekeeperPlugin.findTasks(week, week.plusDays(7))
+					.map(Task::getTaskId)
+					.collect(Collectors.toSet());
+			assertEquals(getExpected(week), actual, "Tasks in week starting on " + week);
+		}
+	}
+
+	@Test
+	public void testFindByEpochPeriod_matchesInMemoryFilter() {
+		createTestTasks();
+		for (LocalDate week : new LocalDate[] { WEEK.minusDays(7), WEEK, WEEK.plusDays(7) }) {
+			Set<String> actual = entityManager.createNamedQuery("Task.findByEpochPeriod", Task.class)
+					.setParameter("start", Activity.toEpochSecond(week))
+					.setParameter("end", Activity.toEpochSecond(week.plusDays(7)))
+					.getResultStream()
+					.map(Task::getTaskId)
+					.collect(Collectors.toSet());
+			assertEquals(getExpected(week), actual, "Tasks in week starting on " + week);
+		}
+	}
+
+	@Test
+	public void testFindTasks_loadsNoActivities() {
+		LocalDateTime monday = WEEK.atStartOfDay();
+		// worked on this week, and running again since two weeks later
+		Task task = storeTask("1", monday.plusHours(9), monday.plusHours(11));
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		task.startActivity(monday.plusDays(14));
+		transaction.commit();
+		// the task of an activity two weeks earlier
+		storeTask("2", monday.minusDays(14), monday.minusDays(14).plusHours(1));
+		entityManager.clear();
+		entityManager.getEntityManagerFactory().getCache().evictAll();
+
+		// record every activity built from a database row
+		List<LocalDateTime> built = new ArrayList<>();
+		DescriptorEventAdapter listener = new DescriptorEventAdapter() {
+			@Override
+			public void postBuild(DescriptorEvent event) {
+				built.add(((Activity) event.getObject()).getStart());
+			}
+		};
+		ClassDescriptor descriptor = entityManager.unwrap(Session.class).getDescriptor(Activity.class);
+		descriptor.getEventManager().addListener(listener);
+		try {
+			List<Task> tasks = TimekeeperPlugin.findTasks(WEEK, WEEK.plusDays(7)).collect(Collectors.toList());
+			assertEquals(1, tasks.size());
+			assertTrue(built.isEmpty(), "Activities loaded by the week query: " + built);
+			PersistenceUnitUtil util = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+			assertFalse(util.isLoaded(tasks.get(0), "currentActivity"));
+			assertFalse(util.isLoaded(tasks.get(0), "activities"));
+			// the running activity is loaded when asked for
+			assertEquals(monday.plusDays(14), tasks.get(0).getCurrentActivity().get().getStart());
+			assertEquals(1, built.size());
+		} finally {
+			descriptor.getEventManager().removeListener(listener);
+		}
+	}
+
+	@Test
+	public void testQueryTasks_managedBySharedEntityManager() {
+		createTestTasks();
+		List<Task> found = TimekeeperPlugin.queryTasks(WEEK, tasks -> tasks);
+		assertEquals(getExpected(WEEK), found.stream().map(Task::getTaskId).collect(Collectors.toSet()));
+		// obtained by another entity manager, which has been closed
+		assertTrue(found.stream().noneMatch(entityManager::contains));
+		List<Task> managed = TimekeeperPlugin.getManagedTasks(found);
+		assertEquals(found.size(), managed.size());
+		assertTrue(managed.stream().allMatch(entityManager::contains));
+		for (int i = 0; i < found.size(); i++) {
+			assertEquals(found.get(i).getId(), managed.get(i).getId());
+		}
+	}
+
+	@Test
+	public void testGetManaged_afterClear() {
+		LocalDateTime monday = WEEK.atStartOfDay();
+		Task task = storeTask("1", monday.plusHours(9), monday.plusHours(10));
+		Activity activity = task.getActivities().get(0);
+		assertSame(task, TimekeeperPlugin.getManaged(task));
+		// as when the shared persistence context is cleared after saving
+		entityManager.clear();
+		assertFalse(entityManager.contains(task));
+		TimekeeperPlugin.runInTransaction(em -> {
+			Activity managed = TimekeeperPlugin.getManaged(activity);
+			assertNotSame(activity, managed);
+			assertTrue(em.contains(managed));
+			assertTrue(em.contains(managed.getTrackedTask()));
+			managed.setSummary("Changed");
+		});
+		entityManager.clear();
+		Task reloaded = TimekeeperPlugin.findTask(entityManager, task.getId());
+		assertEquals("Changed", reloaded.getActivities().get(0).getSummary());
+		// removed entities are not found
+		TimekeeperPlugin.runInTransaction(em -> em.remove(reloaded));
+		assertNull(TimekeeperPlugin.getManaged(task));
+	}
+
+	@Test
+	public void testActivities_storedWithActivity() {
+		LocalDateTime monday = WEEK.atStartOfDay();
+		Task task = storeTask("1", monday.plusHours(9), monday.plusHours(10), monday.plusHours(11),
+				monday.plusHours(12));
+		// an activity created without a task is associated when added
+		Activity added = new Activity();
+		added.setStart(monday.plusHours(13));
+		added.setEnd(monday.plusHours(14));
+		task.addActivity(added);
+		assertEquals(task, added.getTrackedTask());
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		task.removeActivity(task.getActivities().get(0));
+		transaction.commit();
+		entityManager.clear();
+
+		Task reloaded = TimekeeperPlugin.findTask(entityManager, task.getId());
+		assertEquals(2, reloaded.getActivities().size());
+		// removed activities are deleted rather than left behind
+		assertEquals(2L, entityManager.createQuery("SELECT COUNT(a) FROM Activity a").getSingleResult());
+	}
+
+	@Test
+	public void testEpochSeconds() {
+		LocalDateTime start = LocalDateTime.of(2022, 3, 27, 1, 30);
+		Activity activity = new Activity(null, start);
+		assertEquals(Activity.OPEN, activity.getEndEpoch());
+		activity.setEnd(start.plusHours(2));
+		assertEquals(activity.getDuration().getSeconds(), activity.getEndEpoch() - activity.getStartEpoch());
+		assertEquals(Activity.toEpochSecond(start.toLocalDate()), activity.getStartEpoch() - 5_400);
+	}
+
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import org.eclipse.mylyn.internal.tasks.core.LocalTask;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Project;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Dates and tasks shared by the tests. The tasks created are not stored.
+ *
+ * @author Torkild U. Resheim
+ */
+@SuppressWarnings("restriction")
+final class TestFixtures {
+
+	/** Monday of the week used for testing */
+	static final LocalDate WEEK = LocalDate.of(2022, 5, 9);
+
+	/** Start of the working day on {@link #WEEK} */
+	static final LocalDateTime START = WEEK.atTime(9, 0);
+
+	private TestFixtures() {
+	}
+
+	/**
+	 * Creates a task of the project, with an activity starting at 9:00 on each
+	 * day of the week lasting the given number of hours. No activity is created
+	 * on a day of zero hours.
+	 *
+	 * @param project the project of the task
+	 * @param summary the summary of the task
+	 * @param hours   the hours spent each day, starting on {@link #WEEK}
+	 * @return a new task
+	 */
+	static Task createTask(Project project, String summary, int... hours) {
+		Task task = new Task();
+		task.setTaskSummary(summary);
+		return addActivities(project, task, hours);
+	}
+
+	/**
+	 * Creates a task with the given identifier, and activities as described by
+	 * {@link #createTask(Project, String, int...)}.
+	 *
+	 * @param project the project of the task
+	 * @param id      the identifier of the task
+	 * @param summary the summary of the task
+	 * @param hours   the hours spent each day, starting on {@link #WEEK}
+	 * @return a new task
+	 */
+	static Task createTask(Project project, GlobalTaskId id, String summary, int... hours) {
+		return addActivities(project, new Task(id, summary), hours);
+	}
+
+	/**
+	 * Creates a local task with an activity for each pair of start and end
+	 * times.
+	 *
+	 * @param id      the identifier of the local task
+	 * @param periods start and end times of the activities
+	 * @return a new task
+	 */
+	static Task createTask(String id, LocalDateTime... periods) {
+		Task task = new Task(new LocalTask(id, "Task #" + id));
+		for (int i = 0; i < periods.length; i += 2) {
+			Activity activity = new Activity(task, periods[i]);
+			activity.setEnd(periods[i + 1]);
+			task.addActivity(activity);
+		}
+		return task;
+	}
+
+	private static Task addActivities(Project project, Task task, int... hours) {
+		task.setProject(project);
+		for (int i = 0; i < hours.length; i++) {
+			if (hours[i] > 0) {
+				Activity activity = new Activity(task, START.plusDays(i));
+				activity.setEnd(activity.getStart().plusHours(hours[i]));
+				task.addActivity(activity);
+			}
+		}
+		return task;
+	}
+
+}
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+
+import org.eclipse.mylyn.internal.tasks.core.LocalTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.resheim.eclipse.timekeeper.db.TrackingJournal.Entry;
+import net.resheim.eclipse.timekeeper.db.TrackingJournal.SyncPolicy;
+import net.resheim.eclipse.timekeeper.db.TrackingJournal.Type;
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that the tracking journal survives the process being killed, and
+ * that replaying it restores the exact activity times.
+ *
+ * @author Torkild U. Resheim
+ */
+@SuppressWarnings("restriction")
+public class TrackingJournalTest {
+
+	private static final GlobalTaskId ID = new GlobalTaskId("local", "1");
+
+	private static final LocalDateTime START = LocalDateTime.of(2022, 5, 9, 9, 0, 0, 123_000_000);
+
+	/** Number of ticks the child process writes before it is killed */
+	private static final int TICKS = 50;
+
+	private static EntityManager entityManager;
+
+	@TempDir
+	Path folder;
+
+	@BeforeAll
+	public static void before() {
+		entityManager = PersistenceHelper.getEntityManager();
+		TimekeeperPlugin.setEntityManager(entityManager);
+	}
+
+	@AfterEach
+	public void after() {
+		EntityTransaction transaction = entityManager.getTransaction();
+		if (transaction.isActive()) {
+			transaction.rollback();
+		}
+		transaction.begin();
+		Query createQuery = entityManager.createNativeQuery("SET REFERENTIAL_INTEGRITY FALSE;TRUNCATE TABLE TASK_DAY_TOTAL;TRUNCATE TABLE ACTIVITY;TRUNCATE TABLE TASK;SET REFERENTIAL_INTEGRITY TRUE");
+		createQuery.executeUpdate();
+		transaction.commit();
+		entityManager.clear();
+	}
+
+	/**
+	 * Writes a start event followed by ticks to the journal given as argument,
+	 * reporting each tick on standard output. This runs until killed.
+	 */
+	public static void main(String[] args) throws Exception {
+		try (TrackingJournal journal = new TrackingJournal(Paths.get(args[0]), SyncPolicy.ALWAYS)) {
+			journal.append(Type.START, ID, START);
+			for (int i = 1;; i++) {
+				journal.append(Type.TICK, ID, START.plusSeconds(i));
+				System.out.println(i);
+				System.out.flush();
+				Thread.sleep(5);
+			}
+		}
+	}
+
+	@Test
+	public void testRecovery_afterKill() throws Exception {
+		Path path = folder.resolve("h2db.journal");
+		Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+		Process process = new ProcessBuilder(java.toString(), "-cp", System.getProperty("java.class.path"),
+				TrackingJournalTest.class.getName(), path.toString())
+						.redirectError(ProcessBuilder.Redirect.INHERIT)
+						.start();
+		int ticks = 0;
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while (ticks < TICKS && (line = in.readLine()) != null) {
+				ticks = Integer.parseInt(line.trim());
+			}
+			// the equivalent of kill -9 on most platforms
+			process.destroyForcibly();
+			assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+		}
+		assertEquals(TICKS, ticks);
+
+		List<Entry> entries = TrackingJournal.read(path);
+		// every reported tick must have been written, the child may have written more
+		assertTrue(entries.size() > TICKS);
+		assertEquals(Type.START, entries.get(0).type);
+		assertEquals(START, entries.get(0).time);
+		for (int i = 1; i < entries.size(); i++) {
+			assertEquals(i, entries.get(i).sequence);
+			assertEquals(START.plusSeconds(i), entries.get(i).time);
+		}
+
+		// a task that was running when the process was killed
+		Task task = createRunningTask();
+		int changed = replay(entries);
+		assertEquals(entries.size() - 1, changed);
+		assertEquals(entries.get(entries.size() - 1).time, task.getTick());
+		assertTrue(task.getCurrentActivity().isPresent());
+	}
+
+	@Test
+	public void testRead_ignoresIncompleteRecord() throws IOException {
+		Path path = folder.resolve("h2db.journal");
+		try (TrackingJournal journal = new TrackingJournal(path, SyncPolicy.NEVER)) {
+			journal.append(Type.START, ID, START);
+			journal.append(Type.TICK, ID, START.plusMinutes(1));
+		}
+		// simulate a record that was only partially written
+		Files.write(path, new byte[] { 0, 0, 0, 40, 1, 2, 3 }, StandardOpenOption.APPEND);
+		assertEquals(2, TrackingJournal.read(path).size());
+		// the incomplete record is dropped when opened, so new records can be read
+		try (TrackingJournal journal = new TrackingJournal(path, SyncPolicy.NEVER)) {
+			assertEquals(2, journal.append(Type.STOP, ID, START.plusMinutes(2)));
+			assertEquals(3, journal.read().size());
+		}
+	}
+
+	@Test
+	public void testAppend_oversizedSummary() throws IOException {
+		Path path = folder.resolve("h2db.journal");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1_000; i++) {
+			// a mix of one, two and three byte characters and a surrogate pair
+			sb.append("a\u00e6\u20ac\ud83d\ude00");
+		}
+		String summary = sb.toString();
+		try (TrackingJournal journal = new TrackingJournal(path, SyncPolicy.NEVER)) {
+			journal.append(Type.START, ID, summary, START);
+			long stop = journal.append(Type.STOP, ID, START.plusMinutes(2));
+			journal.done(stop);
+			// the start is outstanding, so both records are written again
+			journal.compact();
+			assertEquals(2, journal.read().size());
+		}
+		// the oversized record and those following it are kept when opened again
+		try (TrackingJournal journal = new TrackingJournal(path, SyncPolicy.NEVER)) {
+			List<Entry> entries = journal.read();
+			assertEquals(2, entries.size());
+			assertEquals(Type.STOP, entries.get(1).type);
+			String stored = entries.get(0).summary;
+			assertTrue(stored.length() > 1_000);
+			assertTrue(summary.startsWith(stored));
+			assertFalse(Character.isHighSurrogate(stored.charAt(stored.length() - 1)));
+			assertEquals(2, journal.append(Type.TICK, ID, START.plusMinutes(3)));
+			assertEquals(3, journal.read().size());
+		}
+	}
+
+	@Test
+	public void testCompact_keepsOutstanding() throws IOException {
+		Path path = folder.resolve("h2db.journal");
+		try (TrackingJournal journal = new TrackingJournal(path, SyncPolicy.NEVER)) {
+			long start = journal.append(Type.START, ID, START);
+			long tick = journal.append(Type.TICK, ID, START.plusMinutes(1));
+			journal.append(Type.STOP, ID, START.plusMinutes(2));
+			journal.done(start);
+			journal.compact();
+			assertEquals(2, journal.read().size());
+			assertEquals(tick, journal.read().get(0).sequence);
+			journal.done(tick);
+			journal.done(tick + 1);
+			journal.compact();
+			assertTrue(journal.read().isEmpty());
+			assertEquals(0, Files.size(path));
+		}
+	}
+
+	@Test
+	public void testReplay_exactEndTime() throws IOException {
+		Task task = createRunningTask();
+		Path path = folder.resolve("h2db.journal");
+		List<Entry> entries;
+		try (TrackingJournal journal = new TrackingJournal(path, SyncPolicy.NEVER)) {
+			journal.append(Type.START, ID, START);
+			journal.append(Type.TICK, ID, START.plusMinutes(10));
+			journal.append(Type.STOP, ID, START.plusMinutes(20));
+			entries = journal.read();
+		}
+		assertEquals(2, replay(entries));
+		assertFalse(task.getCurrentActivity().isPresent());
+		Activity activity = task.getActivities().get(0);
+		assertEquals(START.plusMinutes(20), activity.getEnd());
+		assertEquals(START.plusMinutes(10), task.getTick());
+		// replaying again must not change anything
+		assertEquals(0, replay(entries));
+		assertEquals(1, task.getActivities().size());
+	}
+
+	@Test
+	public void testReplay_startOfTaskNeverPersisted() throws IOException {
+		Path path = folder.resolve("h2db.journal");
+		List<Entry> entries;
+		try (TrackingJournal journal = new TrackingJournal(path, SyncPolicy.NEVER)) {
+			journal.append(Type.START, ID, "Task #1", START);
+			journal.append(Type.TICK, ID, START.plusMinutes(10));
+			entries = journal.read();
+		}
+		assertEquals("Task #1", entries.get(0).summary);
+		assertNull(entries.get(1).summary);
+		assertNull(TimekeeperPlugin.findTask(entityManager, ID));
+
+		assertEquals(2, replay(entries));
+		entityManager.clear();
+		Task task = TimekeeperPlugin.findTask(entityManager, ID);
+		assertNotNull(task);
+		assertEquals("Task #1", task.getTaskSummary());
+		assertEquals(START.plusMinutes(10), task.getTick());
+		assertTrue(task.getCurrentActivity().isPresent());
+		assertEquals(START, task.getCurrentActivity().get().getStart());
+		// replaying again must not create another task or activity
+		assertEquals(0, replay(entries));
+		assertEquals(1, task.getActivities().size());
+	}
+
+	private Task createRunningTask() {
+		Task task = new Task(new LocalTask(ID.getTaskId(), "Task #" + ID.getTaskId()));
+		task.startActivity(START);
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		entityManager.persist(task);
+		transaction.commit();
+		assertEquals(ID, task.getId());
+		return task;
+	}
+
+	private int replay(List<Entry> entries) {
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.begin();
+		int changed = TrackingJournal.replay(entityManager, entries);
+		transaction.commit();
+		return changed;
+	}
+
+}
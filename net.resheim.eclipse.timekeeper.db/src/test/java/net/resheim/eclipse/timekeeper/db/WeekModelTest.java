@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.WEEK;
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.createTask;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Project;
+import net.resheim.eclipse.timekeeper.db.model.ProjectType;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that the week model holds the same elements and numbers as when
+ * calculated from the tasks, leaving out what is not shown, that the elements
+ * are ordered as in the view, and that a model is never changed when a new one
+ * is obtained after a task has been modified.
+ *
+ * @author Torkild U. Resheim
+ */
+public class WeekModelTest {
+
+	private static final long NOW = Activity.toEpochSecond(LocalDateTime.of(2022, 5, 16, 0, 0));
+
+	@Test
+	public void testOf() {
+		Project a = new Project(new ProjectType("local"), "Project A");
+		Project b = new Project(new ProjectType("local"), "Project B");
+		Task t1 = createTask(a, "First", 1, 2, 3);
+		Task t2 = createTask(a, "Second", 0, 0, 0, 4);
+		Task t3 = createTask(b, "Third", 5);
+		// activities of other weeks are left out
+		Activity before = new Activity(t3, WEEK.minusDays(1).atTime(9, 0));
+		before.setEnd(before.getStart().plusHours(1));
+		t3.addActivity(before);
+
+		WeekModel model = WeekModel.of(WEEK, Arrays.asList(t1, t2, t3));
+		assertArrayEquals(new Project[] { a, b }, model.getProjects());
+		assertArrayEquals(new Task[] { t1, t2 }, model.getTasks(a));
+		assertArrayEquals(new Task[] { t3 }, model.getTasks(b));
+		assertEquals(3, model.getActivities(t1).length);
+		assertEquals(1, model.getActivities(t3).length);
+		for (int i = 0; i < 7; i++) {
+			long from = Activity.toEpochSecond(WEEK.plusDays(i));
+			long s1 = t1.getSeconds(from, from + 86_400, NOW);
+			long s2 = t2.getSeconds(from, from + 86_400, NOW);
+			long s3 = t3.getSeconds(from, from + 86_400, NOW);
+			assertEquals(s1, model.getSeconds(t1, i, NOW), "Seconds on day " + i);
+			assertEquals(s1 + s2, model.getSeconds(a, i, NOW), "Seconds on day " + i);
+			assertEquals(s1 + s2 + s3, model.getSeconds(i, NOW), "Seconds on day " + i);
+		}
+	}
+
+	@Test
+	public void testWith() {
+		Project a = new Project(new ProjectType("local"), "Project A");
+		Task t1 = createTask(a, "First", 1);
+		WeekModel model = WeekModel.of(WEEK, Arrays.asList(t1));
+
+		// a running activity keeps being counted until now once added
+		Activity running = new Activity(t1, WEEK.plusDays(2).atTime(9, 0));
+		t1.addActivity(running);
+		model = model.with(t1);
+		long now = Activity.toEpochSecond(WEEK.plusDays(2).atTime(10, 30));
+		assertEquals(2, model.getActivities(t1).length);
+		assertEquals(5400, model.getSeconds(t1, 2, now));
+		assertEquals(5400, model.getSeconds(a, 2, now));
+		assertEquals(7200, model.getSeconds(2, now + 1800));
+
+		// a task that was not part of the model is added
+		Task t2 = createTask(a, "Second", 2);
+		WeekModel updated = model.with(t2);
+		assertEquals(1, model.getTasks(a).length);
+		assertArrayEquals(new Task[] { t1, t2 }, updated.getTasks(a));
+		assertEquals(3 * 3600, updated.getSeconds(a, 0, now));
+	}
+
+	@Test
+	public void testOf_tasksWithoutProject() {
+		Project a = new Project(new ProjectType("local"), "Project A");
+		Task t1 = createTask(a, "First", 1);
+		Task orphan = createTask(null, "Orphan", 2);
+		WeekModel model = WeekModel.of(WEEK, Arrays.asList(t1, orphan, null));
+		assertEquals(Collections.singleton(t1), model.getTasks());
+		assertArrayEquals(new Project[] { a }, model.getProjects());
+		assertEquals(0, model.getActivities(orphan).length);
+		assertEquals(0, model.getSeconds(orphan, 0, NOW));
+		assertEquals(3600, model.getSeconds(0, NOW));
+		// nor are these added later
+		assertSame(model, model.with(orphan));
+	}
+
+	@Test
+	public void testOf_otherWeeks() {
+		Project a = new Project(new ProjectType("local"), "Project A");
+		Task task = createTask(a, "First", 1);
+		Activity monday = task.getActivities().get(0);
+		Activity before = new Activity(task, WEEK.minusDays(1).atTime(9, 0));
+		before.setEnd(before.getStart().plusHours(1));
+		task.addActivity(before);
+		Activity after = new Activity(task, WEEK.plusDays(7).atTime(9, 0));
+		after.setEnd(after.getStart().plusHours(1));
+		task.addActivity(after);
+		// still running, but started after the week
+		task.addActivity(new Activity(task, WEEK.plusDays(8).atTime(9, 0)));
+		// only the part after midnight is within the week
+		Activity overnight = new Activity(task, WEEK.minusDays(1).atTime(23, 0));
+		overnight.setEnd(WEEK.atTime(1, 0));
+		task.addActivity(overnight);
+
+		WeekModel model = WeekModel.of(WEEK, Arrays.asList(task));
+		long now = Activity.toEpochSecond(WEEK.plusDays(9).atStartOfDay());
+		Activity[] activities = model.getActivities(task);
+		assertEquals(2, activities.length);
+		assertSame(overnight, activities[0]);
+		assertSame(monday, activities[1]);
+		assertEquals(2 * 3600, model.getSeconds(task, 0, now));
+		for (int i = 1; i < 7; i++) {
+			assertEquals(0, model.getSeconds(task, i, now), "Seconds on day " + i);
+		}
+	}
+
+	@Test
+	public void testOf_order() {
+		Project a = new Project(new ProjectType("local"), "project a");
+		Project b = new Project(new ProjectType("local"), "Project B");
+		List<Task> tasks = new ArrayList<>();
+		for (String id : new String[] { "10", "A-1", "9", "100" }) {
+			tasks.add(createTask(a, new GlobalTaskId("local", id), "Task " + id, 1));
+		}
+		tasks.add(createTask(b, new GlobalTaskId("local", "1"), "Task 1", 1));
+		WeekModel model = WeekModel.of(WEEK, tasks);
+		// projects are sorted by name regardless of case, tasks by the numeric identifier
+		assertArrayEquals(new Project[] { a, b }, model.getProjects());
+		assertEquals(Arrays.asList("9", "10", "100", "A-1"),
+				Arrays.stream(model.getTasks(a)).map(Task::getTaskId).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testWith_immutable() {
+		Project a = new Project(new ProjectType("local"), "Project A");
+		Task t1 = createTask(a, "First", 1);
+		WeekModel model = WeekModel.of(WEEK, Arrays.asList(t1));
+		Task t2 = createTask(a, "Second", 2);
+		WeekModel updated = model.with(t2);
+		assertNotSame(model, updated);
+		assertEquals(Collections.singleton(t1), model.getTasks());
+		assertArrayEquals(new Task[] { t1 }, model.getTasks(a));
+		assertEquals(0, model.getActivities(t2).length);
+		assertEquals(3600, model.getSeconds(a, 0, NOW));
+		assertEquals(3 * 3600, updated.getSeconds(a, 0, NOW));
+		assertThrows(UnsupportedOperationException.class, () -> model.getTasks().add(t2));
+
+		// changes to a task are not seen until the model is obtained again
+		Activity added = new Activity(t1, WEEK.plusDays(1).atTime(9, 0));
+		added.setEnd(added.getStart().plusHours(1));
+		t1.addActivity(added);
+		assertEquals(1, updated.getActivities(t1).length);
+		assertEquals(0, updated.getSeconds(t1, 1, NOW));
+		WeekModel changed = updated.with(t1);
+		assertEquals(2, changed.getActivities(t1).length);
+		assertEquals(3600, changed.getSeconds(t1, 1, NOW));
+		assertEquals(0, updated.getSeconds(t1, 1, NOW));
+	}
+
+	@Test
+	public void testWith_otherInstance() {
+		Project a = new Project(new ProjectType("local"), "Project A");
+		GlobalTaskId id = new GlobalTaskId("local", "1");
+		Task detached = createTask(a, id, "First", 1);
+		WeekModel model = WeekModel.of(WEEK, Arrays.asList(detached));
+		// the same task obtained again, as when the persistence context is cleared
+		Task managed = createTask(a, id, "First", 1, 2);
+		WeekModel updated = model.with(managed);
+		assertArrayEquals(new Task[] { managed }, updated.getTasks(a));
+		assertEquals(Collections.singleton(managed), updated.getTasks());
+		assertEquals(0, updated.getActivities(detached).length);
+		assertEquals(3 * 3600, updated.getSeconds(a, 0, NOW) + updated.getSeconds(a, 1, NOW));
+	}
+
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.WEEK;
+import static net.resheim.eclipse.timekeeper.db.TestFixtures.createTask;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot.ProjectEntry;
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot.TaskEntry;
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.ActivityLabel;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
+import net.resheim.eclipse.timekeeper.db.model.Project;
+import net.resheim.eclipse.timekeeper.db.model.ProjectType;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that a week snapshot is written and read back with the same numbers
+ * as calculated from the tasks.
+ *
+ * @author Torkild U. Resheim
+ */
+public class WeekSnapshotTest {
+
+	@TempDir
+	Path folder;
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		Project a = new Project(new ProjectType("local"), "Project A");
+		Project b = new Project(new ProjectType("local"), "Project Ø");
+		Task t1 = createTask(a, "First", 1, 2, 3);
+		Task t2 = createTask(a, "Second", 0, 0, 0, 4);
+		Task t3 = createTask(b, "Third", 5);
+		ActivityLabel label = new ActivityLabel("Testing", "245,166,81");
+		t1.getActivities().get(1).getLabels().add(label);
+
+		WeekSnapshot snapshot = WeekSnapshot.of(WEEK, Arrays.asList(t1, t2, t3), WEEK.plusDays(7).atStartOfDay());
+		Path path = folder.resolve("week.snapshot");
+		snapshot.write(path);
+		WeekSnapshot read = WeekSnapshot.read(path).get();
+
+		assertEquals(WEEK, read.getFirstDayOfWeek());
+		List<ProjectEntry> projects = read.getProjects();
+		assertEquals(2, projects.size());
+		for (int i = 0; i < 7; i++) {
+			long from = Activity.toEpochSecond(WEEK.plusDays(i));
+			long now = Activity.toEpochSecond(LocalDateTime.of(2022, 5, 16, 0, 0));
+			long expected = t1.getSeconds(from, from + 86_400, now) + t2.getSeconds(from, from + 86_400, now)
+					+ t3.getSeconds(from, from + 86_400, now);
+			assertEquals(expected, read.getSeconds(i), "Seconds on day " + i);
+			assertEquals(snapshot.getSeconds(i), read.getSeconds(i));
+		}
+		ProjectEntry projectA = projects.stream().filter(p -> p.getName().equals("Project A")).findFirst().get();
+		assertEquals(2 * 3600, projectA.getSeconds(1));
+		TaskEntry first = projectA.getTasks().stream().filter(t -> "First".equals(t.getSummary())).findFirst().get();
+		assertEquals(1, first.getLabels().size());
+		assertEquals("Testing", first.getLabels().get(0).getName());
+		assertEquals("245,166,81", first.getLabels().get(0).getColor());
+		assertEquals(projectA, first.getProject());
+	}
+
+	@Test
+	public void testOrder_sameAsWeekModel() {
+		Project a = new Project(new ProjectType("local"), "project a");
+		Project b = new Project(new ProjectType("local"), "Project B");
+		List<Task> tasks = new ArrayList<>();
+		for (String id : new String[] { "10", "9", "100", "A-1" }) {
+			tasks.add(createTask(tasks.isEmpty() ? b : a, new GlobalTaskId("local", id), "Task " + id, 1));
+		}
+		WeekModel model = WeekModel.of(WEEK, tasks);
+		WeekSnapshot snapshot = WeekSnapshot.of(WEEK, tasks, WEEK.plusDays(7).atStartOfDay());
+		assertEquals(model.getProjects().length, snapshot.getProjects().size());
+		for (int i = 0; i < model.getProjects().length; i++) {
+			Project project = model.getProjects()[i];
+			assertEquals(project.getName(), snapshot.getProjects().get(i).getName());
+			List<String> expected = Arrays.stream(model.getTasks(project))
+					.map(Task::getTaskId)
+					.collect(Collectors.toList());
+			List<String> actual = snapshot.getProjects().get(i).getTasks().stream()
+					.map(TaskEntry::getTaskId)
+					.collect(Collectors.toList());
+			assertEquals(expected, actual);
+		}
+		assertEquals(Arrays.asList("9", "100", "A-1"), snapshot.getProjects().get(0).getTasks().stream()
+				.map(TaskEntry::getTaskId)
+				.collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testRead_corrupt() throws IOException {
+		Path path = folder.resolve("week.snapshot");
+		assertFalse(WeekSnapshot.read(path).isPresent());
+		Files.write(path, new byte[] { 0x54, 0x4b, 0x57, 0x53, 0, 0, 0, 1, 0, 0 });
+		assertFalse(WeekSnapshot.read(path).isPresent());
+	}
+
+}
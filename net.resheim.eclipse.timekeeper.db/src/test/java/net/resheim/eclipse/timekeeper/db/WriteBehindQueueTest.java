@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.mylyn.internal.tasks.core.LocalTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Verifies that the write-behind queue applies changes in order, coalesces
+ * ticks and commits in batches.
+ *
+ * @author Torkild U. Resheim
+ */
+@SuppressWarnings("restriction")
+public class WriteBehindQueueTest {
+
+	private final AtomicInteger commits = new AtomicInteger();
+
+	private WriteBehindQueue queue;
+
+	@BeforeEach
+	public void before() {
+		queue = new WriteBehindQueue(new ReentrantLock(), commits::incrementAndGet);
+	}
+
+	@AfterEach
+	public void after() {
+		queue.shutdown(1_000);
+	}
+
+	@Test
+	public void testFlush_commitsOnce() throws Exception {
+		StringBuilder order = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			int n = i;
+			queue.submit(() -> order.append(n));
+		}
+		queue.flush().get(1, TimeUnit.SECONDS);
+		assertEquals("0123456789", order.toString());
+		assertEquals(1, commits.get());
+		assertEquals(0, queue.getDepth());
+		// nothing more to commit
+		queue.flush().get(1, TimeUnit.SECONDS);
+		assertEquals(1, commits.get());
+	}
+
+	@Test
+	public void testTick_coalesced() throws Exception {
+		Task task = new Task(new LocalTask("1", "Task #1"));
+		CountDownLatch blocked = new CountDownLatch(1);
+		// keep the writer busy so that the ticks are queued
+		queue.submit(() -> {
+			try {
+				blocked.await(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		LocalDateTime tick = LocalDateTime.of(2022, 5, 9, 12, 0);
+		for (int i = 0; i < 60; i++) {
+			queue.tick(task, tick.plusSeconds(i));
+		}
+		assertEquals(2, queue.getDepth());
+		blocked.countDown();
+		queue.flush().get(1, TimeUnit.SECONDS);
+		assertEquals(tick.plusSeconds(59), task.getTick());
+		assertEquals(1, commits.get());
+		assertEquals(0, queue.getDepth());
+	}
+
+	@Test
+	public void testFlush_workAfterCommit() throws Exception {
+		StringBuilder order = new StringBuilder();
+		queue.submit(() -> order.append("change,"));
+		String result = queue.flush(() -> order.append("work,").toString()).get(1, TimeUnit.SECONDS);
+		assertEquals("change,work,", result);
+		assertEquals(1, commits.get());
+		assertEquals(0, queue.getDepth());
+	}
+
+	@Test
+	public void testTick_resolved() throws Exception {
+		queue.shutdown(1_000);
+		Task detached = new Task(new LocalTask("1", "Task #1"));
+		Task managed = new Task(new LocalTask("1", "Task #1"));
+		queue = new WriteBehindQueue(new ReentrantLock(), commits::incrementAndGet, t -> managed);
+		LocalDateTime tick = LocalDateTime.of(2022, 5, 9, 12, 0);
+		queue.tick(detached, tick);
+		queue.flush().get(1, TimeUnit.SECONDS);
+		// the tick is applied to the instance obtained by the resolver
+		assertEquals(tick, managed.getTick());
+		assertNull(detached.getTick());
+		assertEquals(1, commits.get());
+	}
+
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db.benchmark;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.resheim.eclipse.timekeeper.db.ActivityRecovery;
+import net.resheim.eclipse.timekeeper.db.ActivityRecovery.ElapsedTime;
+
+/**
+ * Compares recovering the end time of an activity started a month ago, by
+ * stepping forward one window at a time as was done when starting up, with the
+ * search used by {@link ActivityRecovery}. The task activation history is
+ * simulated by two activations per working day, each lookup scanning all of
+ * them similar to what Mylyn does.
+ *
+ * @author Torkild U. Resheim
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActivityRecoveryBenchmark {
+
+	/** Number of days the task was in use after the activity was started */
+	@Param({ "0", "7", "30" })
+	private int activeDays;
+
+	private LocalDateTime start;
+
+	private LocalDateTime now;
+
+	private ElapsedTime elapsed;
+
+	@Setup
+	public void setup() {
+		now = LocalDateTime.now();
+		start = now.minusDays(30);
+		List<LocalDateTime[]> activations = new ArrayList<>();
+		activations.add(new LocalDateTime[] { start, start.plusHours(2) });
+		for (int day = 1; day < activeDays; day++) {
+			LocalDateTime morning = start.plusDays(day).withHour(9);
+			activations.add(new LocalDateTime[] { morning, morning.plusHours(3) });
+			activations.add(new LocalDateTime[] { morning.plusHours(4), morning.plusHours(8) });
+		}
+		elapsed = (from, to) -> {
+			long millis = 0;
+			for (LocalDateTime[] a : activations) {
+				LocalDateTime s = a[0].isAfter(from) ? a[0] : from;
+				LocalDateTime e = a[1].isBefore(to) ? a[1] : to;
+				if (s.isBefore(e)) {
+					millis += Duration.between(s, e).toMillis();
+				}
+			}
+			return millis;
+		};
+	}
+
+	/**
+	 * The previous approach, stepping forward until a window without activity.
+	 */
+	@Benchmark
+	public LocalDateTime linear() {
+		LocalDateTime s = start;
+		LocalDateTime e = start.plus(ActivityRecovery.WINDOW);
+		while (true) {
+			if (elapsed.get(s, e) == 0 || e.isAfter(now)) {
+				return e;
+			}
+			s = e;
+			e = e.plus(ActivityRecovery.WINDOW);
+		}
+	}
+
+	@Benchmark
+	public LocalDateTime search() {
+		return ActivityRecovery.findLastActive(start, now, elapsed);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(ActivityRecoveryBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.jpa.PersistenceProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the time it takes to connect to an existing database, with and
+ * without having EclipseLink check the schema. The former is what was done on
+ * every startup before the schema version was recorded in the database.
+ *
+ * @author Torkild U. Resheim
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConnectBenchmark {
+
+	private String url;
+
+	@Setup
+	public void setup() throws IOException {
+		Path folder = Files.createTempDirectory("timekeeper");
+		url = "jdbc:h2:" + folder.resolve("h2db").toString();
+		// create the schema
+		connect("create-or-extend-tables");
+	}
+
+	private void connect(String ddlGeneration) {
+		Map<String, Object> props = new HashMap<>();
+		props.put(PersistenceUnitProperties.JDBC_URL, url);
+		props.put(PersistenceUnitProperties.JDBC_DRIVER, "org.h2.Driver");
+		props.put(PersistenceUnitProperties.JDBC_USER, "sa");
+		props.put(PersistenceUnitProperties.JDBC_PASSWORD, "");
+		props.put(PersistenceUnitProperties.DDL_GENERATION, ddlGeneration);
+		EntityManagerFactory factory = new PersistenceProvider()
+				.createEntityManagerFactory("net.resheim.eclipse.timekeeper.db", props);
+		EntityManager em = factory.createEntityManager();
+		em.close();
+		factory.close();
+	}
+
+	@Benchmark
+	public void ddlGeneration() {
+		connect("create-or-extend-tables");
+	}
+
+	@Benchmark
+	public void schemaCurrent() {
+		connect(PersistenceUnitProperties.NONE);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(ConnectBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
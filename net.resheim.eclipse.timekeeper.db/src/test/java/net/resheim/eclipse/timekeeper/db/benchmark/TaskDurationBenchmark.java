@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db.benchmark;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Compares calculating the daily durations of a week for one task by streaming
+ * all activities, as the week view used to, with using the interval index of
+ * {@link Task}, both returning {@link Duration} and primitive seconds. The GC
+ * profiler is enabled so that the allocation rate of each is reported. Run
+ * using the main method from the IDE, or with the test classpath on the
+ * command line.
+ *
+ * @author Torkild U. Resheim
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskDurationBenchmark {
+
+	@Param({ "10", "1000", "50000" })
+	private int activities;
+
+	private Task task;
+
+	/** Monday of the last week with activities */
+	private LocalDate week;
+
+	@Setup
+	public void setup() {
+		task = new Task();
+		// two activities per day, going backwards from today
+		LocalDateTime time = LocalDate.now().atTime(9, 0);
+		for (int i = 0; i < activities; i++) {
+			Activity activity = new Activity(task, time);
+			activity.setEnd(time.plusMinutes(90));
+			task.addActivity(activity);
+			time = i % 2 == 0 ? time.plusHours(4) : time.minusHours(4).minusDays(1);
+		}
+		week = LocalDate.now().minusDays(6);
+		// build the index before measuring
+		task.getDuration(week);
+	}
+
+	@Benchmark
+	public void stream(Blackhole blackhole) {
+		for (int i = 0; i < 7; i++) {
+			LocalDate date = week.plusDays(i);
+			blackhole.consume(task.getActivities()
+					.stream()
+					.map(a -> a.getDuration(date))
+					.reduce(Duration.ZERO, Duration::plus));
+		}
+	}
+
+	@Benchmark
+	public void index(Blackhole blackhole) {
+		for (int i = 0; i < 7; i++) {
+			blackhole.consume(task.getDuration(week.plusDays(i)));
+		}
+	}
+
+	@Benchmark
+	public void seconds(Blackhole blackhole) {
+		long from = Activity.toEpochSecond(week);
+		long now = Activity.currentEpochSecond();
+		for (int i = 0; i < 7; i++, from += 86_400) {
+			blackhole.consume(task.getSeconds(from, from + 86_400, now));
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(TaskDurationBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+}
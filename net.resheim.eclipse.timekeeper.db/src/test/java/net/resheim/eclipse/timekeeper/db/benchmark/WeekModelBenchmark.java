@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright © 2022 Torkild U. Resheim
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Torkild U. Resheim - initial API and implementation
+ *******************************************************************************/
+package net.resheim.eclipse.timekeeper.db.benchmark;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.resheim.eclipse.timekeeper.db.WeekModel;
+import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.Project;
+import net.resheim.eclipse.timekeeper.db.model.ProjectType;
+import net.resheim.eclipse.timekeeper.db.model.Task;
+
+/**
+ * Measures the work done by the content and label providers of the work week
+ * view when the fully expanded tree is refreshed: obtaining the projects, the
+ * tasks of each project and the activities of each task, and the time spent on
+ * each row during the seven days. This is done by streaming the set of tasks
+ * and activities, as the content provider used to, and by looking up the
+ * elements and totals in a {@link WeekModel}. The cost of creating the model,
+ * which is done once each time the week is loaded, is measured separately.
+ * Run using the main method from the IDE, or with the test classpath on the
+ * command line.
+ *
+ * @author Torkild U. Resheim
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeekModelBenchmark {
+
+	private static final long SECONDS_PER_DAY = 86_400;
+
+	@Param({ "500" })
+	private int tasks;
+
+	/** Activities in total, spread evenly on the tasks and days of the week */
+	@Param({ "5000" })
+	private int activities;
+
+	private LocalDate week;
+
+	private long first;
+
+	private long now;
+
+	private Set<Task> filtered;
+
+	private WeekModel model;
+
+	@Setup
+	public void setup() {
+		week = LocalDate.of(2022, 5, 9);
+		first = Activity.toEpochSecond(week);
+		now = first + 7 * SECONDS_PER_DAY;
+		List<Project> projects = new ArrayList<>();
+		for (int i = 0; i < 25; i++) {
+			projects.add(new Project(new ProjectType("local"), "Project #" + i));
+		}
+		filtered = new HashSet<>();
+		for (int i = 0; i < tasks; i++) {
+			Task task = new Task();
+			task.setTaskSummary("Task #" + i);
+			task.setProject(projects.get(i % projects.size()));
+			for (int j = 0; j < activities / tasks; j++) {
+				Activity activity = new Activity(task, week.plusDays(j % 7).atTime(8 + j % 8, 0));
+				activity.setEnd(activity.getStart().plusMinutes(45));
+				task.addActivity(activity);
+			}
+			filtered.add(task);
+		}
+		model = WeekModel.of(week, filtered);
+	}
+
+	@Benchmark
+	public void stream(Blackhole blackhole) {
+		Map<Object, Boolean> distinct = new ConcurrentHashMap<>();
+		Object[] elements = filtered.stream()
+				.map(Task::getProject)
+				.filter(p -> distinct.putIfAbsent(p.getName(), Boolean.TRUE) == null)
+				.toArray();
+		for (Object element : elements) {
+			Project project = (Project) element;
+			Task[] children = filtered.stream()
+					.filter(t -> project.equals(t.getProject()))
+					.toArray(Task[]::new);
+			for (int d = 0; d < 7; d++) {
+				long from = first + d * SECONDS_PER_DAY;
+				long sum = 0;
+				for (Task task : filtered) {
+					if (project.equals(task.getProject())) {
+						sum += task.getSeconds(from, from + SECONDS_PER_DAY, now);
+					}
+				}
+				blackhole.consume(sum);
+			}
+			for (Task task : children) {
+				Object[] rows = task.getActivities().stream()
+						.filter(a -> a.getDuration(week, week.plusDays(7)) != Duration.ZERO)
+						.toArray();
+				for (int d = 0; d < 7; d++) {
+					long from = first + d * SECONDS_PER_DAY;
+					blackhole.consume(task.getSeconds(from, from + SECONDS_PER_DAY, now));
+					for (Object row : rows) {
+						blackhole.consume(((Activity) row).getSeconds(from, from + SECONDS_PER_DAY, now));
+					}
+				}
+			}
+		}
+		for (int d = 0; d < 7; d++) {
+			long from = first + d * SECONDS_PER_DAY;
+			long sum = 0;
+			for (Task task : filtered) {
+				sum += task.getSeconds(from, from + SECONDS_PER_DAY, now);
+			}
+			blackhole.consume(sum);
+		}
+	}
+
+	@Benchmark
+	public void model(Blackhole blackhole) {
+		for (Project project : model.getProjects()) {
+			for (int d = 0; d < 7; d++) {
+				blackhole.consume(model.getSeconds(project, d, now));
+			}
+			for (Task task : model.getTasks(project)) {
+				Activity[] rows = model.getActivities(task);
+				for (int d = 0; d < 7; d++) {
+					long from = first + d * SECONDS_PER_DAY;
+					blackhole.consume(model.getSeconds(task, d, now));
+					for (Activity row : rows) {
+						blackhole.consume(row.getSeconds(from, from + SECONDS_PER_DAY, now));
+					}
+				}
+			}
+		}
+		for (int d = 0; d < 7; d++) {
+			blackhole.consume(model.getSeconds(d, now));
+		}
+	}
+
+	@Benchmark
+	public WeekModel create() {
+		return WeekModel.of(week, filtered);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(WeekModelBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
@@ -17,8 +17,8 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.zip.ZipFile;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
@@ -233,17 +233,16 @@ public class IntegrationTest {
 	public void testExport() {
 		try {
 			File newFolder = folder.newFolder();
-			Path path = newFolder.toPath();
+			Path path = newFolder.toPath().resolve("export.zip");
 			TimekeeperPlugin.getDefault().exportTo(path);
-			// probably don't have to verify that the content is correct as this is actually
-			// done by H2
-			Assert.assertEquals("\"TASK_ID\",\"REPOSITORY_URL\",\"TICK\",\"CURRENTACTIVITY_ID\"",
-					Files.readAllLines(path.resolve("trackedtask.csv")).get(0));
-			Assert.assertEquals(
-					"\"ID\",\"END_TIME\",\"ADJUSTED\",\"START_TIME\",\"SUMMARY\",\"TASK_ID\",\"REPOSITORY_URL\"",
-					Files.readAllLines(path.resolve("activity.csv")).get(0));
-			Assert.assertEquals("\"TASK_ID\",\"REPOSITORY_URL\",\"ACTIVITIES_ID\"",
-					Files.readAllLines(path.resolve("trackedtask_activity.csv")).get(0));
+			// the archive holds the tasks, the activities and a manifest
+			try (ZipFile zip = new ZipFile(path.toFile())) {
+				Assert.assertNotNull(zip.getEntry("trackedtask.csv"));
+				Assert.assertNotNull(zip.getEntry("activity.csv"));
+				Assert.assertNotNull(zip.getEntry("manifest.properties"));
+				// the relations are stored with the activities
+				Assert.assertNull(zip.getEntry("trackedtask_activity.csv"));
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
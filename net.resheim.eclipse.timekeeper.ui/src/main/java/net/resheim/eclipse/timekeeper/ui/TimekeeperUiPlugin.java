@@ -162,7 +162,7 @@ public class TimekeeperUiPlugin extends AbstractUIPlugin implements IPropertyCha
 				ITask task = TasksUi.getTaskActivityManager().getActiveTask();
 				Task ttask = TimekeeperPlugin.getDefault().getTask(task);
 				// and we have recorded a starting point
-				if (task != null && ttask.getCurrentActivity().isPresent()) {
+				if (task != null && ttask != null && TimekeeperPlugin.getCurrentActivity(ttask).isPresent()) {
 					dialogIsOpen = true;
 					LocalDateTime lastActive = ttask.getTick();
 
@@ -187,15 +187,26 @@ public class TimekeeperUiPlugin extends AbstractUIPlugin implements IPropertyCha
 						int open = md.open();
 						dialogIsOpen = false;
 						if (open == 1) {
-							// set time to the last activity detected
-							ttask.endActivity(lastActive);
-							// and create a new activity
-							ttask.startActivity();
+							TimekeeperPlugin.runInTransaction(em -> {
+								// the task may have been detached while the dialog was open
+								Task managed = TimekeeperPlugin.getManaged(ttask);
+								if (managed != null) {
+									// set time to the last activity detected
+									managed.endActivity(lastActive);
+									// and create a new activity
+									managed.startActivity();
+								}
+							});
 						}
 					} else {
 						// If the user has been idle long enough to be
 						// considered away, the idle time will be ignored
-						ttask.endActivity(lastActive);
+						TimekeeperPlugin.runInTransaction(em -> {
+							Task managed = TimekeeperPlugin.getManaged(ttask);
+							if (managed != null) {
+								managed.endActivity(lastActive);
+							}
+						});
 						String duration = DurationFormatUtils.formatDuration(lastIdleTimeMillis, "H:mm:ss", true);
 						if (afkDeactivate) {
 							TasksUi.getTaskActivityManager().deactivateTask(ttask.getMylynTask());
@@ -237,7 +248,7 @@ public class TimekeeperUiPlugin extends AbstractUIPlugin implements IPropertyCha
 		if (task != null) {
 			Task trackedTask = TimekeeperPlugin.getDefault().getTask(task);
 			if (trackedTask != null) {
-				Optional<Activity> currentActivity = trackedTask.getCurrentActivity();
+				Optional<Activity> currentActivity = TimekeeperPlugin.getCurrentActivity(trackedTask);
 				if (currentActivity.isPresent()) {
 					return currentActivity.get().getStart();
 				}
@@ -299,10 +310,9 @@ public class TimekeeperUiPlugin extends AbstractUIPlugin implements IPropertyCha
 							Display.getDefault().syncExec(() -> handleReactivation(idleTimeMillis));
 						} else if (lastIdleTimeMillis < consideredIdleThreshold) {
 							lastActiveTime = LocalDateTime.now();
-							Task trtask = TimekeeperPlugin.getDefault().getTask(task);
-							if (trtask != null) {
-								trtask.setTick(lastActiveTime);
-							}
+							// stored once the database is ready, using the latest time
+							TimekeeperPlugin.getDefault().getTaskWhenReady(task)
+									.thenAccept(trtask -> TimekeeperPlugin.getDefault().setTick(trtask, lastActiveTime));
 						}
 					}
 					lastIdleTimeMillis = idleTimeMillis;
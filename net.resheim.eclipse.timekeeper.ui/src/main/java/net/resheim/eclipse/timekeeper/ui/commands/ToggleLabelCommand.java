@@ -40,7 +40,14 @@ public class ToggleLabelCommand extends AbstractHandler {
 		ISelection selection = HandlerUtil.getCurrentSelection(event);
 		Object obj = ((IStructuredSelection) selection).getFirstElement();
 		if (obj instanceof Activity) {
-			((Activity) obj).toggleLabel(label);
+			TimekeeperPlugin.runInTransaction(em -> {
+				// either may have been detached since these were obtained
+				Activity activity = TimekeeperPlugin.getManaged((Activity) obj);
+				ActivityLabel managed = TimekeeperPlugin.getManaged(label);
+				if (activity != null && managed != null) {
+					activity.toggleLabel(managed);
+				}
+			});
 			IWorkbenchPage page = HandlerUtil.getActiveWorkbenchWindow(event).getActivePage();
 			IViewPart view = page.findView(WorkWeekView.VIEW_ID);
 			((WorkWeekView) view).refresh(obj);
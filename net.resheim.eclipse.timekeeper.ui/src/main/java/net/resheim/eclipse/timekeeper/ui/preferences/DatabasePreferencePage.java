@@ -14,6 +14,7 @@ package net.resheim.eclipse.timekeeper.ui.preferences;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDate;
 
 import org.eclipse.core.runtime.ICoreRunnable;
 import org.eclipse.core.runtime.jobs.Job;
@@ -33,6 +34,7 @@ import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.DirectoryDialog;
 import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.Group;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.ui.IViewPart;
@@ -46,6 +48,9 @@ import net.resheim.eclipse.timekeeper.ui.views.WorkWeekView;
 
 public class DatabasePreferencePage extends FieldEditorPreferencePage implements IWorkbenchPreferencePage {
 
+	/** Filter used when choosing an export archive */
+	private static final String ARCHIVE_EXTENSION = "*.zip";
+
 	public DatabasePreferencePage() {
 		super(FieldEditorPreferencePage.GRID);
 	}
@@ -66,9 +71,16 @@ public class DatabasePreferencePage extends FieldEditorPreferencePage implements
 		Group g2 = new Group(getFieldEditorParent(), SWT.SHADOW_ETCHED_IN);
 		g2.setText(Messages.DatabasePreferences_ExportImportTitle);
 		g2.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, false, 2, 1));
-		g2.setLayout(new GridLayout(2, true));
+		g2.setLayout(new GridLayout(3, true));
 		addExportButton(g2);
+		addExportChangesButton(g2);
 		addImportButton(g2);
+
+		Group g3 = new Group(getFieldEditorParent(), SWT.SHADOW_ETCHED_IN);
+		g3.setText(Messages.DatabasePreferences_MaintenanceTitle);
+		g3.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, false, 2, 1));
+		g3.setLayout(new GridLayout(1, true));
+		addRebuildButton(g3);
 		adjustGridLayout();
 	}
 
@@ -80,30 +92,100 @@ public class DatabasePreferencePage extends FieldEditorPreferencePage implements
 
 			@Override
 			public void widgetSelected(SelectionEvent e) {
-				DirectoryDialog dialog = new DirectoryDialog(getFieldEditorParent().getShell(), SWT.SAVE);
-				dialog.setText(Messages.DatabasePreferences_ChooseExportFolder);
+				FileDialog dialog = new FileDialog(getFieldEditorParent().getShell(), SWT.SAVE);
+				dialog.setText(Messages.DatabasePreferences_ChooseExportFile);
+				dialog.setFilterExtensions(new String[] { ARCHIVE_EXTENSION });
+				dialog.setFileName("timekeeper-" + LocalDate.now() + ".zip");
+				dialog.setOverwrite(true);
 				String open = dialog.open();
 				if (open!=null){
 					Path location = Paths.get(open);
 					Shell shell = g.getShell();
+					// a cancelled export is reported as such by the job
 					Job job = Job.create("Export Timekeeper database", (ICoreRunnable) monitor -> {
 						try {
-							int count = TimekeeperPlugin.getDefault().exportTo(location);
+							int count = TimekeeperPlugin.getDefault().exportTo(location, monitor);
 							shell.getDisplay().asyncExec(() -> {
 								MessageDialog.openInformation(shell, Messages.DatabasePreferences_DataExported,
 										String.format(Messages.DatabasePreferences_ExportMessage, count));
 							});
 						} catch (IOException e1) {
-							MessageDialog.openError(shell, Messages.DatabasePreferences_ExportError,
-									e1.getMessage());
+							shell.getDisplay().asyncExec(() -> {
+								MessageDialog.openError(shell, Messages.DatabasePreferences_ExportError,
+										e1.getMessage());
+							});
+						}
+					});
+					job.setUser(true);
+					job.schedule();
+				}
+			}
+		});
+	}
+
+	private void addExportChangesButton(Composite g) {
+		Button button = new Button(g, SWT.PUSH);
+		button.setText(Messages.DatabasePreferences_ExportChanges);
+		button.setLayoutData(new GridData());
+		button.addSelectionListener(new SelectionAdapter() {
+
+			@Override
+			public void widgetSelected(SelectionEvent e) {
+				DirectoryDialog dialog = new DirectoryDialog(getFieldEditorParent().getShell());
+				dialog.setMessage(Messages.DatabasePreferences_ChooseChangesFolder);
+				String open = dialog.open();
+				if (open != null) {
+					Path location = Paths.get(open);
+					Shell shell = g.getShell();
+					Job job = Job.create("Export Timekeeper database changes", (ICoreRunnable) monitor -> {
+						try {
+							int count = TimekeeperPlugin.getDefault().exportChanges(location, monitor);
+							shell.getDisplay().asyncExec(() -> {
+								MessageDialog.openInformation(shell, Messages.DatabasePreferences_DataExported,
+										String.format(Messages.DatabasePreferences_ChangesMessage, count));
+							});
+						} catch (IOException e1) {
+							shell.getDisplay().asyncExec(() -> {
+								MessageDialog.openError(shell, Messages.DatabasePreferences_ExportError,
+										e1.getMessage());
+							});
 						}
 					});
+					job.setUser(true);
 					job.schedule();
 				}
 			}
 		});
 	}
 
+	private void addRebuildButton(Composite g) {
+		Button button = new Button(g, SWT.PUSH);
+		button.setText(Messages.DatabasePreferences_RebuildTotals);
+		button.setLayoutData(new GridData());
+		button.addSelectionListener(new SelectionAdapter() {
+
+			@Override
+			public void widgetSelected(SelectionEvent e) {
+				Shell shell = g.getShell();
+				Job job = Job.create("Rebuild Timekeeper daily totals", (ICoreRunnable) monitor -> {
+					try {
+						int count = TimekeeperPlugin.getDefault().rebuildDailyTotals();
+						shell.getDisplay().asyncExec(() -> {
+							MessageDialog.openInformation(shell, Messages.DatabasePreferences_TotalsRebuilt,
+									String.format(Messages.DatabasePreferences_RebuildMessage, count));
+						});
+					} catch (RuntimeException e1) {
+						shell.getDisplay().asyncExec(() -> {
+							MessageDialog.openError(shell, Messages.DatabasePreferences_RebuildError,
+									e1.getMessage());
+						});
+					}
+				});
+				job.schedule();
+			}
+		});
+	}
+
 	@Override
 	public void propertyChange(PropertyChangeEvent event) {
 		if (event.getProperty().equals(TimekeeperPlugin.PREF_DATABASE_LOCATION)) {
@@ -127,17 +209,20 @@ public class DatabasePreferencePage extends FieldEditorPreferencePage implements
 
 			@Override
 			public void widgetSelected(SelectionEvent e) {
-				DirectoryDialog dialog = new DirectoryDialog(getFieldEditorParent().getShell(), SWT.OPEN);
-				dialog.setText(Messages.DatabasePreferences_ChooseImportFolder);
+				FileDialog dialog = new FileDialog(getFieldEditorParent().getShell(), SWT.OPEN);
+				dialog.setText(Messages.DatabasePreferences_ChooseImportFile);
+				// older exports are a folder of CSV files
+				dialog.setFilterExtensions(new String[] { ARCHIVE_EXTENSION, "*.csv" });
 				String open = dialog.open();
 				if (open != null) {
-					Path location = Paths.get(open);
+					Path selected = Paths.get(open);
+					Path location = selected.toString().endsWith(".csv") ? selected.getParent() : selected;
 					Shell shell = composite.getShell();
 					IViewPart showView = PlatformUI.getWorkbench().getActiveWorkbenchWindow().getActivePage()
 							.findView(WorkWeekView.VIEW_ID);
 					Job job = Job.create("Import Timekeeper database", (ICoreRunnable) monitor -> {
 						try {
-							int i = TimekeeperPlugin.getDefault().importFrom(location);
+							int i = TimekeeperPlugin.getDefault().importFrom(location, monitor);
 							shell.getDisplay().asyncExec(() -> {
 								// the view may not be open
 								if (showView != null) {
@@ -154,6 +239,7 @@ public class DatabasePreferencePage extends FieldEditorPreferencePage implements
 							}); // async
 						}
 					}); // job
+					job.setUser(true);
 					job.schedule();
 				}; // open
 			};
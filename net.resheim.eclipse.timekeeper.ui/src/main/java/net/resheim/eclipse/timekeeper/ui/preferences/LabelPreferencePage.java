@@ -12,6 +12,7 @@
 
 package net.resheim.eclipse.timekeeper.ui.preferences;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -43,6 +44,7 @@ import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
@@ -61,7 +63,9 @@ public class LabelPreferencePage extends PreferencePage implements IWorkbenchPre
 	private TableViewer fAppearanceColorTableViewer;
 	private ActivityLabelPainter painter;
 	private Text labelText;
-	private List<ActivityLabel> editableLabels;
+	private List<ActivityLabel> editableLabels = new ArrayList<>();
+	/** Whether or not the labels have been obtained from the database */
+	private boolean loaded;
 	private Button addButton;
 	private Button removeButton;
 
@@ -193,17 +197,26 @@ public class LabelPreferencePage extends PreferencePage implements IWorkbenchPre
 	}
 
 	private void initialize() {
-		editableLabels = TimekeeperPlugin.getLabels().map(l -> new ActivityLabel(l))
-				.collect(Collectors.toList());
 		fAppearanceColorTableViewer.setContentProvider(new IStructuredContentProvider() {
 			@Override
 			public Object[] getElements(Object inputElement) {
 				return editableLabels.toArray();
 			}
 		});
-		fAppearanceColorTableViewer.setInput(TimekeeperPlugin.getLabels().toArray());
-		fAppearanceColorTableViewer.setSelection(new StructuredSelection(fAppearanceColorTableViewer.getElementAt(0)),
-				true);
+		// the labels are shown as soon as the database is ready
+		Display display = fAppearanceColorTableViewer.getControl().getDisplay();
+		TimekeeperPlugin.getLabelsWhenReady().thenAccept(labels -> display.asyncExec(() -> {
+			if (fAppearanceColorTableViewer.getControl().isDisposed()) {
+				return;
+			}
+			editableLabels = labels.stream().map(l -> new ActivityLabel(l)).collect(Collectors.toList());
+			loaded = true;
+			fAppearanceColorTableViewer.setInput(labels.toArray());
+			if (!editableLabels.isEmpty()) {
+				fAppearanceColorTableViewer
+						.setSelection(new StructuredSelection(fAppearanceColorTableViewer.getElementAt(0)), true);
+			}
+		}));
 	}
 
 	private void initializeLabelList(Composite tableComposite) {
@@ -249,28 +262,35 @@ public class LabelPreferencePage extends PreferencePage implements IWorkbenchPre
 	}
 
 	private void updateDatabase() {
-
-		Map<String, ActivityLabel> savedLabels = TimekeeperPlugin.getLabels()
-				.collect(Collectors.toMap(l -> l.getId(), l -> l));
+		// nothing has been edited unless the labels have been loaded
+		if (!loaded) {
+			return;
+		}
 
 		Map<String, ActivityLabel> updatedLabels = editableLabels.stream()
 				.collect(Collectors.toMap(l -> l.getId(), l -> l));
 
-		savedLabels.forEach((t, u) -> {
-			if (!updatedLabels.containsKey(t)) {
-				TimekeeperPlugin.removeLabel(u);
-			}
-		});
-
-		updatedLabels.forEach((t, u) -> {
-			ActivityLabel label = savedLabels.get(t);
-			if (label != null) {
-				label.setColor(u.getColor());
-				label.setName(u.getName());
-				TimekeeperPlugin.setLabel(label);
-			} else {
-				TimekeeperPlugin.setLabel(u);
-			}
+		// the saved labels are shared, so these are modified while holding the lock
+		TimekeeperPlugin.runInTransaction(em -> {
+			Map<String, ActivityLabel> savedLabels = TimekeeperPlugin.getLabels()
+					.collect(Collectors.toMap(l -> l.getId(), l -> l));
+
+			savedLabels.forEach((t, u) -> {
+				if (!updatedLabels.containsKey(t)) {
+					TimekeeperPlugin.removeLabel(u);
+				}
+			});
+
+			updatedLabels.forEach((t, u) -> {
+				ActivityLabel label = savedLabels.get(t);
+				if (label != null) {
+					label.setColor(u.getColor());
+					label.setName(u.getName());
+					TimekeeperPlugin.setLabel(label);
+				} else {
+					TimekeeperPlugin.setLabel(u);
+				}
+			});
 		});
 
 	}
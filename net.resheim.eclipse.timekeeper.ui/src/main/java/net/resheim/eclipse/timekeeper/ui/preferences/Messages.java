@@ -21,14 +21,22 @@ public class Messages extends NLS {
 	public static String DatabasePreferences_RestartRequired;
 	public static String DatabasePreferences_ChangeMessage;
 	public static String DatabasePreferences_Import;
-	public static String DatabasePreferences_ChooseImportFolder;
+	public static String DatabasePreferences_ChooseImportFile;
 	public static String DatabasePreferences_DataImported;
 	public static String DatabasePreferences_CreatedMessage;
 	public static String DatabasePreferences_ImportError;
 	public static String DatabasePreferences_ExportImportTitle;
 	public static String DatabasePreferences_Export;
-	public static String DatabasePreferences_ChooseExportFolder;
+	public static String DatabasePreferences_ChooseExportFile;
+	public static String DatabasePreferences_ExportChanges;
+	public static String DatabasePreferences_ChooseChangesFolder;
+	public static String DatabasePreferences_ChangesMessage;
 	public static String DatabasePreferences_DataExported;
+	public static String DatabasePreferences_MaintenanceTitle;
+	public static String DatabasePreferences_RebuildTotals;
+	public static String DatabasePreferences_TotalsRebuilt;
+	public static String DatabasePreferences_RebuildMessage;
+	public static String DatabasePreferences_RebuildError;
 	static {
 		// initialize resource bundle
 		NLS.initializeMessages(BUNDLE_NAME, Messages.class);
@@ -1,5 +1,7 @@
 package net.resheim.eclipse.timekeeper.ui.preferences;
 
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.preferences.AbstractPreferenceInitializer;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.resource.StringConverter;
@@ -20,15 +22,20 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 		store.setDefault(PreferenceConstants.MINUTES_IDLE, 5);
 		store.setDefault(PreferenceConstants.MINUTES_AWAY, 30);
 		store.setDefault(PreferenceConstants.DEACTIVATE_WHEN_AWAY, true);
-		while (!TimekeeperPlugin.getDefault().isReady()) {
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+		// the database may not be ready yet, so the labels are added when it is
+		TimekeeperPlugin.getDefault().whenReady()
+				.thenRun(PreferenceInitializer::addDefaultLabels)
+				.exceptionally(e -> {
+					TimekeeperUiPlugin.getDefault().getLog()
+							.log(new Status(IStatus.ERROR, TimekeeperUiPlugin.PLUGIN_ID, "Could not add default activity labels", e));
+					return null;
+				});
+	}
 
-		// Add default activity labels if the database is empty
+	/**
+	 * Adds default activity labels if the database is empty.
+	 */
+	private static void addDefaultLabels() {
 		if (TimekeeperPlugin.getLabels().count() == 0) {
 			TimekeeperPlugin.setLabel(new ActivityLabel("Production issue", StringConverter.asString(new RGB(244, 103, 88))));
 			TimekeeperPlugin.setLabel(new ActivityLabel("Testing", StringConverter.asString(new RGB(245, 166, 81))));
@@ -38,7 +45,6 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 			TimekeeperPlugin.setLabel(new ActivityLabel("Communication", StringConverter.asString(new RGB(66, 136, 243))));
 			TimekeeperPlugin.setLabel(new ActivityLabel("Meeting", StringConverter.asString(new RGB(156, 156, 160))));
 		}
-
 	}
 
 }
@@ -16,6 +16,7 @@ import org.eclipse.jface.viewers.EditingSupport;
 import org.eclipse.jface.viewers.TextCellEditor;
 import org.eclipse.jface.viewers.TreeViewer;
 
+import net.resheim.eclipse.timekeeper.db.TimekeeperPlugin;
 import net.resheim.eclipse.timekeeper.db.model.Activity;
 
 /**
@@ -53,7 +54,13 @@ class ActivitySummaryEditingSupport extends EditingSupport {
 	@Override
 	protected void setValue(Object element, Object value) {
 		if (element instanceof Activity) {
-			((Activity) element).setSummary(value.toString());
+			// the activity may have been detached since the view was populated
+			TimekeeperPlugin.runInTransaction(em -> {
+				Activity activity = TimekeeperPlugin.getManaged((Activity) element);
+				if (activity != null) {
+					activity.setSummary(value.toString());
+				}
+			});
 			getViewer().update(element, null);
 		}
 	}
@@ -25,6 +25,7 @@ import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.themes.IThemeManager;
 
 import net.resheim.eclipse.timekeeper.db.TimekeeperPlugin;
+import net.resheim.eclipse.timekeeper.db.WeekModel;
 import net.resheim.eclipse.timekeeper.db.model.Activity;
 import net.resheim.eclipse.timekeeper.db.model.Project;
 import net.resheim.eclipse.timekeeper.db.model.Task;
@@ -59,23 +60,22 @@ abstract class TimeColumnLabelProvider extends ColumnLabelProvider {
 			}
 		}
 		if (element instanceof Activity) {
-			Task trackedTask = ((Activity) element).getTrackedTask();
-			TimekeeperPlugin.getDefault();
+			Task trackedTask = TimekeeperPlugin.getTrackedTask((Activity) element);
 			ITask task = trackedTask.getMylynTask();
 			if (task != null && task.isActive()) {
-				if (trackedTask.getCurrentActivity().equals(Optional.of(element))) {
+				if (TimekeeperPlugin.getCurrentActivity(trackedTask).equals(Optional.of(element))) {
 					return JFaceResources.getFontRegistry().getBold(JFaceResources.DIALOG_FONT);
 				}
 			}
 		}
 		if (element instanceof Project) {
-			Project p = (Project) element;
-			if (contentProvider
-					.getFiltered()
-					.stream()
-					.filter(t -> p.equals(t.getProject()))
-					.anyMatch(t -> t.getMylynTask().isActive())) {
-				return JFaceResources.getFontRegistry().getBold(JFaceResources.DIALOG_FONT);
+			WeekModel model = contentProvider.getModel();
+			if (model != null) {
+				for (Task t : model.getTasks((Project) element)) {
+					if (t.getMylynTask() != null && t.getMylynTask().isActive()) {
+						return JFaceResources.getFontRegistry().getBold(JFaceResources.DIALOG_FONT);
+					}
+				}
 			}
 
 		}
@@ -22,7 +22,6 @@ import org.eclipse.jface.viewers.CellEditor;
 import org.eclipse.jface.viewers.EditingSupport;
 import org.eclipse.jface.viewers.TextCellEditor;
 import org.eclipse.jface.viewers.TreeViewer;
-import org.eclipse.mylyn.tasks.core.ITask;
 
 import net.resheim.eclipse.timekeeper.db.TimekeeperPlugin;
 import net.resheim.eclipse.timekeeper.db.model.Activity;
@@ -45,12 +44,15 @@ class TimeEditingSupport extends EditingSupport {
 	private static final String TIME_RANGE = "([0-9]|0[0-9]|1[0-9]|2[0-3]):([0-5][0-9])\\-([0-9]|0[0-9]|1[0-9]|2[0-3]):([0-5][0-9])";
 	private static final String TIME_POINT = "([0-9]|0[0-9]|1[0-9]|2[0-3]):([0-5][0-9])";
 
+	private final WeekViewContentProvider contentProvider;
+
 	private final int weekday;
 	private int width_i;
 	private int width_0;
 
 	public TimeEditingSupport(TreeViewer viewer, WeekViewContentProvider contentProvider, int weekday) {
 		super(viewer);
+		this.contentProvider = contentProvider;
 		this.weekday = weekday;
 	}
 
@@ -108,39 +110,63 @@ class TimeEditingSupport extends EditingSupport {
 	protected void setValue(Object element, Object value) {
 		if (element instanceof Activity) {
 			if (value instanceof String) {
-				Task trackedTask = ((Activity) element).getTrackedTask();
-				ITask task = trackedTask.getMylynTask();
-				LocalDateTime start = ((Activity) element).getStart();
-				// has time point or range been specified...
-				Matcher range = Pattern.compile(TIME_RANGE).matcher((String) value);
-				Matcher point = Pattern.compile(TIME_POINT).matcher((String) value);
-
-				if (range.matches()) {
-					start = start.withHour(Integer.parseInt(range.group(1)));
-					start = start.withMinute(Integer.parseInt(range.group(2)));
-					start = start.withSecond(0);
-					start = start.withNano(0);
-					((Activity) element).setStart(start);
-
-					// only set the end time if the task is not active,
-					// otherwise it will be reset
-					if (!trackedTask.getCurrentActivity().isPresent()
-							|| !trackedTask.getCurrentActivity().equals(Optional.of(element))) {
-						setEndTime(element, start, range);
+				// the activity is shared with the thread storing changes, and
+				// may have been detached since the view was populated
+				Task trackedTask = TimekeeperPlugin.inTransaction(em -> {
+					Activity activity = TimekeeperPlugin.getManaged((Activity) element);
+					if (activity == null) {
+						return null;
+					}
+					Task task = activity.getTrackedTask();
+					if (edit(activity, task, (String) value)) {
+						TimekeeperPlugin.getDefault().updateDailyTotals();
+						return task;
 					}
-					update(element, task);
-
-				} else if (point.matches()) {
-					Assert.isNotNull(start);
-					start = start.withHour(Integer.parseInt(point.group(1)));
-					start = start.withMinute(Integer.parseInt(point.group(2)));
-					((Activity) element).setStart(start);
-					update(element, task);
+					return null;
+				});
+				if (trackedTask != null) {
+					update(element, trackedTask);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Applies the value to the activity, which must be done while holding the
+	 * lock of the entity manager.
+	 *
+	 * @return <code>true</code> if the activity was changed
+	 */
+	private boolean edit(Activity activity, Task trackedTask, String value) {
+		LocalDateTime start = activity.getStart();
+		// has time point or range been specified...
+		Matcher range = Pattern.compile(TIME_RANGE).matcher(value);
+		Matcher point = Pattern.compile(TIME_POINT).matcher(value);
+
+		if (range.matches()) {
+			start = start.withHour(Integer.parseInt(range.group(1)));
+			start = start.withMinute(Integer.parseInt(range.group(2)));
+			start = start.withSecond(0);
+			start = start.withNano(0);
+			activity.setStart(start);
+
+			// only set the end time if the task is not active,
+			// otherwise it will be reset
+			if (!trackedTask.getCurrentActivity().equals(Optional.of(activity))) {
+				setEndTime(activity, start, range);
+			}
+			return true;
+
+		} else if (point.matches()) {
+			Assert.isNotNull(start);
+			start = start.withHour(Integer.parseInt(point.group(1)));
+			start = start.withMinute(Integer.parseInt(point.group(2)));
+			activity.setStart(start);
+			return true;
+		}
+		return false;
+	}
+
 	private void setEndTime(Object element, LocalDateTime start, Matcher range) {
 		LocalDateTime end = ((Activity) element).getEnd();
 		if (end == null) {
@@ -156,12 +182,13 @@ class TimeEditingSupport extends EditingSupport {
 		((Activity) element).setEnd(end);
 	}
 
-	private void update(Object element, ITask task) {
+	private void update(Object element, Task task) {
 		Assert.isNotNull(element);
 		Assert.isNotNull(task);
+		contentProvider.update(task);
 		getViewer().update(element, null);
 		getViewer().update(task, null);
-		getViewer().update(TimekeeperPlugin.getMylynProjectName(task), null);
+		getViewer().update(task.getProject(), null);
 		getViewer().update(WeekViewContentProvider.WEEKLY_SUMMARY, null);
 		// restore column sizes
 		((TreeViewer) getViewer()).getTree().getColumn(weekday + 1).setWidth(width_i);
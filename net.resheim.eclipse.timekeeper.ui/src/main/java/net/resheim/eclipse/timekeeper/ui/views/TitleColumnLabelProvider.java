@@ -26,6 +26,8 @@ import org.eclipse.mylyn.tasks.ui.AbstractRepositoryConnectorUi;
 import org.eclipse.mylyn.tasks.ui.TasksUiImages;
 import org.eclipse.swt.graphics.Image;
 
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot.ProjectEntry;
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot.TaskEntry;
 import net.resheim.eclipse.timekeeper.db.model.Activity;
 import net.resheim.eclipse.timekeeper.db.model.Project;
 import net.resheim.eclipse.timekeeper.db.model.Task;
@@ -79,6 +81,11 @@ class TitleColumnLabelProvider extends TimeColumnLabelProvider {
 			compositeDescriptor.icon = CommonImages.GROUPING;
 		}
 
+		if (object instanceof TaskEntry) {
+			compositeDescriptor.icon = TasksUiImages.TASK;
+			return compositeDescriptor;
+		}
+
 		if (object instanceof Task) {
 			ITask task = ((Task) object).getMylynTask();
 			if (task == null) {
@@ -132,6 +139,19 @@ class TitleColumnLabelProvider extends TimeColumnLabelProvider {
 		if (element instanceof Activity) {
 			return ((Activity) element).getSummary();
 		}
+		if (element instanceof ProjectEntry) {
+			return ((ProjectEntry) element).getName();
+		}
+		if (element instanceof TaskEntry) {
+			TaskEntry task = (TaskEntry) element;
+			StringBuilder sb = new StringBuilder();
+			if (task.getTaskId() != null) {
+				sb.append(task.getTaskId());
+				sb.append(": ");
+			}
+			sb.append(task.getSummary());
+			return sb.toString();
+		}
 		if (element instanceof WeeklySummary) {
 			return "Daily total";
 		}
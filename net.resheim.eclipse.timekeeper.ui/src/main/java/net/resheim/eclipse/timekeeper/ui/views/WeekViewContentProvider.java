@@ -11,120 +11,493 @@
 
 package net.resheim.eclipse.timekeeper.ui.views;
 
-import java.time.Duration;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
-import org.eclipse.jface.viewers.AbstractTreeViewer;
-import org.eclipse.jface.viewers.ITreeContentProvider;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import org.eclipse.jface.viewers.ILazyTreeContentProvider;
+import org.eclipse.jface.viewers.ITreeViewerListener;
+import org.eclipse.jface.viewers.TreeExpansionEvent;
 import org.eclipse.jface.viewers.TreeViewer;
 import org.eclipse.jface.viewers.Viewer;
 import org.eclipse.mylyn.internal.tasks.ui.TasksUiPlugin;
 import org.eclipse.mylyn.tasks.core.ITask;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.TreeItem;
+import org.eclipse.swt.widgets.Widget;
 
 import net.resheim.eclipse.timekeeper.db.DatabaseChangeListener;
 import net.resheim.eclipse.timekeeper.db.TimekeeperPlugin;
+import net.resheim.eclipse.timekeeper.db.WeekModel;
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot;
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot.ProjectEntry;
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot.TaskEntry;
 import net.resheim.eclipse.timekeeper.db.model.Activity;
+import net.resheim.eclipse.timekeeper.db.model.GlobalTaskId;
 import net.resheim.eclipse.timekeeper.db.model.Project;
 import net.resheim.eclipse.timekeeper.db.model.Task;
 
+/**
+ * Provides the content of the virtual tree in the work week view. Elements are
+ * only obtained for the rows that are shown, and are looked up in the model of
+ * the week. Elements with children are expanded when shown, unless they have
+ * been collapsed by the user, which is remembered by task identifier and
+ * project name when the content is refreshed or another week is shown, and
+ * forgotten when the input of the viewer changes.
+ * <p>
+ * Weeks are loaded from the database by a background job, which is cancelled
+ * if another week is shown before it is done. Recently shown weeks are kept,
+ * and snapshots of the weeks next to the one shown are made in advance, so
+ * that these can be shown immediately. These are still loaded again in case
+ * they have changed.
+ * </p>
+ */
 @SuppressWarnings("restriction")
-public abstract class WeekViewContentProvider implements ITreeContentProvider, DatabaseChangeListener {
+public abstract class WeekViewContentProvider
+		implements ILazyTreeContentProvider, ITreeViewerListener, DatabaseChangeListener {
 
 	public static final WeeklySummary WEEKLY_SUMMARY = new WeeklySummary();
 
+	/** Number of weeks kept, the one shown, those next to it and a few more */
+	private static final int CACHE_SIZE = 5;
+
+	/**
+	 * Loads the model of a week. The database is queried using an entity
+	 * manager of its own, and the tasks are then obtained from the entity
+	 * manager shared with the user interface while briefly holding its lock.
+	 * Weeks that are prefetched are only kept as snapshots, so that these do
+	 * not add to the entities of the shared entity manager. The job is not
+	 * scheduled until the database is ready.
+	 */
+	private final class LoadJob extends Job {
+
+		private final LocalDate week;
+
+		private final boolean prefetch;
+
+		/** The generation of the cache the model is loaded for */
+		private final int generation;
+
+		private final Runnable whenLoaded;
+
+		private LoadJob(LocalDate week, boolean prefetch, Runnable whenLoaded) {
+			super(prefetch ? "Prefetching Timekeeper week" : "Loading Timekeeper week");
+			this.week = week;
+			this.prefetch = prefetch;
+			this.whenLoaded = whenLoaded;
+			this.generation = getGeneration();
+			setSystem(true);
+			setPriority(prefetch ? Job.DECORATE : Job.SHORT);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			if (monitor.isCanceled()) {
+				return Status.CANCEL_STATUS;
+			}
+			if (prefetch) {
+				putPrefetched(TimekeeperPlugin.queryTasks(week,
+						tasks -> WeekSnapshot.of(week, tasks, LocalDateTime.now())), generation);
+				return Status.OK_STATUS;
+			}
+			List<Task> found = TimekeeperPlugin.queryTasks(week, tasks -> tasks);
+			if (monitor.isCanceled()) {
+				return Status.CANCEL_STATUS;
+			}
+			List<Task> tasks = TimekeeperPlugin.getManagedTasks(found);
+			if (monitor.isCanceled()) {
+				return Status.CANCEL_STATUS;
+			}
+			TimekeeperPlugin.linkWithMylynTasks(tasks);
+			if (monitor.isCanceled()) {
+				return Status.CANCEL_STATUS;
+			}
+			// the activities of the tasks are loaded lazily
+			WeekModel m = TimekeeperPlugin.withEntityManager(em -> WeekModel.of(week, tasks));
+			putCached(m, generation);
+			display.asyncExec(() -> {
+				// only show the week if it is still wanted
+				if (loadJob == this && !viewer.getControl().isDisposed()) {
+					loadJob = null;
+					setModel(m);
+					if (whenLoaded != null) {
+						whenLoaded.run();
+					}
+					modelChanged();
+					prefetch(week);
+				}
+			});
+			return Status.OK_STATUS;
+		}
+
+		@Override
+		public boolean belongsTo(Object family) {
+			return family == WeekViewContentProvider.this;
+		}
+	}
+
 	private LocalDate firstDayOfWeek;
 
-	protected Set<Task> filtered = Collections.emptySet();
+	/** The tasks of the week being shown, loaded by {@link #filter()} */
+	private volatile WeekModel model;
+
+	/** Recently shown weeks, in the order of use */
+	private final Map<LocalDate, WeekModel> cache = new LinkedHashMap<LocalDate, WeekModel>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<LocalDate, WeekModel> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** Snapshots of the weeks next to those shown, in the order of use */
+	private final Map<LocalDate, WeekSnapshot> prefetched = new LinkedHashMap<LocalDate, WeekSnapshot>(16, 0.75f,
+			true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<LocalDate, WeekSnapshot> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** Incremented when the cache is cleared, so that stale models are not kept */
+	private int generation;
+
+	/** Loads the week to be shown, only set from the display thread */
+	private volatile LoadJob loadJob;
+
+	private TreeViewer viewer;
+
+	private Display display;
 
-	private Viewer viewer;
+	private Object input;
+
+	/** Keys of the elements collapsed by the user, see {@link #key(Object)} */
+	private final Set<Object> collapsed = new HashSet<>();
+
+	/** The top level elements, obtained again when the content changes */
+	private Object[] elements;
+
+	/** The model or snapshot the top level elements were obtained from */
+	private Object elementsSource;
+
+	/** Shown until the tasks can be obtained from the database */
+	private volatile WeekSnapshot snapshot;
 
 	public Set<Task> getFiltered() {
-		return filtered;
+		WeekModel m = getModel();
+		return m == null ? Collections.emptySet() : m.getTasks();
+	}
+
+	/**
+	 * Returns the model of the week being shown.
+	 *
+	 * @return the model or <code>null</code> if not yet loaded
+	 */
+	public WeekModel getModel() {
+		WeekModel m = model;
+		if (m != null && m.getFirstDayOfWeek().equals(firstDayOfWeek)) {
+			return m;
+		}
+		return null;
+	}
+
+	/**
+	 * Obtains the activities and totals of the given task again, after it or
+	 * one of its activities has been modified. Other weeks are loaded again
+	 * when shown, as the task may be part of these too.
+	 *
+	 * @param task the modified task
+	 */
+	public void update(Task task) {
+		WeekModel current = model;
+		if (current != null) {
+			// the activities of the task are loaded lazily
+			WeekModel m = TimekeeperPlugin.withEntityManager(em -> current.with(task));
+			model = m;
+			clearCache();
+			putCached(m, getGeneration());
+		}
+	}
+
+	private void setModel(WeekModel m) {
+		model = m;
+		// the live data replaces the snapshot
+		snapshot = null;
+	}
+
+	/**
+	 * Called on the display thread when the week being shown has been loaded.
+	 */
+	protected void modelChanged() {
+		viewer.refresh();
+	}
+
+	private int getGeneration() {
+		synchronized (cache) {
+			return generation;
+		}
+	}
+
+	private WeekModel getCached(LocalDate week) {
+		synchronized (cache) {
+			return cache.get(week);
+		}
+	}
+
+	private void putCached(WeekModel m, int expected) {
+		synchronized (cache) {
+			if (generation == expected) {
+				cache.put(m.getFirstDayOfWeek(), m);
+			}
+		}
+	}
+
+	private WeekSnapshot getPrefetched(LocalDate week) {
+		synchronized (cache) {
+			return prefetched.get(week);
+		}
+	}
+
+	private void putPrefetched(WeekSnapshot s, int expected) {
+		synchronized (cache) {
+			if (generation == expected) {
+				prefetched.put(s.getFirstDayOfWeek(), s);
+			}
+		}
+	}
+
+	private void clearCache() {
+		synchronized (cache) {
+			generation++;
+			cache.clear();
+			prefetched.clear();
+		}
+	}
+
+	/**
+	 * Returns the snapshot of the week being shown, if the data is still
+	 * obtained from it rather than from the database.
+	 *
+	 * @return the snapshot or <code>null</code>
+	 */
+	public WeekSnapshot getSnapshot() {
+		WeekSnapshot s = snapshot;
+		if (s != null && s.getFirstDayOfWeek().equals(firstDayOfWeek)) {
+			return s;
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the snapshot to show until the database is ready.
+	 *
+	 * @param snapshot the snapshot of the current week
+	 */
+	public void setSnapshot(WeekSnapshot snapshot) {
+		this.snapshot = snapshot;
 	}
 
 	@Override
 	public void dispose() {
 		TimekeeperPlugin.getDefault().removeListener(this);
+		Job.getJobManager().cancel(this);
 	}
 
 	@Override
 	public void inputChanged(Viewer v, Object oldInput, Object newInput) {
-		this.viewer = v;
+		this.viewer = (TreeViewer) v;
+		this.display = v.getControl().getDisplay();
+		this.input = newInput;
+		if (oldInput != newInput) {
+			collapsed.clear();
+		}
+	}
+
+	@Override
+	public void updateElement(Object parent, int index) {
+		Object[] children = parent == input ? getElements(parent) : getChildren(parent);
+		if (index >= children.length) {
+			return;
+		}
+		Object element = children[index];
+		viewer.replace(parent, index, element);
+		int count = getChildren(element).length;
+		viewer.setChildCount(element, count);
+		// expand the item directly as the viewer would materialize all children
+		if (count > 0 && !collapsed.contains(key(element))) {
+			Widget item = viewer.testFindItem(element);
+			if (item instanceof TreeItem) {
+				((TreeItem) item).setExpanded(true);
+			}
+		}
+	}
+
+	@Override
+	public void updateChildCount(Object element, int currentChildCount) {
+		int count = (element == input ? getElements(element) : getChildren(element)).length;
+		if (count != currentChildCount) {
+			viewer.setChildCount(element, count);
+		}
 	}
 
 	@Override
+	public void treeCollapsed(TreeExpansionEvent event) {
+		collapsed.add(key(event.getElement()));
+	}
+
+	@Override
+	public void treeExpanded(TreeExpansionEvent event) {
+		collapsed.remove(key(event.getElement()));
+	}
+
+	/**
+	 * Returns what identifies the element across loads of the week, as the
+	 * tasks and projects are other instances each time. Projects and tasks of
+	 * the snapshot have the same key as those they were obtained from.
+	 *
+	 * @param element the element of the tree
+	 * @return the key of the element
+	 */
+	private static Object key(Object element) {
+		if (element instanceof Project) {
+			return ((Project) element).getName();
+		}
+		if (element instanceof ProjectEntry) {
+			return ((ProjectEntry) element).getName();
+		}
+		if (element instanceof Task) {
+			return ((Task) element).getId();
+		}
+		if (element instanceof TaskEntry) {
+			TaskEntry entry = (TaskEntry) element;
+			return new GlobalTaskId(entry.getRepositoryUrl(), entry.getTaskId());
+		}
+		return element;
+	}
+
+	/**
+	 * @param parentElement the element to obtain the children of
+	 * @return the children, which must not be modified
+	 */
 	public Object[] getChildren(Object parentElement) {
+		WeekModel m = model;
 		if (parentElement instanceof Project) {
-			Project p = (Project) parentElement;
-			return filtered
-					.stream()
-					.filter(t -> p.equals(t.getProject()))
-					.toArray(size -> new Task[size]);
+			return m == null ? new Object[0] : m.getTasks((Project) parentElement);
 		}
 		if (parentElement instanceof Task) {
-			return ((Task) parentElement).getActivities()
-					.stream()
-					.filter(this::hasData)
-					.toArray();
+			return m == null ? new Object[0] : m.getActivities((Task) parentElement);
+		}
+		if (parentElement instanceof ProjectEntry) {
+			return ((ProjectEntry) parentElement).getTasks().toArray();
 		}
 		return new Object[0];
 	}
 
+	/**
+	 * @param parent the input of the viewer
+	 * @return the top level elements, which must not be modified
+	 */
 	public Object[] getElements(Object parent) {
-		Object[] projects = filtered
-				.stream()
-				.map(Task::getProject)
-				.filter(distinctByKey(Project::getName))
-				.toArray();
-		if (projects.length == 0) {
-			return new Object[0];
+		WeekSnapshot s = getSnapshot();
+		Object source = s != null ? s : getModel();
+		if (elements == null || source != elementsSource) {
+			elements = createElements(s);
+			elementsSource = source;
 		}
-		Object[] elements = new Object[projects.length + 1];
-		System.arraycopy(projects, 0, elements, 0, projects.length);
-		elements[projects.length] = WEEKLY_SUMMARY;
 		return elements;
 	}
 
-	private static <T> Predicate<T> distinctByKey(Function<? super T, Object> keyExtractor) {
-		Map<Object, Boolean> map = new ConcurrentHashMap<>();
-		return t -> map.putIfAbsent(keyExtractor.apply(t), Boolean.TRUE) == null;
+	private Object[] createElements(WeekSnapshot s) {
+		if (s != null) {
+			if (s.getProjects().isEmpty()) {
+				return new Object[0];
+			}
+			Object[] e = s.getProjects().toArray(new Object[s.getProjects().size() + 1]);
+			e[e.length - 1] = WEEKLY_SUMMARY;
+			return e;
+		}
+		WeekModel m = getModel();
+		Project[] projects = m == null ? new Project[0] : m.getProjects();
+		if (projects.length == 0) {
+			return new Object[0];
+		}
+		Object[] e = new Object[projects.length + 1];
+		System.arraycopy(projects, 0, e, 0, projects.length);
+		e[projects.length] = WEEKLY_SUMMARY;
+		return e;
 	}
 
 	@Override
 	public Object getParent(Object element) {
-		if (element instanceof ITask) {
-			return TimekeeperPlugin.getMylynProjectName((ITask) element);
+		if (element instanceof Activity) {
+			return TimekeeperPlugin.getTrackedTask((Activity) element);
 		}
-		return null;
-	}
-
-	@Override
-	public boolean hasChildren(Object element) {
 		if (element instanceof Task) {
-			return true;
+			WeekModel m = getModel();
+			return m == null ? null : m.getProject((Task) element);
 		}
-		if (element instanceof Project) {
-			return true;
+		if (element instanceof TaskEntry) {
+			return ((TaskEntry) element).getProject();
+		}
+		return input;
+	}
+
+	/**
+	 * Loads the week starting at {@link #getFirstDayOfWeek()} in the
+	 * background, cancelling any week still being loaded. If the week has been
+	 * loaded before it is shown immediately, otherwise nothing is shown until
+	 * it has been loaded. {@link #modelChanged()} is called when done.
+	 */
+	protected void filter() {
+		LocalDate week = getFirstDayOfWeek();
+		if (getModel() == null) {
+			WeekModel cached = getCached(week);
+			if (cached != null) {
+				setModel(cached);
+			} else if (getSnapshot() == null) {
+				// shown until the tasks have been loaded
+				WeekSnapshot s = getPrefetched(week);
+				if (s != null) {
+					setSnapshot(s);
+				}
+			}
 		}
-		return false;
+		load(week, null);
 	}
 
-	private boolean hasData(Activity activity) {
-		LocalDate endDate = firstDayOfWeek.plusDays(7);
-		return activity.getDuration(firstDayOfWeek, endDate) != Duration.ZERO;
+	private void load(LocalDate week, Runnable whenLoaded) {
+		Job.getJobManager().cancel(this);
+		LoadJob job = new LoadJob(week, false, whenLoaded);
+		loadJob = job;
+		// until the database is ready the snapshot is shown, if any
+		TimekeeperPlugin.getDefault().whenReady().thenRun(() -> {
+			if (loadJob == job) {
+				job.schedule();
+			}
+		});
 	}
 
-	protected void filter() {
-		filtered = TimekeeperPlugin
-				.getTasks(getFirstDayOfWeek())
-				.collect(Collectors.toSet());
+	private void prefetch(LocalDate week) {
+		for (LocalDate adjacent : new LocalDate[] { week.minusWeeks(1), week.plusWeeks(1) }) {
+			if (getCached(adjacent) == null && getPrefetched(adjacent) == null) {
+				new LoadJob(adjacent, true, null).schedule();
+			}
+		}
 	}
 
 	public LocalDate getFirstDayOfWeek() {
@@ -141,20 +514,18 @@ public abstract class WeekViewContentProvider implements ITreeContentProvider, D
 
 	@Override
 	public void databaseStateChanged() {
-		filter();
-		if (viewer != null) {
-			viewer.getControl().getDisplay().asyncExec(new Runnable() {
-				@Override
-				public void run() {
+		clearCache();
+		if (display != null) {
+			display.asyncExec(() -> {
+				if (viewer.getControl().isDisposed()) {
+					return;
+				}
+				load(getFirstDayOfWeek(), () -> {
 					ITask activeTask = TasksUiPlugin.getTaskActivityManager().getActiveTask();
 					if (activeTask != null) {
-						filtered.add(TimekeeperPlugin.getDefault().getTask(activeTask));
-					}
-					viewer.refresh();
-					if (viewer instanceof TreeViewer) {
-						((AbstractTreeViewer) viewer).expandAll();
+						TimekeeperPlugin.getDefault().getTaskWhenReady(activeTask).thenAccept(this::update);
 					}
-				}
+				});
 			});
 		}
 	}
@@ -12,12 +12,15 @@
 
 package net.resheim.eclipse.timekeeper.ui.views;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.text.MessageFormat;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.WeekFields;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -25,6 +28,8 @@ import java.util.Optional;
 import java.util.Set;
 
 import org.apache.commons.lang.time.DurationFormatUtils;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.IMenuListener;
 import org.eclipse.jface.action.IMenuManager;
@@ -33,17 +38,16 @@ import org.eclipse.jface.action.MenuManager;
 import org.eclipse.jface.action.Separator;
 import org.eclipse.jface.layout.GridDataFactory;
 import org.eclipse.jface.layout.GridLayoutFactory;
-import org.eclipse.jface.viewers.AbstractTreeViewer;
 import org.eclipse.jface.viewers.ColumnViewerToolTipSupport;
 import org.eclipse.jface.viewers.DoubleClickEvent;
 import org.eclipse.jface.viewers.IDoubleClickListener;
+import org.eclipse.jface.viewers.IElementComparer;
 import org.eclipse.jface.viewers.ISelection;
 import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.jface.viewers.TreeColumnViewerLabelProvider;
 import org.eclipse.jface.viewers.TreeViewer;
 import org.eclipse.jface.viewers.TreeViewerColumn;
 import org.eclipse.jface.viewers.Viewer;
-import org.eclipse.jface.viewers.ViewerComparator;
 import org.eclipse.jface.window.ToolTip;
 import org.eclipse.mylyn.internal.tasks.core.AbstractTask;
 import org.eclipse.mylyn.internal.tasks.core.ITaskListChangeListener;
@@ -72,13 +76,20 @@ import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.Tree;
 import org.eclipse.swt.widgets.TreeColumn;
 import org.eclipse.swt.widgets.TreeItem;
+import org.eclipse.swt.widgets.Widget;
 import org.eclipse.ui.IActionBars;
+import org.eclipse.ui.IPartListener2;
 import org.eclipse.ui.ISharedImages;
+import org.eclipse.ui.IWorkbenchPartReference;
 import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.contexts.IContextService;
 import org.eclipse.ui.part.ViewPart;
 
 import net.resheim.eclipse.timekeeper.db.TimekeeperPlugin;
+import net.resheim.eclipse.timekeeper.db.WeekModel;
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot;
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot.ProjectEntry;
+import net.resheim.eclipse.timekeeper.db.WeekSnapshot.TaskEntry;
 import net.resheim.eclipse.timekeeper.db.model.Activity;
 import net.resheim.eclipse.timekeeper.db.model.ActivityLabel;
 import net.resheim.eclipse.timekeeper.db.model.Project;
@@ -93,41 +104,50 @@ public class WorkWeekView extends ViewPart {
 
 	private static final int TIME_COLUMN_WIDTH = 50;
 
+	private static final long SECONDS_PER_DAY = 86_400;
+
 	/** Update the status field every second */
 	private static final int UPDATE_INTERVAL = 1_000;
 
-	private final class ViewerComparatorExtension extends ViewerComparator {
+	/** Milliseconds to collect task list events before updating the view */
+	private static final int COALESCE_DELAY = 250;
 
-		@Override
-		public int compare(Viewer viewer, Object e1, Object e2) {
-			if (e1 instanceof ITask && e2 instanceof ITask) {
-				String s1 = ((ITask) e1).getTaskId();
-				String s2 = ((ITask) e2).getTaskId();
-				try {
-					int i1 = Integer.parseInt(s1);
-					int i2 = Integer.parseInt(s2);
-					return i1 - i2;
-				} catch (NumberFormatException e) {
+	/** Name of the file holding the snapshot of the current week */
+	private static final String SNAPSHOT_FILE = "week.snapshot";
 
-				}
-				return s1.compareTo(s2);
-			}
-			if (e1 instanceof WeeklySummary) {
-				return 1;
-			}
-			if (e1 instanceof Activity && e2 instanceof Activity) {
-				return ((Activity) e1).compareTo((Activity) e2);
-			}
-			return super.compare(viewer, e1, e2);
-		}
+	/**
+	 * Updates the rows of tracked tasks that have been changed or (de)activated
+	 * in Mylyn. The events are collected for a short while before the view is
+	 * updated, as a synchronization with a task repository results in bursts of
+	 * events. Only the rows of tasks shown are updated, so the database is not
+	 * queried. Tasks that are activated are added to the week when the activity
+	 * has been stored, as the database then notifies the content provider.
+	 */
+	private final class TaskListener implements ITaskActivationListener, ITaskListChangeListener {
 
-	}
+		/** Mylyn tasks changed since the view was last updated */
+		private final Set<ITask> changed = new HashSet<>();
 
-	private final class TaskListener implements ITaskActivationListener, ITaskListChangeListener {
+		/** Whether the entire task list has changed */
+		private boolean reload;
+
+		/** Whether an update of the view has been scheduled */
+		private boolean scheduled;
 
 		@Override
-		public void containersChanged(Set<TaskContainerDelta> arg0) {
-			updateAll();
+		public void containersChanged(Set<TaskContainerDelta> deltas) {
+			synchronized (changed) {
+				for (TaskContainerDelta delta : deltas) {
+					if (delta.getKind() == TaskContainerDelta.Kind.ROOT) {
+						reload = true;
+					} else if (delta.getElement() instanceof ITask && !delta.isTransient()) {
+						changed.add((ITask) delta.getElement());
+					}
+				}
+				if (reload || !changed.isEmpty()) {
+					schedule();
+				}
+			}
 		}
 
 		@Override
@@ -142,40 +162,108 @@ public class WorkWeekView extends ViewPart {
 
 		@Override
 		public void taskActivated(ITask task) {
-			updateAll();
+			synchronized (changed) {
+				changed.add(task);
+				schedule();
+			}
 		}
 
 		@Override
 		public void taskDeactivated(ITask task) {
-			updateAll();
+			synchronized (changed) {
+				changed.add(task);
+				schedule();
+			}
 		}
 
-		private void updateAll() {
-			getSite().getShell().getDisplay().asyncExec(new Runnable() {
+		/**
+		 * Schedules an update of the view unless one is already pending. Must
+		 * be called while synchronized on {@link #changed}.
+		 */
+		private void schedule() {
+			if (!scheduled) {
+				scheduled = true;
+				Display display = getSite().getShell().getDisplay();
+				display.asyncExec(() -> display.timerExec(COALESCE_DELAY, this::update));
+			}
+		}
 
-				@Override
-				public void run() {
-					if (!viewer.getControl().isDisposed() && !viewer.isCellEditorActive()) {
-						viewer.setInput(getViewSite());
-					}
+		private void update() {
+			if (viewer.getControl().isDisposed()) {
+				return;
+			}
+			// try again later as updating would deactivate the editor
+			if (viewer.isCellEditorActive()) {
+				viewer.getControl().getDisplay().timerExec(COALESCE_DELAY, this::update);
+				return;
+			}
+			Set<ITask> tasks;
+			boolean all;
+			synchronized (changed) {
+				tasks = new HashSet<>(changed);
+				all = reload;
+				changed.clear();
+				reload = false;
+				scheduled = false;
+			}
+			if (all) {
+				viewer.setInput(getViewSite());
+				return;
+			}
+			WeekModel model = contentProvider.getModel();
+			if (model == null) {
+				return;
+			}
+			for (Task task : model.getTasks()) {
+				if (task.getMylynTask() != null && tasks.contains(task.getMylynTask())) {
+					viewer.update(task, null);
+					TimekeeperPlugin.getCurrentActivity(task).ifPresent(activity -> viewer.update(activity, null));
+					viewer.update(model.getProject(task), null);
 				}
-			});
+			}
 		}
 
 	}
 
+	/**
+	 * Starts updating the status field and the time spent on the active task
+	 * every second while the view is visible. The updates are paused while the
+	 * view is hidden, for instance by another view in the same stack, or
+	 * minimized.
+	 */
 	private void installStatusUpdater() {
-		// use Flowable here?
-		final Display display = PlatformUI.getWorkbench().getDisplay();
-		Runnable handler = new Runnable() {
+		final Display display = getSite().getShell().getDisplay();
+		ticker = new Runnable() {
 			public void run() {
-				if (!display.isDisposed() && !PlatformUI.getWorkbench().isClosing() && !statusLabel.isDisposed()) {
+				if (ticking && !display.isDisposed() && !PlatformUI.getWorkbench().isClosing()
+						&& !statusLabel.isDisposed()) {
 					updateStatus();
 					display.timerExec(UPDATE_INTERVAL, this);
 				}
 			}
 		};
-		display.timerExec(UPDATE_INTERVAL, handler);
+		partListener = new IPartListener2() {
+
+			@Override
+			public void partVisible(IWorkbenchPartReference partRef) {
+				if (partRef.getPart(false) == WorkWeekView.this && !ticking) {
+					ticking = true;
+					ticker.run();
+				}
+			}
+
+			@Override
+			public void partHidden(IWorkbenchPartReference partRef) {
+				if (partRef.getPart(false) == WorkWeekView.this) {
+					ticking = false;
+					display.timerExec(-1, ticker);
+				}
+			}
+
+		};
+		getSite().getPage().addPartListener(partListener);
+		ticking = true;
+		display.timerExec(UPDATE_INTERVAL, ticker);
 	}
 
 	/**
@@ -196,30 +284,65 @@ public class WorkWeekView extends ViewPart {
 		ITask activeTask = TasksUi.getTaskActivityManager().getActiveTask();
 		if (activeTask == null) {
 			statusLabel.setText("");
-		} else if (TimekeeperUiPlugin.getDefault().isIdle()) {
-			statusLabel.setText("Idle since " +
-					timeFormat.format(TimekeeperUiPlugin.getDefault().getIdleSince()));
-			// do not refresh with an editor active, that would deactivate the
-			// editor and lose focus
-			if (!viewer.isCellEditorActive()) {
-				viewer.refresh(activeTask);
-				viewer.refresh(contentProvider.getParent(activeTask));
-				viewer.refresh(WeekViewContentProvider.WEEKLY_SUMMARY);
-			}
+			return;
+		}
+		String status = "";
+		if (TimekeeperUiPlugin.getDefault().isIdle()) {
+			status = "Idle since " + timeFormat.format(TimekeeperUiPlugin.getDefault().getIdleSince());
 		} else if (getActiveTime() > 0) {
 			long activeTime = getActiveTime();
 			LocalDateTime activeSince = TimekeeperUiPlugin.getDefault().getActiveSince();
-			statusLabel.setText(MessageFormat.format("Active since {0}, {1} elapsed", timeFormat.format(activeSince),
-					DurationFormatUtils.formatDurationWords(activeTime, true, true)));
-			// do not refresh with an editor active, that would deactivate the
-			// editor and lose focus
-			if (!viewer.isCellEditorActive()) {
-				viewer.refresh(activeTask);
-				viewer.refresh(contentProvider.getParent(activeTask));
-				viewer.refresh(WeekViewContentProvider.WEEKLY_SUMMARY);
-			}
+			status = MessageFormat.format("Active since {0}, {1} elapsed", timeFormat.format(activeSince),
+					DurationFormatUtils.formatDurationWords(activeTime, true, true));
+		}
+		if (!status.equals(statusLabel.getText())) {
+			statusLabel.setText(status);
+		}
+		// do not update with an editor active, that would deactivate the
+		// editor and lose focus
+		if (!viewer.isCellEditorActive()) {
+			updateActiveCells(activeTask);
+		}
+	}
+
+	/**
+	 * Updates the time spent today on the current activity of the active task,
+	 * the task, the project and the weekly summary. Only the cells of today's
+	 * column are updated, and only if the text has changed, so no other labels
+	 * are calculated and nothing is redrawn when the minute has not passed.
+	 *
+	 * @param activeTask the active Mylyn task
+	 */
+	private void updateActiveCells(ITask activeTask) {
+		LocalDate firstDayOfWeek = contentProvider.getFirstDayOfWeek();
+		if (firstDayOfWeek == null) {
+			return;
+		}
+		int weekday = (int) ChronoUnit.DAYS.between(firstDayOfWeek, LocalDate.now());
+		if (weekday < 0 || weekday > 6) {
+			return;
+		}
+		Task task = TimekeeperPlugin.getDefault().getTask(activeTask);
+		if (task == null) {
+			return;
 		}
+		TimekeeperPlugin.getCurrentActivity(task).ifPresent(activity -> updateCell(activity, weekday));
+		updateCell(task, weekday);
+		updateCell(task.getProject(), weekday);
+		updateCell(WeekViewContentProvider.WEEKLY_SUMMARY, weekday);
+	}
 
+	private void updateCell(Object element, int weekday) {
+		if (element == null) {
+			return;
+		}
+		Widget item = viewer.testFindItem(element);
+		if (item instanceof TreeItem && !item.isDisposed()) {
+			String text = timeColumns[weekday].getText(element);
+			if (!text.equals(((TreeItem) item).getText(1 + weekday))) {
+				((TreeItem) item).setText(1 + weekday, text);
+			}
+		}
 	}
 
 	private class ContentProvider extends WeekViewContentProvider {
@@ -231,18 +354,31 @@ public class WorkWeekView extends ViewPart {
 				return;
 			}
 			updateWeekLabel();
-			updateColumHeaders();
 			filter();
+			updateColumHeaders();
 			v.refresh();
 		}
 
+		@Override
+		protected void modelChanged() {
+			if (dateTimeLabel.isDisposed()) {
+				return;
+			}
+			updateColumHeaders();
+			super.modelChanged();
+		}
+
 		private void updateColumHeaders() {
 			TreeColumn[] columns = viewer.getTree().getColumns();
 			String[] headings = TimekeeperUiPlugin.getDefault().getHeadings(getFirstDayOfWeek());
+			long now = Activity.currentEpochSecond();
+			WeekSnapshot snapshot = getSnapshot();
+			WeekModel model = getModel();
 			for (int i = 1; i < columns.length; i++) {
-				LocalDate date = getFirstDayOfWeek().plusDays((long) i - 1);
 				columns[i].setText(headings[i - 1]);
-				columns[i].setToolTipText(getFormattedPeriod(getSum(filtered, date)));
+				long seconds = snapshot != null ? snapshot.getSeconds(i - 1)
+						: model != null ? model.getSeconds(i - 1, now) : 0;
+				columns[i].setToolTipText(getFormattedPeriod(seconds));
 			}
 		}
 
@@ -292,6 +428,17 @@ public class WorkWeekView extends ViewPart {
 
 	private ActivityLabelPainter activityLabelPainter;
 
+	/** Label providers of the time columns, used to update single cells */
+	private final TimeColumnLabelProvider[] timeColumns = new TimeColumnLabelProvider[7];
+
+	/** Updates the status field and the active cells */
+	private Runnable ticker;
+
+	/** Whether the view is visible so that it should be updated */
+	private boolean ticking;
+
+	private IPartListener2 partListener;
+
 	/**
 	 * The constructor.
 	 */
@@ -355,7 +502,8 @@ public class WorkWeekView extends ViewPart {
 		gdStatusLabel.verticalAlignment = SWT.BEGINNING;
 		statusLabel.setLayoutData(gdStatusLabel);
 
-		viewer = new TreeViewer(main, SWT.MULTI | SWT.H_SCROLL | SWT.V_SCROLL | SWT.FULL_SELECTION);
+		// only the rows that are shown are created and have labels calculated
+		viewer = new TreeViewer(main, SWT.MULTI | SWT.H_SCROLL | SWT.V_SCROLL | SWT.FULL_SELECTION | SWT.VIRTUAL);
 
 		// Make the tree view provide selections
 		getSite().setSelectionProvider(viewer);
@@ -372,8 +520,24 @@ public class WorkWeekView extends ViewPart {
 		}
 
 		Tree tree = viewer.getTree();
-		viewer.setComparator(new ViewerComparatorExtension());
-		viewer.setAutoExpandLevel(AbstractTreeViewer.ALL_LEVELS);
+		// the elements are sorted by the week model, as a lazy tree cannot be
+		// sorted by the viewer, and the expanded state is kept by the provider
+		viewer.addTreeListener(contentProvider);
+		// look up the items of the active cells directly rather than searching
+		// the tree, activities are compared by identity as they are mutable
+		viewer.setComparer(new IElementComparer() {
+
+			@Override
+			public boolean equals(Object a, Object b) {
+				return a == b;
+			}
+
+			@Override
+			public int hashCode(Object element) {
+				return System.identityHashCode(element);
+			}
+		});
+		viewer.setUseHashlookup(true);
 		ColumnViewerToolTipSupport.enableFor(viewer, ToolTip.NO_RECREATE);
 		tree.setHeaderVisible(true);
 		tree.setLinesVisible(true);
@@ -386,9 +550,14 @@ public class WorkWeekView extends ViewPart {
 			public void handleEvent(Event event) {
 				TreeItem treeItem = (TreeItem) event.item;
 				int width = tree.getColumn(0).getWidth();
-				if (treeItem.getData() instanceof Activity && event.index == 0) {
+				List<ActivityLabel> labels = null;
+				if (treeItem.getData() instanceof Activity) {
+					labels = TimekeeperPlugin.getLabels((Activity) treeItem.getData());
+				} else if (treeItem.getData() instanceof TaskEntry) {
+					labels = ((TaskEntry) treeItem.getData()).getLabels();
+				}
+				if (labels != null && event.index == 0) {
 					int offset = 0;
-					List<ActivityLabel> labels = ((Activity) treeItem.getData()).getLabels();
 					for (ActivityLabel label : labels) {
 						Image image = activityLabelPainter.getLabelImage(label, 16, true);
 						int x = width - image.getBounds().width;
@@ -433,6 +602,13 @@ public class WorkWeekView extends ViewPart {
 		WeekFields weekFields = WeekFields.of(Locale.getDefault());
 		long day = date.get(weekFields.dayOfWeek());
 		contentProvider.setFirstDayOfWeek(date.minusDays(day - 1));
+		// show the numbers from when the view was last closed until the
+		// database is ready
+		if (!TimekeeperPlugin.getDefault().isReady()) {
+			WeekSnapshot.read(getSnapshotPath())
+					.filter(s -> s.getFirstDayOfWeek().equals(contentProvider.getFirstDayOfWeek()))
+					.ifPresent(contentProvider::setSnapshot);
+		}
 
 		makeActions();
 		hookContextMenu();
@@ -445,6 +621,23 @@ public class WorkWeekView extends ViewPart {
 		// Force a redraw so content is visible
 		main.pack();
 		installStatusUpdater();
+		// the content provider loads the week as soon as the database is ready,
+		// until then the state of the connection is shown
+		if (!TimekeeperPlugin.getDefault().isReady()) {
+			statusLabel.setText("Connecting to database…");
+			Display display = parent.getDisplay();
+			TimekeeperPlugin.getDefault().whenReady().whenComplete((plugin, e) -> display.asyncExec(() -> {
+				if (viewer.getControl().isDisposed()) {
+					return;
+				}
+				if (e != null) {
+					log(IStatus.ERROR, "Could not connect to the database", e);
+					statusLabel.setText("Could not connect to database");
+				} else {
+					statusLabel.setText("");
+				}
+			}));
+		}
 	}
 
 	private TreeViewerColumn createTableViewerColumn(String title, int width, final int colNumber) {
@@ -467,32 +660,44 @@ public class WorkWeekView extends ViewPart {
 		TreeViewerColumn column = createTableViewerColumn("-", TIME_COLUMN_WIDTH, 1 + weekday);
 		column.getColumn().setAlignment(SWT.RIGHT);
 		column.setEditingSupport(new TimeEditingSupport((TreeViewer) column.getViewer(), contentProvider, weekday));
-		column.setLabelProvider(new TimeColumnLabelProvider(contentProvider) {
+		timeColumns[weekday] = new TimeColumnLabelProvider(contentProvider) {
 
 			@Override
 			public String getText(Object element) {
 				// Use modern formatting
 				long seconds = 0;
-				LocalDate date = contentProvider.getFirstDayOfWeek().plusDays(weekday);
-				if (element instanceof String) {
-					seconds = getSum(contentProvider.getFiltered(), date, (Project) element);
+				long from = Activity.toEpochSecond(contentProvider.getFirstDayOfWeek()) + weekday * SECONDS_PER_DAY;
+				long now = Activity.currentEpochSecond();
+				WeekSnapshot snapshot = contentProvider.getSnapshot();
+				WeekModel model = contentProvider.getModel();
+				if (element instanceof Project && model != null) {
+					seconds = model.getSeconds((Project) element, weekday, now);
+				} else if (element instanceof Task && model != null) {
+					seconds = model.getSeconds((Task) element, weekday, now);
+				} else if (element instanceof ProjectEntry) {
+					seconds = ((ProjectEntry) element).getSeconds(weekday);
+				} else if (element instanceof TaskEntry) {
+					seconds = ((TaskEntry) element).getSeconds(weekday);
+				} else if (element instanceof WeeklySummary && snapshot != null) {
+					seconds = snapshot.getSeconds(weekday);
 				} else if (element instanceof ITask) {
 					AbstractTask task = (AbstractTask) element;
 					Task trackedTask = TimekeeperPlugin.getDefault().getTask(task);
 					if (trackedTask != null) {
-						seconds = trackedTask.getDuration(contentProvider.getDate(weekday)).getSeconds();
+						seconds = trackedTask.getSeconds(from, from + SECONDS_PER_DAY, now);
 					}
-				} else if (element instanceof WeeklySummary) {
-					seconds = getSum(contentProvider.getFiltered(), date);
+				} else if (element instanceof WeeklySummary && model != null) {
+					seconds = model.getSeconds(weekday, now);
 				} else if (element instanceof Activity) {
-					seconds = ((Activity) element).getDuration(date).getSeconds();
+					seconds = ((Activity) element).getSeconds(from, from + SECONDS_PER_DAY, now);
 				}
 				if (seconds > 0) {
 					return DurationFormatUtils.formatDuration(seconds * 1000, "H:mm", true);
 				}
 				return "";
 			}
-		});
+		};
+		column.setLabelProvider(timeColumns[weekday]);
 	}
 
 	private void createTitleColumn() {
@@ -503,12 +708,46 @@ public class WorkWeekView extends ViewPart {
 
 	@Override
 	public void dispose() {
+		if (partListener != null) {
+			getSite().getPage().removePartListener(partListener);
+		}
+		ticking = false;
 		TasksUiPlugin.getTaskActivityManager().removeActivationListener(taskListener);
 		TasksUiPlugin.getTaskList().removeChangeListener(taskListener);
 		activityLabelPainter.disposeImages();
+		saveSnapshot();
 		super.dispose();
 	}
 
+	private Path getSnapshotPath() {
+		return TimekeeperUiPlugin.getDefault().getStateLocation().append(SNAPSHOT_FILE).toFile().toPath();
+	}
+
+	/**
+	 * Stores a snapshot of the current week so that it can be shown immediately
+	 * the next time the view is opened. This is only done if the current week
+	 * is the one loaded, as the database is not queried while disposing.
+	 */
+	private void saveSnapshot() {
+		WeekModel model = contentProvider.getModel();
+		LocalDate firstDayOfWeek = calculateFirstDayOfWeek(LocalDate.now());
+		if (model == null || !firstDayOfWeek.equals(model.getFirstDayOfWeek())) {
+			return;
+		}
+		try {
+			// labels of the activities may not have been loaded yet
+			WeekSnapshot snapshot = TimekeeperPlugin
+					.withEntityManager(em -> WeekSnapshot.of(firstDayOfWeek, model.getTasks(), LocalDateTime.now()));
+			snapshot.write(getSnapshotPath());
+		} catch (IOException | RuntimeException e) {
+			log(IStatus.WARNING, "Could not save snapshot of the week", e);
+		}
+	}
+
+	private static void log(int severity, String message, Throwable e) {
+		TimekeeperUiPlugin.getDefault().getLog().log(new Status(severity, TimekeeperUiPlugin.PLUGIN_ID, message, e));
+	}
+
 	/**
 	 * Populates the view context menu.
 	 */
@@ -529,7 +768,8 @@ public class WorkWeekView extends ViewPart {
 		if (obj instanceof Activity) {
 			manager.add(new Separator("labels"));
 			manager.add(new Separator("activity"));
-			Optional<Activity> currentActivity = ((Activity) obj).getTrackedTask().getCurrentActivity();
+			Optional<Activity> currentActivity = TimekeeperPlugin
+					.getCurrentActivity(TimekeeperPlugin.getTrackedTask((Activity) obj));
 			// do not allow deleting an activity that is currently active
 			if (!(currentActivity.isPresent() && currentActivity.get().equals(obj))) {
 				manager.add(deleteAction);
@@ -557,44 +797,6 @@ public class WorkWeekView extends ViewPart {
 		return "";
 	}
 
-	/**
-	 * Calculates the total amount of seconds accumulated on specified date.
-	 *
-	 * @param date
-	 *            the date to calculate for
-	 * @return the total amount of seconds accumulated
-	 */
-	private long getSum(Set<Task> filtered, LocalDate date) {
-		// May not have been initialised when first called.
-		if (filtered == null) {
-			return 0;
-		}
-		return filtered
-				.stream()
-				//.filter(t -> TimekeeperPlugin.getDefault().getTask(t) != null)
-				.mapToLong(t -> t.getDuration(date).getSeconds())
-				.sum();
-	}
-
-	/**
-	 * Calculates the total amount of seconds accumulated on the project for the
-	 * specified date.
-	 *
-	 * @param date
-	 *            the date to calculate for
-	 * @param project
-	 *            the project to calculate for
-	 * @return the total amount of seconds accumulated
-	 */
-	private long getSum(Set<Task> filtered, LocalDate date, Project project) {
-		return filtered
-				.stream()
-				.filter(t -> t != null)
-				.filter(t -> project.equals(t.getProject()))
-				.mapToLong(t -> t.getDuration(date).getSeconds())
-				.sum();
-	}
-
 	private void hookContextMenu() {
 		MenuManager menuMgr = new MenuManager("#PopupMenu");
 		menuMgr.setRemoveAllWhenShown(true);
@@ -709,8 +911,14 @@ public class WorkWeekView extends ViewPart {
 				ISelection selection = viewer.getSelection();
 				Object obj = ((IStructuredSelection) selection).getFirstElement();
 				if (obj instanceof Task) {
-					((Task) obj).endActivity();
-					((Task) obj).startActivity();
+					TimekeeperPlugin.runInTransaction(em -> {
+						Task task = TimekeeperPlugin.getManaged((Task) obj);
+						if (task != null) {
+							task.endActivity();
+							task.startActivity();
+						}
+					});
+					TimekeeperPlugin.getDefault().updateDailyTotals();
 					refreshAll();
 				}
 			}
@@ -725,9 +933,21 @@ public class WorkWeekView extends ViewPart {
 				while (iterator.hasNext()) {
 					Object i = iterator.next();
 					if (i instanceof Activity) {
-						((Activity) i).getTrackedTask().getActivities().remove(i);
+						Task task = TimekeeperPlugin.inTransaction(em -> {
+							Activity activity = TimekeeperPlugin.getManaged((Activity) i);
+							if (activity == null) {
+								return null;
+							}
+							Task t = activity.getTrackedTask();
+							t.removeActivity(activity);
+							return t;
+						});
+						if (task != null) {
+							contentProvider.update(task);
+						}
 					}
 				}
+				TimekeeperPlugin.getDefault().updateDailyTotals();
 				viewer.refresh();
 			}
 		};
@@ -751,13 +971,25 @@ public class WorkWeekView extends ViewPart {
 	 * Typically after importing a number of records.
 	 */
 	public void refreshAll() {
-		viewer.getContentProvider().inputChanged(viewer, viewer.getInput(), null);
-		viewer.expandAll();
+		viewer.getContentProvider().inputChanged(viewer, viewer.getInput(), viewer.getInput());
 	}
 
-	// XXX: Don't do expandAll() but be more targeted
+	/**
+	 * Used to notify the view that an activity or a task has been modified.
+	 * Only the rows of the element and its task are updated, other elements
+	 * cause the content to be refreshed as by {@link #refreshAll()}.
+	 *
+	 * @param element the modified element
+	 */
 	public void refresh(Object element) {
-		viewer.getContentProvider().inputChanged(viewer, viewer.getInput(), null);
-		viewer.expandAll();
+		Task task = element instanceof Activity ? TimekeeperPlugin.getTrackedTask((Activity) element)
+				: element instanceof Task ? (Task) element : null;
+		if (task == null) {
+			refreshAll();
+			return;
+		}
+		contentProvider.update(task);
+		viewer.update(element, null);
+		viewer.update(task, null);
 	}
 }
\ No newline at end of file